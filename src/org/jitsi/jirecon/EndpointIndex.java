@@ -0,0 +1,229 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+
+import org.jitsi.service.neomedia.*;
+
+/**
+ * <tt>EndpointIndex</tt> is an immutable snapshot of the endpoints of a
+ * meeting, indexed by ssrc and by endpoint id.
+ * <p>
+ * A new index is built whenever the endpoints change and is then published as
+ * a whole, so lookups need no lock and take constant time whatever the size of
+ * the meeting.
+ */
+public class EndpointIndex
+{
+    /**
+     * The index of no endpoint.
+     */
+    public static final EndpointIndex EMPTY =
+        new EndpointIndex(Collections.<EndpointInfo> emptyList());
+
+    /**
+     * The keys of the ssrc table, an open addressing table with linear
+     * probing. Only meaningful where {@link #ssrcValues} isn't null.
+     */
+    private final long[] ssrcKeys;
+
+    /**
+     * The values of the ssrc table.
+     */
+    private final Entry[] ssrcValues;
+
+    /**
+     * <tt>ssrcKeys.length - 1</tt>, the length being a power of two.
+     */
+    private final int mask;
+
+    /**
+     * Map between endpoint id, full or bare, and endpoint.
+     */
+    private final Map<String, Entry> ids = new HashMap<String, Entry>();
+
+    /**
+     * The number of endpoints.
+     */
+    private final int size;
+
+    /**
+     * Build the index of some endpoints. The ssrcs are copied, so later changes
+     * of the <tt>EndpointInfo</tt>s don't show in the index.
+     * <p>
+     * If an ssrc or id is shared by several endpoints, the first one wins.
+     * 
+     * @param endpoints are the endpoints.
+     */
+    public EndpointIndex(Collection<EndpointInfo> endpoints)
+    {
+        int ssrcCount = 0;
+        for (EndpointInfo endpoint : endpoints)
+            ssrcCount += endpoint.getSsrcs().size();
+
+        // Keep the load factor under 0.5.
+        int capacity = 4;
+        while (capacity < 2 * ssrcCount)
+            capacity <<= 1;
+        ssrcKeys = new long[capacity];
+        ssrcValues = new Entry[capacity];
+        mask = capacity - 1;
+
+        for (EndpointInfo endpoint : endpoints)
+        {
+            final Entry entry = new Entry(endpoint);
+            for (Long ssrc : entry.ssrcs.values())
+                putSsrc(ssrc, entry);
+
+            final String id = endpoint.getId();
+            if (null != id)
+            {
+                if (!ids.containsKey(id))
+                    ids.put(id, entry);
+                final String bareId = endpoint.getBareId();
+                if (!ids.containsKey(bareId))
+                    ids.put(bareId, entry);
+            }
+        }
+        size = endpoints.size();
+    }
+
+    /**
+     * Whether there is no endpoint.
+     * 
+     * @return true if there is no endpoint, otherwise false.
+     */
+    public boolean isEmpty()
+    {
+        return 0 == size;
+    }
+
+    /**
+     * Find the <tt>MediaType</tt> ssrc of the endpoint which owns an ssrc.
+     * Only endpoints with at least two ssrcs are considered.
+     * 
+     * @param ssrc is any ssrc of the endpoint.
+     * @param mediaType is the <tt>MediaType</tt> of the wanted ssrc.
+     * @return ssrc or -1 if not found.
+     */
+    public long getAssociatedSsrc(long ssrc, MediaType mediaType)
+    {
+        final Entry entry = getSsrc(ssrc);
+        if (null == entry || entry.ssrcs.size() < 2)
+            return -1;
+        return entry.getSsrc(mediaType);
+    }
+
+    /**
+     * Find the <tt>MediaType</tt> ssrc of an endpoint.
+     * 
+     * @param endpointId is the full or bare id of the endpoint.
+     * @param mediaType is the <tt>MediaType</tt> of the wanted ssrc.
+     * @return ssrc or -1 if not found.
+     */
+    public long getEndpointSsrc(String endpointId, MediaType mediaType)
+    {
+        final Entry entry = ids.get(endpointId);
+        return null == entry ? -1 : entry.getSsrc(mediaType);
+    }
+
+    /**
+     * Find the id of the endpoint which owns an ssrc.
+     * 
+     * @param ssrc is the ssrc.
+     * @param mediaType is the <tt>MediaType</tt> of the ssrc.
+     * @return the endpoint id or null if not found.
+     */
+    public String getEndpointId(long ssrc, MediaType mediaType)
+    {
+        final Entry entry = getSsrc(ssrc);
+        if (null == entry || entry.getSsrc(mediaType) != ssrc)
+            return null;
+        return entry.id;
+    }
+
+    /**
+     * Add an ssrc to the ssrc table, unless it is there already.
+     * 
+     * @param ssrc is the ssrc.
+     * @param entry is the endpoint which owns it.
+     */
+    private void putSsrc(long ssrc, Entry entry)
+    {
+        int i = hash(ssrc) & mask;
+        while (null != ssrcValues[i])
+        {
+            if (ssrcKeys[i] == ssrc)
+                return;
+            i = (i + 1) & mask;
+        }
+        ssrcKeys[i] = ssrc;
+        ssrcValues[i] = entry;
+    }
+
+    /**
+     * Find the endpoint which owns an ssrc.
+     * 
+     * @param ssrc is the ssrc.
+     * @return the endpoint or null if not found.
+     */
+    private Entry getSsrc(long ssrc)
+    {
+        int i = hash(ssrc) & mask;
+        Entry entry;
+        while (null != (entry = ssrcValues[i]))
+        {
+            if (ssrcKeys[i] == ssrc)
+                return entry;
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Spread the bits of an ssrc, as ssrcs of the same meeting may share their
+     * low bits.
+     * 
+     * @param ssrc is the ssrc.
+     * @return the hash.
+     */
+    private static int hash(long ssrc)
+    {
+        long h = ssrc * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * The indexed copy of an endpoint.
+     */
+    private static class Entry
+    {
+        /**
+         * The endpoint id.
+         */
+        private final String id;
+
+        /**
+         * Map between <tt>MediaType</tt> and ssrc.
+         */
+        private final Map<MediaType, Long> ssrcs;
+
+        private Entry(EndpointInfo endpoint)
+        {
+            this.id = endpoint.getId();
+            this.ssrcs =
+                new EnumMap<MediaType, Long>(MediaType.class);
+            this.ssrcs.putAll(endpoint.getSsrcs());
+        }
+
+        private long getSsrc(MediaType mediaType)
+        {
+            final Long ssrc = ssrcs.get(mediaType);
+            return null == ssrc ? -1 : ssrc;
+        }
+    }
+}
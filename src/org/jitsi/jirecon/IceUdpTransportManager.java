@@ -38,9 +38,76 @@ public class IceUdpTransportManager
         .getLogger(IceUdpTransportManager.class.getName());
 
     /**
-     * The maximum time in milliseconds to wait for ICE to complete.
+     * The number of stream ports used by a single transport manager: RTP and
+     * RTCP for audio and video, plus one for data.
      */
-    private static int MAX_WAIT_TIME = 10000;
+    public static final int PORTS_PER_TRANSPORT = 5;
+
+    /**
+     * The default time in milliseconds to wait for ICE to complete.
+     */
+    private static final long DEFAULT_ICE_TIMEOUT = 10000;
+
+    /**
+     * The scheduler of ICE timeouts, shared by all transport managers.
+     */
+    private static final ScheduledExecutorService timeoutScheduler =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "ICE timeout scheduler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * The time in milliseconds to wait for ICE to complete.
+     */
+    private final long iceTimeout;
+
+    /**
+     * Sync root for the state of the connectivity establishment.
+     */
+    private final Object connectivitySyncRoot = new Object();
+
+    /**
+     * Whether connectivity establishment has been started.
+     */
+    private boolean isConnectivityStarted = false;
+
+    /**
+     * The result of the connectivity establishment, or null if it hasn't
+     * finished yet.
+     */
+    private ConnectivityResult connectivityResult;
+
+    /**
+     * The listener to be notified once the connectivity establishment has
+     * finished. It may be null.
+     */
+    private ConnectivityListener connectivityListener;
+
+    /**
+     * The scheduled timeout of the connectivity establishment.
+     */
+    private ScheduledFuture<?> connectivityTimeout;
+
+    /**
+     * Listens to the state of {@link #iceAgent} during the connectivity
+     * establishment.
+     */
+    private final PropertyChangeListener stateChangeListener =
+        new PropertyChangeListener()
+        {
+            @Override
+            public void propertyChange(PropertyChangeEvent ev)
+            {
+                checkConnectivityState(ev.getNewValue());
+            }
+        };
 
     /**
      * Instance of <tt>Agent</tt>.
@@ -72,14 +139,43 @@ public class IceUdpTransportManager
     private final int MAX_STREAM_PORT;
 
     /**
-     * Sync root for {@link #lastUsedPort}.
+     * The allocator of the stream ports, shared by all transport managers. It
+     * is null if the port range hasn't been configured.
      */
-    private static final Object lastUsedPortSyncRoot = new Object();
+    private static PortAllocator portAllocator;
 
     /**
-     * The last number used as preferred port number for candidate allocation.
+     * Sync root for {@link #portAllocator}.
      */
-    private static int lastUsedPort = -1;
+    private static final Object portAllocatorSyncRoot = new Object();
+
+    /**
+     * Whether RTCP should be multiplexed with RTP when the remote peer
+     * supports it.
+     */
+    private final boolean rtcpMuxEnabled;
+
+    /**
+     * The <tt>MediaType</tt>s whose RTCP is multiplexed with RTP, so that they
+     * have no RTCP component.
+     */
+    private final Set<MediaType> rtcpMuxTypes =
+        Collections.synchronizedSet(EnumSet.noneOf(MediaType.class));
+
+    /**
+     * The ports allocated by this transport manager, by the name of their
+     * <tt>IceMediaStream</tt>. They're released when the stream is removed,
+     * or in {@link #free()}.
+     */
+    private final Map<String, List<Integer>> allocatedPorts =
+        new HashMap<String, List<Integer>>();
+
+    /**
+     * Whether {@link #free()} has been called. A component created afterwards
+     * is removed and its port released, rather than added to
+     * {@link #allocatedPorts}. Guarded by {@link #allocatedPorts}.
+     */
+    private boolean freed = false;
 
     public IceUdpTransportManager()
     {
@@ -96,6 +192,23 @@ public class IceUdpTransportManager
         MAX_STREAM_PORT =
             configuration.getInt(ConfigurationKey.MAX_STREAM_PORT_KEY,
                 -1);
+
+        rtcpMuxEnabled =
+            configuration.getBoolean(ConfigurationKey.RTCP_MUX_KEY, false);
+
+        synchronized (portAllocatorSyncRoot)
+        {
+            if (null == portAllocator && MIN_STREAM_PORT > 0
+                && MAX_STREAM_PORT >= MIN_STREAM_PORT)
+            {
+                portAllocator =
+                    new PortAllocator(MIN_STREAM_PORT, MAX_STREAM_PORT);
+            }
+        }
+
+        final long timeout =
+            configuration.getLong(ConfigurationKey.ICE_TIMEOUT_KEY, -1);
+        iceTimeout = timeout > 0 ? timeout : DEFAULT_ICE_TIMEOUT;
     }
 
     /**
@@ -103,7 +216,66 @@ public class IceUdpTransportManager
      */
     public void free()
     {
+        synchronized (allocatedPorts)
+        {
+            freed = true;
+        }
+
+        // Nobody should be left waiting for a freed agent.
+        finishConnectivityEstablishment(ConnectivityResult.FAILED);
         iceAgent.free();
+
+        synchronized (allocatedPorts)
+        {
+            for (List<Integer> ports : allocatedPorts.values())
+                releasePorts(ports);
+            allocatedPorts.clear();
+        }
+    }
+
+    /**
+     * Get the number of stream ports which are free.
+     * 
+     * @return the number of free stream ports, or -1 if the port range hasn't
+     *         been configured.
+     */
+    public static int getFreePortCount()
+    {
+        synchronized (portAllocatorSyncRoot)
+        {
+            return null == portAllocator ? -1 : portAllocator.getFreeCount();
+        }
+    }
+
+    /**
+     * Get the number of stream ports which are in use.
+     * 
+     * @return the number of stream ports in use, or -1 if the port range
+     *         hasn't been configured.
+     */
+    public static int getUsedPortCount()
+    {
+        synchronized (portAllocatorSyncRoot)
+        {
+            return null == portAllocator ? -1 : portAllocator.getUsedCount();
+        }
+    }
+
+    /**
+     * Get the number of stream ports held by this transport manager.
+     * 
+     * @return the number of ports taken from the configured range, 0 if the
+     *         range hasn't been configured.
+     */
+    public int getAllocatedPortCount()
+    {
+        int count = 0;
+        synchronized (allocatedPorts)
+        {
+            for (List<Integer> ports : allocatedPorts.values())
+                count += ports.size();
+        }
+        return count;
     }
 
     /**
@@ -136,15 +308,57 @@ public class IceUdpTransportManager
      * established successfully.
      */
     public void startConnectivityEstablishment()
+    {
+        startConnectivityEstablishment(null);
+    }
+
+    /**
+     * Starts ICE connectivity establishment and returns immediately. The
+     * specified listener is notified once, when ICE has completed, failed, or
+     * hasn't finished within the configured timeout.
+     * <p>
+     * <strong>Warning:</strong> The listener may be notified in a thread of
+     * ice4j or in the timeout scheduler thread, it shouldn't do any long work
+     * there.
+     * 
+     * @param listener is the <tt>ConnectivityListener</tt> to be notified. It
+     *            may be null.
+     */
+    public void startConnectivityEstablishment(ConnectivityListener listener)
     {
         logger.debug("startConnectivityEstablishment");
 
+        synchronized (connectivitySyncRoot)
+        {
+            if (isConnectivityStarted)
+            {
+                logger.warn("ICE connectivity establishment has already been"
+                    + " started, ignored.");
+                return;
+            }
+            isConnectivityStarted = true;
+            connectivityListener = listener;
+            connectivityTimeout = timeoutScheduler.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    finishConnectivityEstablishment(
+                        ConnectivityResult.TIMEOUT);
+                }
+            }, iceTimeout, TimeUnit.MILLISECONDS);
+        }
+
+        iceAgent.addStateChangeListener(stateChangeListener);
         iceAgent.startConnectivityEstablishment();
+
+        // The agent may have finished before we started listening.
+        checkConnectivityState(iceAgent.getState());
     }
 
     /**
-     * Waits until {@link #iceAgent} enters a final state (CONNECTED, TERMINATED,
-     * or FAILED). Waits for at most 10 seconds.
+     * Waits until the connectivity establishment has finished, which happens
+     * at the latest when the configured timeout expires.
      *
      * Note: connectivity establishment has to have been started using
      * {@link #startConnectivityEstablishment()} before this method is called.
@@ -154,62 +368,83 @@ public class IceUdpTransportManager
      */
     public boolean wrapupConnectivityEstablishment()
     {
-        final Object syncRoot = new Object();
-        PropertyChangeListener propertyChangeListener
-                = new PropertyChangeListener()
+        synchronized (connectivitySyncRoot)
         {
-            @Override
-            public void propertyChange(PropertyChangeEvent ev)
+            if (!isConnectivityStarted)
             {
-                Object newValue = ev.getNewValue();
-
-                if (IceProcessingState.COMPLETED.equals(newValue)
-                        || IceProcessingState.FAILED.equals(newValue)
-                        || IceProcessingState.TERMINATED.equals(newValue))
-                {
-                    Agent iceAgent = (Agent) ev.getSource();
-
-                    iceAgent.removeStateChangeListener(this);
-                    if (iceAgent == IceUdpTransportManager.this.iceAgent)
-                    {
-                        synchronized (syncRoot)
-                        {
-                            syncRoot.notify();
-                        }
-                    }
-                }
+                logger.warn("ICE connectivity establishment hasn't been"
+                    + " started.");
+                return false;
             }
-        };
 
-        iceAgent.addStateChangeListener(propertyChangeListener);
-        synchronized (syncRoot)
-        {
-            long startWait = System.currentTimeMillis();
-            do
+            while (null == connectivityResult)
             {
-                IceProcessingState iceState = iceAgent.getState();
-                if (IceProcessingState.COMPLETED.equals(iceState)
-                        || IceProcessingState.TERMINATED.equals(iceState)
-                        || IceProcessingState.FAILED.equals(iceState))
-                    break;
-
-                if (System.currentTimeMillis() - startWait > MAX_WAIT_TIME)
-                    break; // Don't run for more than 10 seconds
-
                 try
                 {
-                    syncRoot.wait(MAX_WAIT_TIME);
+                    connectivitySyncRoot.wait();
                 }
                 catch (InterruptedException ie)
                 {
                     logger.fatal("Interrupted: " + ie);
-                    break;
+                    Thread.currentThread().interrupt();
+                    return false;
                 }
             }
-            while (true);
+
+            return ConnectivityResult.COMPLETED == connectivityResult;
+        }
+    }
+
+    /**
+     * Finish the connectivity establishment if the specified state of
+     * {@link #iceAgent} is a final one.
+     * 
+     * @param state is the state of {@link #iceAgent}.
+     */
+    private void checkConnectivityState(Object state)
+    {
+        /*
+         * The agent goes from COMPLETED to TERMINATED once it's done with the
+         * checks, so TERMINATED means the pairs have been selected as well.
+         */
+        if (IceProcessingState.COMPLETED.equals(state)
+            || IceProcessingState.TERMINATED.equals(state))
+        {
+            finishConnectivityEstablishment(ConnectivityResult.COMPLETED);
+        }
+        else if (IceProcessingState.FAILED.equals(state))
+        {
+            finishConnectivityEstablishment(ConnectivityResult.FAILED);
+        }
+    }
+
+    /**
+     * Record the result of the connectivity establishment and notify the
+     * listener. Only the first result counts, the others are ignored.
+     * 
+     * @param result is the result of the connectivity establishment.
+     */
+    private void finishConnectivityEstablishment(ConnectivityResult result)
+    {
+        ConnectivityListener listener;
+        synchronized (connectivitySyncRoot)
+        {
+            if (!isConnectivityStarted || null != connectivityResult)
+                return;
+
+            connectivityResult = result;
+            listener = connectivityListener;
+            connectivityListener = null;
+            if (null != connectivityTimeout)
+                connectivityTimeout.cancel(false);
+            connectivitySyncRoot.notifyAll();
         }
 
-        return true;
+        iceAgent.removeStateChangeListener(stateChangeListener);
+        logger.info("ICE connectivity establishment finished: " + result);
+
+        if (null != listener)
+            listener.connectivityEstablishmentFinished(result);
     }
 
     /**
@@ -223,23 +458,20 @@ public class IceUdpTransportManager
     {
         logger.debug("harvestLocalCandidates");
 
+        checkNotFreed();
         final IceMediaStream stream = getIceMediaStream(mediaType);
 
         try
         {
-            iceAgent.createComponent(stream, Transport.UDP, getPreferredPort(),
-                MIN_STREAM_PORT, MAX_STREAM_PORT);
+            createComponent(stream);
 
             // We don't need an RTCP component for DATA.
             if (MediaType.AUDIO == mediaType || MediaType.VIDEO == mediaType)
             {
-                lastUsedPort += 1;
-                iceAgent.createComponent(
-                        stream,
-                        Transport.UDP,
-                        getPreferredPort(),
-                        MIN_STREAM_PORT,
-                        MAX_STREAM_PORT);
+                if (rtcpMuxEnabled)
+                    rtcpMuxTypes.add(mediaType);
+                else
+                    createComponent(stream);
             }
         }
         catch (Exception e)
@@ -250,19 +482,164 @@ public class IceUdpTransportManager
     }
 
     /**
-     * Gets the next port number to be used as a preferred port number for
-     * candidate allocation.
-     * @return the next port number to be used as a preferred port number for
-     * candidate allocation.
+     * Whether RTCP of the specified <tt>MediaType</tt> is multiplexed with
+     * RTP, which is the case if it is enabled and the remote peer hasn't
+     * refused it.
+     * 
+     * @param mediaType The specified <tt>MediaType</tt>.
+     * @return true if RTCP is multiplexed with RTP, otherwise false.
+     */
+    public boolean isRtcpMux(MediaType mediaType)
+    {
+        return rtcpMuxTypes.contains(mediaType);
+    }
+
+    /**
+     * Stop multiplexing RTCP with RTP for the specified <tt>MediaType</tt>,
+     * because the remote peer doesn't support it. The RTCP component which
+     * was skipped during the harvesting is created now.
+     * <p>
+     * <strong>Warning:</strong> It must be called before the connectivity
+     * establishment has been started.
+     * 
+     * @param mediaType The specified <tt>MediaType</tt>.
+     * @throws Exception if we can't create the RTCP component.
+     */
+    public void disableRtcpMux(MediaType mediaType)
+        throws Exception
+    {
+        if (!rtcpMuxTypes.remove(mediaType))
+            return;
+
+        logger.info("Remote peer doesn't support rtcp-mux for " + mediaType
+            + ", create an RTCP component.");
+        try
+        {
+            createComponent(getIceMediaStream(mediaType));
+        }
+        catch (Exception e)
+        {
+            throw new Exception("Could not create ICE component, "
+                + e.getMessage());
+        }
+    }
+
+    /**
+     * Create a UDP component in the specified <tt>IceMediaStream</tt>, bound
+     * to a port given by {@link #portAllocator}. If the port turns out to be
+     * used by somebody else, the next free one is tried.
+     * 
+     * @param stream is the <tt>IceMediaStream</tt> of the component.
+     * @throws Exception if we can't create the component.
+     */
+    private void createComponent(IceMediaStream stream)
+        throws Exception
+    {
+        checkNotFreed();
+
+        if (null == portAllocator)
+        {
+            Component component =
+                iceAgent.createComponent(stream, Transport.UDP,
+                    MIN_STREAM_PORT, MIN_STREAM_PORT, MAX_STREAM_PORT);
+            synchronized (allocatedPorts)
+            {
+                if (!freed)
+                    return;
+            }
+            stream.removeComponent(component);
+            throw new IllegalStateException("Transport manager has been freed.");
+        }
+
+        // The ports which couldn't be kept, they're released in the end.
+        final List<Integer> busyPorts = new ArrayList<Integer>();
+        try
+        {
+            while (true)
+            {
+                final int port = portAllocator.allocate();
+                if (port < 0)
+                {
+                    throw new BindException("No free stream port left in "
+                        + MIN_STREAM_PORT + "-" + MAX_STREAM_PORT);
+                }
+
+                Component component;
+                try
+                {
+                    component =
+                        iceAgent.createComponent(stream, Transport.UDP, port,
+                            port, port);
+                }
+                catch (BindException e)
+                {
+                    logger.debug("Stream port " + port + " is busy.");
+                    busyPorts.add(port);
+                    continue;
+                }
+                catch (Exception e)
+                {
+                    busyPorts.add(port);
+                    throw e;
+                }
+
+                synchronized (allocatedPorts)
+                {
+                    if (!freed)
+                    {
+                        List<Integer> ports =
+                            allocatedPorts.get(stream.getName());
+                        if (null == ports)
+                        {
+                            ports = new ArrayList<Integer>();
+                            allocatedPorts.put(stream.getName(), ports);
+                        }
+                        ports.add(port);
+                        return;
+                    }
+                }
+
+                // We've been freed meanwhile, nobody would release the port.
+                stream.removeComponent(component);
+                busyPorts.add(port);
+                throw new IllegalStateException(
+                    "Transport manager has been freed.");
+            }
+        }
+        finally
+        {
+            for (int port : busyPorts)
+                portAllocator.release(port);
+        }
+    }
+
+    /**
+     * Give ports back to {@link #portAllocator}.
+     * 
+     * @param ports are the ports.
+     */
+    private static void releasePorts(List<Integer> ports)
+    {
+        if (null == portAllocator)
+            return;
+        for (int port : ports)
+            portAllocator.release(port);
+    }
+
+    /**
+     * Make sure that {@link #free()} hasn't been called.
+     * 
+     * @throws IllegalStateException if the transport manager has been freed.
      */
-    private int getPreferredPort()
+    private void checkNotFreed()
     {
-        synchronized (lastUsedPortSyncRoot)
+        synchronized (allocatedPorts)
         {
-            lastUsedPort++;
-            if (lastUsedPort < MIN_STREAM_PORT || lastUsedPort > MAX_STREAM_PORT)
-                lastUsedPort = MIN_STREAM_PORT;
-            return lastUsedPort;
+            if (freed)
+            {
+                throw new IllegalStateException(
+                    "Transport manager has been freed.");
+            }
         }
     }
 
@@ -339,16 +716,56 @@ public class IceUdpTransportManager
         }
     }
 
+    /**
+     * Remove the <tt>IceMediaStream</tt>s which are not of the specified
+     * <tt>MediaType</tt>s, so that they don't take part in the connectivity
+     * establishment.
+     * <p>
+     * Candidates may be harvested for every <tt>MediaType</tt> before we know
+     * which ones the remote peer supports, this is used for dropping the
+     * unused ones afterwards.
+     * 
+     * @param mediaTypes The <tt>MediaType</tt>s which are going to be used.
+     */
+    public void removeUnusedStreams(MediaType[] mediaTypes)
+    {
+        final List<MediaType> used = Arrays.asList(mediaTypes);
+
+        for (MediaType mediaType : MediaType.values())
+        {
+            if (used.contains(mediaType))
+                continue;
+
+            final IceMediaStream stream =
+                iceAgent.getStream(mediaType.toString());
+            if (null != stream)
+            {
+                logger.debug("Remove unused ICE stream " + mediaType);
+                iceAgent.removeStream(stream);
+
+                // Its sockets are closed, the ports may be used by others.
+                synchronized (allocatedPorts)
+                {
+                    List<Integer> ports =
+                        allocatedPorts.remove(stream.getName());
+                    if (null != ports)
+                        releasePorts(ports);
+                }
+            }
+        }
+    }
+
     /**
      * Get <tt>IceMediaStream</tt> of specified <tt>MediaType</tt>.
      * <p>
      * If there is no specified <tt>IceMediaStream</tt>, we will create a new
-     * one.
+     * one. It is synchronized because candidates of different
+     * <tt>MediaType</tt>s may be harvested concurrently.
      * 
      * @param mediaType
      * @return
      */
-    private IceMediaStream getIceMediaStream(MediaType mediaType)
+    private synchronized IceMediaStream getIceMediaStream(MediaType mediaType)
     {
         IceMediaStream stream = iceAgent.getStream(mediaType.toString());
 
@@ -461,6 +878,9 @@ public class IceUdpTransportManager
                 }
             }
 
+            if (isRtcpMux(mediaType))
+                rtcpAddress = rtpAddress;
+
             streamTarget =
                 new MediaStreamTarget(rtpAddress, rtcpAddress);
             mediaStreamTargets.put(mediaType, streamTarget);
@@ -502,7 +922,9 @@ public class IceUdpTransportManager
         rtpPair = stream.getComponent(Component.RTP).getSelectedPair();
         rtpSocket = rtpPair.getIceSocketWrapper().getUDPSocket();
 
-        if (MediaType.AUDIO == mediaType || MediaType.VIDEO == mediaType)
+        final boolean rtcpMux = isRtcpMux(mediaType);
+        if ((MediaType.AUDIO == mediaType || MediaType.VIDEO == mediaType)
+            && !rtcpMux)
         {
             rtcpPair = stream.getComponent(Component.RTCP).getSelectedPair();
             rtcpSocket = rtcpPair.getIceSocketWrapper().getUDPSocket();
@@ -513,10 +935,46 @@ public class IceUdpTransportManager
         streamConnector
                 = new DefaultStreamConnector(rtpSocket,
                                              rtcpSocket,
-                                             MediaType.DATA.equals(mediaType));
+                                             MediaType.DATA.equals(mediaType)
+                                                 || rtcpMux);
 
         streamConnectors.put(mediaType, streamConnector);
 
         return streamConnector;
     }
+
+    /**
+     * The result of ICE connectivity establishment.
+     */
+    public enum ConnectivityResult
+    {
+        /**
+         * ICE connectivity has been established.
+         */
+        COMPLETED,
+
+        /**
+         * ICE connectivity establishment has failed.
+         */
+        FAILED,
+
+        /**
+         * ICE connectivity establishment hasn't finished in time.
+         */
+        TIMEOUT
+    }
+
+    /**
+     * Listener of the result of ICE connectivity establishment.
+     */
+    public interface ConnectivityListener
+    {
+        /**
+         * Fired once the connectivity establishment has finished.
+         * 
+         * @param result is the result of the connectivity establishment.
+         */
+        public void connectivityEstablishmentFinished(
+            ConnectivityResult result);
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.util.*;
+import org.jivesoftware.smack.*;
+import org.jivesoftware.smack.packet.*;
+
+/**
+ * <tt>IqRequestTracker</tt> correlates the IQ requests we send with their
+ * responses. Every request is kept in a table by its stanza id, until the
+ * "result" or "error" IQ with the same id arrives or the request times out.
+ */
+public class IqRequestTracker
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(IqRequestTracker.class.getName());
+
+    /**
+     * The <tt>XMPPConnection</tt> used for sending the requests.
+     */
+    private final XMPPConnection connection;
+
+    /**
+     * The requests waiting for their responses, by stanza id.
+     */
+    private final ConcurrentMap<String, PacketFuture<IQ>> pendingRequests =
+        new ConcurrentHashMap<String, PacketFuture<IQ>>();
+
+    /**
+     * Create a tracker.
+     * 
+     * @param connection is used for sending the requests.
+     */
+    public IqRequestTracker(XMPPConnection connection)
+    {
+        this.connection = connection;
+    }
+
+    /**
+     * Send an IQ request and track its response.
+     * 
+     * @param request is the IQ to be sent.
+     * @param timeout is the time in milliseconds to wait for the response.
+     * @return the <tt>PacketFuture</tt> of the response. It fails if the
+     *         response is an "error" IQ or doesn't arrive in time.
+     */
+    public PacketFuture<IQ> sendRequest(IQ request, long timeout)
+    {
+        final String id = request.getPacketID();
+        final PacketFuture<IQ> response = new PacketFuture<IQ>();
+
+        pendingRequests.put(id, response);
+        response.addListener(new PacketFuture.Listener<IQ>()
+        {
+            @Override
+            public void packetReceived(IQ packet)
+            {
+            }
+
+            @Override
+            public void packetFailed(Exception cause)
+            {
+                // Don't keep the requests which have timed out.
+                pendingRequests.remove(id, response);
+                logger.debug("IQ request " + id + " failed, " + cause);
+            }
+        });
+        response.setTimeout(timeout, "response of IQ " + id);
+
+        connection.sendPacket(request);
+        return response;
+    }
+
+    /**
+     * Complete the pending request which the specified packet responds to, if
+     * there is one.
+     * 
+     * @param packet is the packet that we've gotten.
+     * @return true if the packet was the response of a pending request.
+     */
+    public boolean handleResponse(Packet packet)
+    {
+        if (!(packet instanceof IQ))
+            return false;
+
+        final IQ iq = (IQ) packet;
+        if (IQ.Type.RESULT != iq.getType() && IQ.Type.ERROR != iq.getType())
+            return false;
+
+        final PacketFuture<IQ> response =
+            pendingRequests.remove(iq.getPacketID());
+        if (null == response)
+            return false;
+
+        if (IQ.Type.RESULT == iq.getType())
+            response.complete(iq);
+        else
+            response.fail(new XMPPException(iq.getError()));
+        return true;
+    }
+
+    /**
+     * Fail all the pending requests, they won't be responded.
+     */
+    public void cancelAll()
+    {
+        final List<PacketFuture<IQ>> requests =
+            new ArrayList<PacketFuture<IQ>>(pendingRequests.values());
+        pendingRequests.clear();
+
+        for (PacketFuture<IQ> request : requests)
+            request.fail(new CancellationException("Request cancelled."));
+    }
+
+    /**
+     * Get the number of requests waiting for their responses.
+     * 
+     * @return the number of pending requests.
+     */
+    public int getPendingCount()
+    {
+        return pendingRequests.size();
+    }
+}
@@ -6,6 +6,8 @@
 package org.jitsi.jirecon;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.colibri.*;
@@ -90,16 +92,60 @@ public class JingleSessionManager
     private final Map<String, EndpointInfo> endpoints
         = new HashMap<String, EndpointInfo>();
 
+    /**
+     * Map between participant jid and a copy of the sources of the last
+     * <tt>MediaExtension</tt> handled for it. Guarded by {@link #endpoints}.
+     */
+    private final Map<String, MediaExtension> lastSources =
+        new HashMap<String, MediaExtension>();
+
+    /**
+     * The number of presence packets which went through the media handling.
+     */
+    private final AtomicLong processedPresences = new AtomicLong();
+
+    /**
+     * The number of presence packets skipped because the media of the
+     * participant didn't change.
+     */
+    private final AtomicLong skippedPresences = new AtomicLong();
+
     /**
      * The list of <tt>JireconSessionPacketListener</tt> which is used for
      * handling kinds of XMPP packet.
      */
     private List<JireconSessionPacketListener> packetListeners =
-        new ArrayList<JireconSessionPacketListener>();
-    
-    private PacketListener sendingListener;
+        new CopyOnWriteArrayList<JireconSessionPacketListener>();
     
+    /**
+     * Correlates the Jingle requests we send with their responses.
+     */
+    private IqRequestTracker iqTracker;
+
+    /**
+     * Completed once the Jingle session-init packet has been received.
+     */
+    private final PacketFuture<JingleIQ> initPacketFuture =
+        new PacketFuture<JingleIQ>();
+
+    /**
+     * The response of the session-accept packet, or null if it hasn't been
+     * sent yet.
+     */
+    private volatile PacketFuture<IQ> acceptResultFuture;
+
     private PacketListener receivingListener;
+
+    /**
+     * The <tt>StanzaDispatcher</tt> which routes our stanzas to us. If it is
+     * null, we listen to the connection ourselves.
+     */
+    private StanzaDispatcher dispatcher;
+
+    /**
+     * Our route in {@link #dispatcher}.
+     */
+    private StanzaDispatcher.Route route;
     
     /**
      * Initialize <tt>JireconSession</tt>.
@@ -107,15 +153,30 @@ public class JingleSessionManager
      * @param connection is used for send/receive XMPP packet.
      */
     public void init(XMPPConnection connection)
+    {
+        init(connection, null);
+    }
+
+    /**
+     * Initialize <tt>JireconSession</tt> whose stanzas are routed by a
+     * <tt>StanzaDispatcher</tt>.
+     * 
+     * @param connection is used for send/receive XMPP packet.
+     * @param dispatcher routes the received stanzas of the connection. If it
+     *            is null, we'll listen to the connection ourselves.
+     */
+    public void init(XMPPConnection connection, StanzaDispatcher dispatcher)
     {
         /*
          * We must make sure Libjitsi has been started.
          */
         LibJitsi.start();
         this.connection = connection;
+        iqTracker = new IqRequestTracker(connection);
+        this.dispatcher = dispatcher;
 
-        addPacketSendingListener();
-        addPacketReceivingListener();
+        if (null == dispatcher)
+            addPacketReceivingListener();
 
         /*
          * Register the packet listener to handle presence packet.
@@ -132,6 +193,23 @@ public class JingleSessionManager
             };
 
         addPacketListener(packetListener);
+
+        /*
+         * Register the packet listener to handle Jingle session-init packet.
+         */
+        addPacketListener(new JireconSessionPacketListener()
+        {
+            @Override
+            public void handlePacket(Packet packet)
+            {
+                if (packet instanceof JingleIQ)
+                {
+                    final JingleIQ jiq = (JingleIQ) packet;
+                    if (JingleAction.SESSION_INITIATE.equals(jiq.getAction()))
+                        handleInitPacket(jiq);
+                }
+            }
+        });
     }
     
     /**
@@ -144,7 +222,21 @@ public class JingleSessionManager
     public void connect(String mucJid, String nickname) 
         throws Exception
     {
+        // Be ready for the stanzas of the MUC before joining it.
+        if (null != dispatcher)
+        {
+            route = dispatcher.register(mucJid, new PacketListener()
+            {
+                @Override
+                public void processPacket(Packet packet)
+                {
+                    handlePacket(packet);
+                }
+            });
+        }
+
         joinMUC(mucJid, nickname);
+        initPacketFuture.setTimeout(MAX_WAIT_TIME, "session-init packet");
     }
 
     /**
@@ -156,9 +248,17 @@ public class JingleSessionManager
     public void disconnect(Reason reason, String reasonText)
     {
         sendByePacket(reason, reasonText);
+        logger.info("Presences processed: " + processedPresences.get()
+            + ", skipped: " + skippedPresences.get());
+        initPacketFuture.fail(new CancellationException("Disconnected."));
         leaveMUC();
-        connection.removePacketSendingListener(sendingListener);
-        connection.removePacketListener(receivingListener);
+        if (null != route)
+            dispatcher.unregister(route);
+        if (null != receivingListener)
+            connection.removePacketListener(receivingListener);
+        // No response can arrive any more.
+        if (null != iqTracker)
+            iqTracker.cancelAll();
     }
 
     /**
@@ -219,16 +319,40 @@ public class JingleSessionManager
      * @param transportPEs DtlsTransport packet extensions.
      * @param fingerprintPEs Fingerprint packet extensions.
      */
-    public void sendAcceptPacket(
+    public PacketFuture<IQ> sendAcceptPacket(
         Map<MediaType, Map<MediaFormat, Byte>> formatAndPTs,
         Map<MediaType, Long> localSsrcs,
         Map<MediaType, AbstractPacketExtension> transportPEs,
         Map<MediaType, AbstractPacketExtension> fingerprintPEs)
+    {
+        return sendAcceptPacket(formatAndPTs, localSsrcs, transportPEs,
+            fingerprintPEs, Collections.<MediaType> emptySet());
+    }
+
+    /**
+     * Send Jingle session-accept packet to the remote peer, telling it which
+     * <tt>MediaType</tt>s have RTCP multiplexed with RTP.
+     * 
+     * @param formatAndPTs Map between <tt>MediaFormat</tt> and payload type id.
+     * @param localSsrcs Local sscrs of audio and video.
+     * @param transportPEs DtlsTransport packet extensions.
+     * @param fingerprintPEs Fingerprint packet extensions.
+     * @param rtcpMuxTypes <tt>MediaType</tt>s which use rtcp-mux.
+     * @return the <tt>PacketFuture</tt> of the response of the packet.
+     */
+    public PacketFuture<IQ> sendAcceptPacket(
+        Map<MediaType, Map<MediaFormat, Byte>> formatAndPTs,
+        Map<MediaType, Long> localSsrcs,
+        Map<MediaType, AbstractPacketExtension> transportPEs,
+        Map<MediaType, AbstractPacketExtension> fingerprintPEs,
+        Set<MediaType> rtcpMuxTypes)
     {
         logger.debug("sendAcceptPacket");
         
-        JingleIQ acceptIq = createAcceptPacket(formatAndPTs, localSsrcs, transportPEs, fingerprintPEs);
-        connection.sendPacket(acceptIq);
+        JingleIQ acceptIq = createAcceptPacket(formatAndPTs, localSsrcs,
+            transportPEs, fingerprintPEs, rtcpMuxTypes);
+        acceptResultFuture = iqTracker.sendRequest(acceptIq, MAX_WAIT_TIME);
+        return acceptResultFuture;
     }
 
     /**
@@ -253,8 +377,12 @@ public class JingleSessionManager
     {
         logger.debug("sendByePacket");
 
-        connection.sendPacket(JinglePacketFactory.createSessionTerminate(
-            localFullJid, remoteFullJid, sid, reason, reasonText));
+        if (null == sid)
+            return;
+
+        iqTracker.sendRequest(JinglePacketFactory.createSessionTerminate(
+            localFullJid, remoteFullJid, sid, reason, reasonText),
+            MAX_WAIT_TIME);
     }
 
     /**
@@ -271,6 +399,41 @@ public class JingleSessionManager
         sid = initJiq.getSID();
     }
 
+    /**
+     * Handle Jingle session-init packet. Only the first one counts, once we've
+     * got it, record the session information and send back ack packet.
+     * 
+     * @param initJiq is the Jingle session-init packet.
+     */
+    private void handleInitPacket(JingleIQ initJiq)
+    {
+        synchronized (initPacketFuture)
+        {
+            if (initPacketFuture.isDone())
+            {
+                logger.warn("Ignore duplicate session-init packet.");
+                return;
+            }
+            recordSessionInfo(initJiq);
+        }
+        if (null != route)
+            dispatcher.registerSession(sid, route);
+        sendAck(initJiq);
+        initPacketFuture.complete(initJiq);
+    }
+
+    /**
+     * Get the <tt>PacketFuture</tt> of Jingle session-init packet. It fails if
+     * the packet hasn't arrived within <tt>MAX_WAIT_TIME</tt> ms after joining
+     * the MUC.
+     * 
+     * @return the <tt>PacketFuture</tt> of Jingle session-init packet.
+     */
+    public PacketFuture<JingleIQ> getInitPacketFuture()
+    {
+        return initPacketFuture;
+    }
+
     /**
      * Wait for Jingle session-init packet after join the MUC.
      * <p>
@@ -288,73 +451,19 @@ public class JingleSessionManager
     {
         logger.info("waitForInitPacket");
 
-        final List<JingleIQ> resultList = new ArrayList<JingleIQ>();
-        final Object waitForInitPacketSyncRoot = new Object();
-
-        /*
-         * Register a packet listener for handling Jingle session-init packet.
-         */
-        JireconSessionPacketListener packetListener =
-            new JireconSessionPacketListener()
-            {
-                @Override
-                public void handlePacket(Packet packet)
-                {
-                    if (packet instanceof JingleIQ)
-                    {
-                        final JingleIQ jiq = (JingleIQ) packet;
-                        if (JingleAction.SESSION_INITIATE.equals(jiq
-                            .getAction()))
-                        {
-                            resultList.add(jiq);
-                            JingleSessionManager.this.removePacketListener(this);
-
-                            synchronized (waitForInitPacketSyncRoot)
-                            {
-                                waitForInitPacketSyncRoot.notify();
-                            }
-                        }
-                    }
-                }
-            };
-
-        addPacketListener(packetListener);
-        boolean interrupted = false;
-
-        synchronized (waitForInitPacketSyncRoot)
+        try
         {
-            while (resultList.isEmpty())
-            {
-                try
-                {
-                    waitForInitPacketSyncRoot.wait(MAX_WAIT_TIME);
-                    break;
-                }
-                catch (InterruptedException ie)
-                {
-                    interrupted = true;
-                }
-            }
+            return initPacketFuture.get(MAX_WAIT_TIME);
         }
-        if (interrupted)
-            Thread.currentThread().interrupt();
-
-        removePacketListener(packetListener);
-        if (resultList.isEmpty())
+        catch (Exception e)
         {
             throw new Exception(
                 "Could not get session-init packet, maybe the MUC has locked.");
         }
-
-        final JingleIQ initIq = resultList.get(0);
-        recordSessionInfo(initIq);
-        sendAck(initIq);
-
-        return initIq;
     }
 
     /**
-     * Wait for ack packet.
+     * Wait for the ack packet of session-accept packet.
      * <p>
      * <strong>Warning:</strong> This method will block for at most
      * <tt>MAX_WAIT_TIME</tt> ms if there isn't ack packet.
@@ -363,54 +472,25 @@ public class JingleSessionManager
     {
         logger.info("waitForAckPacket");
 
-        final List<Packet> resultList = new ArrayList<Packet>();
-        final Object waitForAckPacketSyncRoot = new Object();
-
-        /*
-         * Register a packet listener for handling ack packet.
-         */
-        JireconSessionPacketListener packetListener =
-            new JireconSessionPacketListener()
-            {
-                @Override
-                public void handlePacket(Packet packet)
-                {
-                    //TODO match for the ID as well...
-                    if (packet instanceof IQ && IQ.Type.RESULT.equals(((IQ)packet).getType()))
-                    {
-                        resultList.add(packet);
-                        synchronized (waitForAckPacketSyncRoot)
-                        {
-                            waitForAckPacketSyncRoot.notify();
-                        }
-                    }
-                }
-            };
-
-        addPacketListener(packetListener);
-        boolean interrupted = false;
+        final PacketFuture<IQ> result = acceptResultFuture;
+        if (null == result)
+        {
+            logger.warn("Session-accept packet hasn't been sent.");
+            return;
+        }
 
-        synchronized (waitForAckPacketSyncRoot)
+        try
         {
-            while (resultList.isEmpty())
-            {
-                try
-                {
-                    waitForAckPacketSyncRoot.wait(MAX_WAIT_TIME);
-                }
-                catch (InterruptedException ie)
-                {
-                    interrupted = true;
-                }
-            }
+            result.get(MAX_WAIT_TIME);
         }
-        if (interrupted)
+        catch (InterruptedException e)
+        {
             Thread.currentThread().interrupt();
-
-        removePacketListener(packetListener);
-        if (resultList.isEmpty())
+        }
+        catch (Exception e)
         {
-            logger.warn("Couldn't receive result packet from remote peer.");
+            logger.warn("Couldn't receive result packet from remote peer, "
+                + e.getMessage());
         }
     }
 
@@ -441,36 +521,69 @@ public class JingleSessionManager
             return;
         
         MediaExtension mediaExt = (MediaExtension) packetExt;
+
+        // Status, nick and the like change far more often than the media, so
+        // don't go further if the sources are the ones we've seen already.
+        final boolean unavailable = p.getType() == Presence.Type.unavailable;
+        synchronized (endpoints)
+        {
+            if (unavailable)
+            {
+                lastSources.remove(participantJid);
+            }
+            else if (mediaExt.hasSameSources(lastSources.get(participantJid))
+                && endpoints.containsKey(participantJid))
+            {
+                skippedPresences.incrementAndGet();
+                return;
+            }
+            else
+            {
+                lastSources.put(participantJid, mediaExt.copySources());
+            }
+        }
+        processedPresences.incrementAndGet();
+
         Map<MediaType, Long> ssrcs = new HashMap<MediaType, Long>();
         
         for (MediaType mediaType : new MediaType[] {MediaType.AUDIO, MediaType.VIDEO})
         {
-            MediaDirection direction =
-                MediaDirection.parseString(mediaExt.getDirection(mediaType
-                    .toString()));
-            
-            if (direction.allowsSending())
+            MediaDirection direction = mediaExt.getDirection(mediaType);
+            long ssrc = mediaExt.getSsrc(mediaType);
+
+            if (null != direction && direction.allowsSending() && -1 != ssrc)
             {
-                ssrcs.put(mediaType,
-                    Long.valueOf(mediaExt.getSsrc(mediaType.toString())));
+                ssrcs.put(mediaType, ssrc);
             }
-            
+
         }
         
         // Oh, it seems that some participant has left the MUC.
-        if (p.getType() == Presence.Type.unavailable)
+        if (unavailable)
         {
-            removeEndpoint(participantJid);
-            fireEvent(new TaskEvent(
-                TaskEvent.Type.PARTICIPANT_LEFT));
+            fireEvent(new TaskEvent(TaskEvent.Type.PARTICIPANT_LEFT,
+                removeEndpoint(participantJid)));
         }
         // Otherwise we think that some new participant has joined the MUC.
         else
         {
-            if(addOrUpdateEndpoint(participantJid, ssrcs))
+            final EndpointInfo old;
+            final EndpointInfo endpoint;
+            synchronized (endpoints)
+            {
+                old = endpoints.get(participantJid);
+                endpoint = addOrUpdateEndpoint(participantJid, ssrcs);
+            }
+
+            if (null == old)
             {
-                fireEvent(new TaskEvent(
-                        TaskEvent.Type.PARTICIPANT_CAME));
+                fireEvent(new TaskEvent(TaskEvent.Type.PARTICIPANT_CAME,
+                    endpoint));
+            }
+            else if (!old.getSsrcs().equals(endpoint.getSsrcs()))
+            {
+                fireEvent(new TaskEvent(TaskEvent.Type.PARTICIPANT_UPDATED,
+                    endpoint));
             }
         }
     }
@@ -484,7 +597,8 @@ public class JingleSessionManager
         Map<MediaType, Map<MediaFormat, Byte>> formatAndPTs,
         Map<MediaType, Long> localSsrcs,
         Map<MediaType, AbstractPacketExtension> transportPEs,
-        Map<MediaType, AbstractPacketExtension> fingerprintPEs)
+        Map<MediaType, AbstractPacketExtension> fingerprintPEs,
+        Set<MediaType> rtcpMuxTypes)
     {
         logger.debug("createSessionAcceptPacket");
         
@@ -512,6 +626,9 @@ public class JingleSessionManager
                 descriptionPE =
                     createDescriptionPacketExt(mediaType,
                         formatAndPTs.get(mediaType), localSsrcs.get(mediaType));
+
+                if (rtcpMuxTypes.contains(mediaType))
+                    descriptionPE.addChildExtension(new RtcpmuxPacketExtension());
             }
             
             /* 
@@ -702,37 +819,16 @@ public class JingleSessionManager
      */
     private void handlePacket(Packet packet)
     {
+        // Responses of our requests are only for the waiting ones.
+        if (iqTracker.handleResponse(packet))
+            return;
+
         for (JireconSessionPacketListener l : packetListeners)
         {
             l.handlePacket(packet);
         }
     }
 
-    /**
-     * Add packet sending listener to connection. This method is used just for
-     * debugging.
-     */
-    private void addPacketSendingListener()
-    {
-        sendingListener = new PacketListener()
-        {
-            @Override
-            public void processPacket(Packet packet)
-            {
-                logger.debug("--->: " + packet.toXML());
-            }
-        };
-
-        connection.addPacketSendingListener(sendingListener, new PacketFilter()
-        {
-            @Override
-            public boolean accept(Packet packet)
-            {
-                return true;
-            }
-        });
-    }
-
     /**
      * Add packet receiving listener to connection.
      * <p>
@@ -746,7 +842,6 @@ public class JingleSessionManager
             @Override
             public void processPacket(Packet packet)
             {
-                logger.debug(packet.getClass() + "<---: " + packet.toXML());
                 handlePacket(packet);
             }
         };
@@ -756,14 +851,10 @@ public class JingleSessionManager
             @Override
             public boolean accept(Packet packet)
             {
-                if (null != localFullJid
-                        && !packet.getTo().equals(localFullJid))
-                {
-                    logger.warn("packet rejected: \"to\" is " + packet.getTo()
-                                        + ", but we are " + localFullJid);
-                    return false;
-                }
-                return true;
+                // Stanzas of the other tasks are expected here, so there's
+                // nothing to log.
+                return null == localFullJid
+                    || localFullJid.equals(packet.getTo());
             }
         });
     }
@@ -862,51 +953,85 @@ public class JingleSessionManager
     }
 
     /**
-     * Add a new endpoint to {@link #endpoints}, or update the stored
+     * Get the number of presence packets which went through the media
+     * handling.
+     * 
+     * @return the number of presence packets.
+     */
+    public long getProcessedPresenceCount()
+    {
+        return processedPresences.get();
+    }
+
+    /**
+     * Get the number of presence packets skipped because the media of the
+     * participant didn't change.
+     * 
+     * @return the number of presence packets.
+     */
+    public long getSkippedPresenceCount()
+    {
+        return skippedPresences.get();
+    }
+
+    /**
+     * Get the number of endpoints in the meeting.
+     * 
+     * @return the number of endpoints.
+     */
+    public int getEndpointCount()
+    {
+        synchronized (endpoints)
+        {
+            return endpoints.size();
+        }
+    }
+
+    /**
+     * Add a new endpoint to {@link #endpoints}, or replace the stored
      * information for the endpoint if it is already in the list.
+     * <p>
+     * A new <tt>EndpointInfo</tt> is stored each time, so the ones which have
+     * been handed out in events never change.
      *
      * @param jid The endpoint id.
      * @param ssrcs The SSRCs of the endpoint, according to media type.
      *
-     * @return <tt>true</tt> if the endpoint was added to the list, and
-     * <tt>false</tt> otherwise.
+     * @return the stored endpoint.
      */
-    private boolean addOrUpdateEndpoint(String jid, Map<MediaType, Long> ssrcs)
+    private EndpointInfo addOrUpdateEndpoint(String jid,
+        Map<MediaType, Long> ssrcs)
     {
-        synchronized (endpoints)
+        EndpointInfo endpoint = new EndpointInfo();
+        endpoint.setId(jid);
+        for (MediaType mediaType : new MediaType[]
+        { MediaType.AUDIO, MediaType.VIDEO })
         {
-            boolean added = false;
-            EndpointInfo endpoint = endpoints.get(jid);
-            if (endpoint == null)
-            {
-                endpoint = new EndpointInfo();
-                added = true;
-            }
-            
-            endpoint.setId(jid);
-            for (MediaType mediaType : new MediaType[]
-            { MediaType.AUDIO, MediaType.VIDEO })
-            {
-                endpoint.setSsrc(mediaType, ssrcs.get(mediaType));
-            }
+            final Long ssrc = ssrcs.get(mediaType);
+            if (null != ssrc)
+                endpoint.setSsrc(mediaType, ssrc);
+        }
 
+        synchronized (endpoints)
+        {
             endpoints.put(jid, endpoint);
-            return added;
         }
+        return endpoint;
     }
 
     /**
      * Remove an endpoint with the given JID specified endpoint.
      * 
      * @param jid Indicate which endpoint to remove.
+     * @return the removed endpoint, or null if it wasn't there.
      */
-    private void removeEndpoint(String jid)
+    private EndpointInfo removeEndpoint(String jid)
     {
         logger.debug("Remove Endpoint " + jid);
         
         synchronized (endpoints)
         {
-            endpoints.remove(jid);
+            return endpoints.remove(jid);
         }
     }
 }
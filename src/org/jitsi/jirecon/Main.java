@@ -94,7 +94,8 @@ public class Main
             public void handleEvent(TaskManagerEvent evt)
             {
                 if (evt.getType() == TaskManagerEvent.Type.TASK_ABORTED
-                    || evt.getType() == TaskManagerEvent.Type.TASK_FINISED)
+                    || evt.getType() == TaskManagerEvent.Type.TASK_FINISED
+                    || evt.getType() == TaskManagerEvent.Type.TASK_REJECTED)
                 {
                     taskCount--;
                     System.out.println("Task: " + evt.getMucJid() + " " + evt.getType());
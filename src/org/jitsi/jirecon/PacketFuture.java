@@ -0,0 +1,252 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jivesoftware.smack.packet.*;
+
+/**
+ * <tt>PacketFuture</tt> stands for an XMPP packet which we are expecting, such
+ * as the response of a request or the Jingle session-init. It completes once,
+ * either with the packet or with a failure, for example a timeout.
+ * <p>
+ * The result can be waited for, or handled by a <tt>Listener</tt>, so that no
+ * thread has to block.
+ */
+public class PacketFuture<T extends Packet>
+{
+    /**
+     * The scheduler of packet timeouts, shared by all the futures.
+     */
+    private static final ScheduledExecutorService timeoutScheduler =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "Packet timeout scheduler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * Released once the future has completed.
+     */
+    private final CountDownLatch doneLatch = new CountDownLatch(1);
+
+    /**
+     * The listeners to be notified once the future has completed.
+     */
+    private final List<Listener<T>> listeners = new ArrayList<Listener<T>>();
+
+    /**
+     * Whether the future has completed.
+     */
+    private boolean isDone = false;
+
+    /**
+     * The packet which has been received.
+     */
+    private T packet;
+
+    /**
+     * Why the future has failed, or null if it hasn't.
+     */
+    private Exception failure;
+
+    /**
+     * The scheduled timeout, if any.
+     */
+    private ScheduledFuture<?> timeout;
+
+    /**
+     * Complete the future with the expected packet.
+     * 
+     * @param packet is the packet which has been received.
+     * @return true if the future has been completed by this call, false if it
+     *         had already completed.
+     */
+    public boolean complete(T packet)
+    {
+        return finish(packet, null);
+    }
+
+    /**
+     * Complete the future with a failure.
+     * 
+     * @param cause is the reason of the failure.
+     * @return true if the future has been completed by this call, false if it
+     *         had already completed.
+     */
+    public boolean fail(Exception cause)
+    {
+        return finish(null, cause);
+    }
+
+    /**
+     * Fail the future with a <tt>TimeoutException</tt> if it hasn't completed
+     * within the specified time.
+     * 
+     * @param millis is the time in milliseconds.
+     * @param what describes the expected packet, for the failure message.
+     */
+    public void setTimeout(long millis, final String what)
+    {
+        ScheduledFuture<?> newTimeout = timeoutScheduler.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                fail(new TimeoutException("Timed out waiting for " + what));
+            }
+        }, millis, TimeUnit.MILLISECONDS);
+
+        synchronized (this)
+        {
+            if (isDone)
+            {
+                newTimeout.cancel(false);
+                return;
+            }
+            if (null != timeout)
+                timeout.cancel(false);
+            timeout = newTimeout;
+        }
+    }
+
+    /**
+     * Register a listener which will be notified once the future has
+     * completed. If it already has, the listener is notified at once in the
+     * current thread.
+     * <p>
+     * <strong>Warning:</strong> The listener may be notified in the XMPP
+     * listener thread or in the timeout scheduler thread, it shouldn't do any
+     * long work there.
+     * 
+     * @param listener is the listener to be notified.
+     */
+    public void addListener(Listener<T> listener)
+    {
+        synchronized (this)
+        {
+            if (!isDone)
+            {
+                listeners.add(listener);
+                return;
+            }
+        }
+
+        notifyListener(listener);
+    }
+
+    /**
+     * Wait for the future to complete.
+     * 
+     * @param millis is the maximum time in milliseconds to wait.
+     * @return the received packet.
+     * @throws Exception if the future has failed, or hasn't completed in time.
+     */
+    public T get(long millis)
+        throws Exception
+    {
+        if (!doneLatch.await(millis, TimeUnit.MILLISECONDS))
+            throw new TimeoutException("Timed out waiting for packet.");
+
+        synchronized (this)
+        {
+            if (null != failure)
+                throw failure;
+            return packet;
+        }
+    }
+
+    /**
+     * Whether the future has completed.
+     * 
+     * @return true if the future has completed, otherwise false.
+     */
+    public synchronized boolean isDone()
+    {
+        return isDone;
+    }
+
+    /**
+     * Complete the future and notify the listeners. Only the first call
+     * counts.
+     * 
+     * @param packet is the received packet, or null if the future failed.
+     * @param failure is the reason of the failure, or null if the packet has
+     *            been received.
+     * @return true if the future has been completed by this call.
+     */
+    private boolean finish(T packet, Exception failure)
+    {
+        List<Listener<T>> toNotify;
+        synchronized (this)
+        {
+            if (isDone)
+                return false;
+
+            isDone = true;
+            this.packet = packet;
+            this.failure = failure;
+            if (null != timeout)
+                timeout.cancel(false);
+
+            toNotify = new ArrayList<Listener<T>>(listeners);
+            listeners.clear();
+        }
+        doneLatch.countDown();
+
+        for (Listener<T> l : toNotify)
+            notifyListener(l);
+        return true;
+    }
+
+    /**
+     * Notify a listener of the completion of the future.
+     * 
+     * @param listener is the listener to be notified.
+     */
+    private void notifyListener(Listener<T> listener)
+    {
+        T packet;
+        Exception failure;
+        synchronized (this)
+        {
+            packet = this.packet;
+            failure = this.failure;
+        }
+
+        if (null == failure)
+            listener.packetReceived(packet);
+        else
+            listener.packetFailed(failure);
+    }
+
+    /**
+     * Listener of the completion of a <tt>PacketFuture</tt>.
+     */
+    public interface Listener<T extends Packet>
+    {
+        /**
+         * Fired when the expected packet has been received.
+         * 
+         * @param packet is the received packet.
+         */
+        public void packetReceived(T packet);
+
+        /**
+         * Fired when the future has failed.
+         * 
+         * @param cause is the reason of the failure.
+         */
+        public void packetFailed(Exception cause);
+    }
+}
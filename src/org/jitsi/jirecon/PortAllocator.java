@@ -0,0 +1,134 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+
+/**
+ * <tt>PortAllocator</tt> keeps track of which ports of a range are in use, so
+ * that new ICE components are only bound to ports which are free.
+ * <p>
+ * Allocation goes round the range, starting after the last allocated port, so
+ * that a port which has just been released isn't reused at once.
+ */
+public class PortAllocator
+{
+    /**
+     * The minimum port of the range.
+     */
+    private final int minPort;
+
+    /**
+     * The maximum port of the range.
+     */
+    private final int maxPort;
+
+    /**
+     * The ports in use. Bit <tt>i</tt> stands for port <tt>minPort + i</tt>.
+     */
+    private final BitSet usedPorts;
+
+    /**
+     * The number of ports in use.
+     */
+    private int usedCount = 0;
+
+    /**
+     * Where the next allocation starts looking from, as an index in
+     * {@link #usedPorts}.
+     */
+    private int nextIndex = 0;
+
+    /**
+     * Create an allocator for a range of ports.
+     * 
+     * @param minPort is the minimum port of the range.
+     * @param maxPort is the maximum port of the range.
+     * @throws IllegalArgumentException if the range is not valid.
+     */
+    public PortAllocator(int minPort, int maxPort)
+    {
+        if (minPort <= 0 || maxPort > 65535 || minPort > maxPort)
+        {
+            throw new IllegalArgumentException("Invalid port range: "
+                + minPort + "-" + maxPort);
+        }
+
+        this.minPort = minPort;
+        this.maxPort = maxPort;
+        this.usedPorts = new BitSet(getSize());
+    }
+
+    /**
+     * Allocate a free port.
+     * 
+     * @return the allocated port, or -1 if all the ports are in use.
+     */
+    public synchronized int allocate()
+    {
+        final int size = getSize();
+        if (usedCount >= size)
+            return -1;
+
+        int index = usedPorts.nextClearBit(nextIndex);
+        if (index >= size)
+            index = usedPorts.nextClearBit(0);
+
+        usedPorts.set(index);
+        usedCount++;
+        nextIndex = (index + 1) % size;
+        return minPort + index;
+    }
+
+    /**
+     * Release a port, so that it can be allocated again. Ports which are out
+     * of the range or not in use are ignored.
+     * 
+     * @param port is the port to be released.
+     */
+    public synchronized void release(int port)
+    {
+        if (port < minPort || port > maxPort)
+            return;
+
+        final int index = port - minPort;
+        if (usedPorts.get(index))
+        {
+            usedPorts.clear(index);
+            usedCount--;
+        }
+    }
+
+    /**
+     * Get the number of ports in the range.
+     * 
+     * @return the number of ports in the range.
+     */
+    public int getSize()
+    {
+        return maxPort - minPort + 1;
+    }
+
+    /**
+     * Get the number of ports in use.
+     * 
+     * @return the number of ports in use.
+     */
+    public synchronized int getUsedCount()
+    {
+        return usedCount;
+    }
+
+    /**
+     * Get the number of free ports.
+     * 
+     * @return the number of free ports.
+     */
+    public synchronized int getFreeCount()
+    {
+        return getSize() - usedCount;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+/**
+ * <tt>RecordingSlot</tt> holds the media resources which a <tt>Task</tt> needs
+ * before it can answer a session-init: the ICE agent, the DTLS controls with
+ * their certificates, and the receive-only media streams.
+ * <p>
+ * Preparing them takes a while, so slots can be prepared in advance by
+ * <tt>RecordingSlotPool</tt> and handed to new tasks. A slot is used by only
+ * one task.
+ */
+public class RecordingSlot
+{
+    /**
+     * The instance of <tt>IceUdpTransportManager</tt>.
+     */
+    private final IceUdpTransportManager transportMgr;
+
+    /**
+     * The instance of <tt>DtlsControlManager</tt>.
+     */
+    private final DtlsControlManager dtlsControlMgr;
+
+    /**
+     * The instance of <tt>StreamRecorderManager</tt>.
+     */
+    private final StreamRecorderManager recorderMgr;
+
+    /**
+     * Whether the DTLS controls and the media streams have been created.
+     */
+    private boolean isPrepared = false;
+
+    /**
+     * Create a slot. Only the ICE agent is created here, call
+     * {@link #prepare()} to create the rest.
+     */
+    public RecordingSlot()
+    {
+        transportMgr = new IceUdpTransportManager();
+        dtlsControlMgr = new DtlsControlManager();
+        recorderMgr = new StreamRecorderManager();
+    }
+
+    /**
+     * Create the DTLS controls and the media streams of this slot. It does
+     * nothing if the slot has already been prepared.
+     */
+    public synchronized void prepare()
+    {
+        if (isPrepared)
+            return;
+
+        recorderMgr.init(dtlsControlMgr.getAllDtlsControl());
+        isPrepared = true;
+    }
+
+    /**
+     * Whether this slot has been prepared.
+     * 
+     * @return true if {@link #prepare()} has been done, otherwise false.
+     */
+    public synchronized boolean isPrepared()
+    {
+        return isPrepared;
+    }
+
+    /**
+     * Release the resources held by this slot. It is used for slots which
+     * have never been handed to a task, the task frees its slot itself.
+     */
+    public void free()
+    {
+        transportMgr.free();
+        recorderMgr.stopRecording();
+    }
+
+    public IceUdpTransportManager getTransportManager()
+    {
+        return transportMgr;
+    }
+
+    public DtlsControlManager getDtlsControlManager()
+    {
+        return dtlsControlMgr;
+    }
+
+    public StreamRecorderManager getRecorderManager()
+    {
+        return recorderMgr;
+    }
+}
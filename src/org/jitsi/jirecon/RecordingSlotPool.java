@@ -0,0 +1,189 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.util.*;
+
+/**
+ * A pool of prepared <tt>RecordingSlot</tt>s. New tasks take a slot from it
+ * instead of creating their ICE agent, DTLS controls and media streams when
+ * the start request arrives. The pool is replenished in background.
+ */
+public class RecordingSlotPool
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(RecordingSlotPool.class.getName());
+
+    /**
+     * The number of prepared slots the pool tries to keep.
+     */
+    private final int size;
+
+    /**
+     * The <tt>ExecutorService</tt> on which slots are prepared.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The prepared slots which haven't been handed out yet.
+     */
+    private final LinkedList<RecordingSlot> idleSlots =
+        new LinkedList<RecordingSlot>();
+
+    /**
+     * The number of slots which are being prepared. It is guarded by
+     * {@link #idleSlots}.
+     */
+    private int preparingSlots = 0;
+
+    /**
+     * Whether the pool has been closed. It is guarded by {@link #idleSlots}.
+     */
+    private boolean isClosed = false;
+
+    /**
+     * Create a pool.
+     * 
+     * @param size is the number of prepared slots to keep. The pool does
+     *            nothing if it is not positive.
+     * @param executor is the <tt>ExecutorService</tt> on which slots are
+     *            prepared.
+     */
+    public RecordingSlotPool(int size, ExecutorService executor)
+    {
+        this.size = size;
+        this.executor = executor;
+    }
+
+    /**
+     * Start filling the pool in background.
+     */
+    public void start()
+    {
+        replenish();
+    }
+
+    /**
+     * Take a prepared slot from the pool, and prepare a new one in background.
+     * 
+     * @return a prepared slot, or null if there isn't any at the moment.
+     */
+    public RecordingSlot acquire()
+    {
+        RecordingSlot slot;
+        synchronized (idleSlots)
+        {
+            slot = idleSlots.poll();
+        }
+
+        if (size > 0 && null == slot)
+            logger.info("No prepared recording slot available.");
+
+        replenish();
+        return slot;
+    }
+
+    /**
+     * Close the pool and free the slots which haven't been handed out.
+     */
+    public void close()
+    {
+        List<RecordingSlot> slots;
+        synchronized (idleSlots)
+        {
+            isClosed = true;
+            slots = new ArrayList<RecordingSlot>(idleSlots);
+            idleSlots.clear();
+        }
+
+        for (RecordingSlot slot : slots)
+        {
+            slot.free();
+        }
+    }
+
+    /**
+     * Get the number of prepared slots which haven't been handed out.
+     * 
+     * @return the number of idle slots.
+     */
+    public int getIdleSlotCount()
+    {
+        synchronized (idleSlots)
+        {
+            return idleSlots.size();
+        }
+    }
+
+    /**
+     * Schedule the preparation of as many slots as the pool is missing.
+     */
+    private void replenish()
+    {
+        int missing;
+        synchronized (idleSlots)
+        {
+            if (isClosed)
+                return;
+
+            missing = size - idleSlots.size() - preparingSlots;
+            if (missing <= 0)
+                return;
+            preparingSlots += missing;
+        }
+
+        for (int i = 0; i < missing; i++)
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    prepareSlot();
+                }
+            });
+        }
+    }
+
+    /**
+     * Prepare a slot and put it into the pool.
+     */
+    private void prepareSlot()
+    {
+        RecordingSlot slot = null;
+        try
+        {
+            slot = new RecordingSlot();
+            slot.prepare();
+        }
+        catch (Exception e)
+        {
+            logger.warn("Failed to prepare a recording slot, "
+                + e.getMessage());
+            if (null != slot)
+                slot.free();
+            slot = null;
+        }
+
+        boolean keep;
+        synchronized (idleSlots)
+        {
+            preparingSlots--;
+            keep = !isClosed && null != slot;
+            if (keep)
+                idleSlots.add(slot);
+        }
+
+        if (!keep && null != slot)
+            slot.free();
+    }
+}
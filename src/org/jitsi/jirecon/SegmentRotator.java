@@ -0,0 +1,198 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.jitsi.jirecon.metadata.*;
+import org.jitsi.util.*;
+
+/**
+ * Moves a segmented recording to a new segment at a fixed interval. Each
+ * segment gets a directory named "segment-NNNN" under the output directory,
+ * and is recorded in the <tt>SegmentManifest</tt>.
+ * <p>
+ * A rotation holds the lock of the rotator from start to end, so
+ * {@link #stop()} waits for a running rotation, and no segment is started
+ * once it has returned.
+ */
+public class SegmentRotator
+{
+    /**
+     * The <tt>Logger</tt>.
+     */
+    private static final Logger logger = Logger
+        .getLogger(SegmentRotator.class);
+
+    /**
+     * The manifest of the segments.
+     */
+    private final SegmentManifest manifest;
+
+    /**
+     * The directory holding the segment directories.
+     */
+    private final File outputDir;
+
+    /**
+     * The duration of a segment in milliseconds.
+     */
+    private final long duration;
+
+    /**
+     * The scheduler of the rotations.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Moves the recording to the new segments.
+     */
+    private final Listener listener;
+
+    /**
+     * The index of the current segment.
+     */
+    private int segmentIndex = 0;
+
+    /**
+     * Whether {@link #stop()} has been called.
+     */
+    private boolean stopped = false;
+
+    /**
+     * The scheduled rotation to the next segment.
+     */
+    private ScheduledFuture<?> rotation;
+
+    /**
+     * Create a rotator.
+     * 
+     * @param manifest is the manifest of the segments.
+     * @param outputDir is the directory holding the segment directories.
+     * @param duration is the duration of a segment in milliseconds.
+     * @param scheduler is the scheduler of the rotations.
+     * @param listener moves the recording to the new segments.
+     */
+    public SegmentRotator(SegmentManifest manifest, File outputDir,
+        long duration, ScheduledExecutorService scheduler, Listener listener)
+    {
+        this.manifest = manifest;
+        this.outputDir = outputDir;
+        this.duration = duration;
+        this.scheduler = scheduler;
+        this.listener = listener;
+    }
+
+    /**
+     * Start the first segment and schedule the rotation to the next one. The
+     * caller starts recording into the first segment itself.
+     * 
+     * @return the path of the directory of the first segment.
+     * @throws IOException if the directory can't be created.
+     */
+    public synchronized String start()
+        throws IOException
+    {
+        final String dir = nextSegmentDir();
+        scheduleRotation();
+        return dir;
+    }
+
+    /**
+     * Stop rotating. A rotation which is running is waited for.
+     */
+    public synchronized void stop()
+    {
+        stopped = true;
+        if (null != rotation)
+            rotation.cancel(false);
+    }
+
+    /**
+     * Get the index of the current segment.
+     * 
+     * @return the index, starting at 1.
+     */
+    public synchronized int getSegmentIndex()
+    {
+        return segmentIndex;
+    }
+
+    /**
+     * Create the directory of the next segment and record it in the
+     * manifest.
+     * 
+     * @return the path of the directory.
+     * @throws IOException if the directory can't be created.
+     */
+    private String nextSegmentDir()
+        throws IOException
+    {
+        segmentIndex++;
+        final File dir =
+            new File(outputDir, String.format("segment-%04d", segmentIndex));
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Could not create segment directory " + dir);
+        manifest.startSegment(segmentIndex, dir, System.currentTimeMillis());
+        return dir.getPath();
+    }
+
+    /**
+     * Schedule the rotation to the next segment.
+     */
+    private void scheduleRotation()
+    {
+        rotation = scheduler.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                rotate();
+            }
+        }, duration, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Move the recording to the next segment, unless the rotator has been
+     * stopped.
+     */
+    private synchronized void rotate()
+    {
+        if (stopped)
+            return;
+
+        try
+        {
+            listener.rotate(nextSegmentDir());
+            logger.info("Rotated recording to segment " + segmentIndex);
+        }
+        catch (Exception e)
+        {
+            // The recording goes on in the previous segment.
+            logger.error("Failed to rotate to segment " + segmentIndex + ", "
+                + e.getMessage());
+        }
+        scheduleRotation();
+    }
+
+    /**
+     * Moves the recording to the new segments.
+     */
+    public interface Listener
+    {
+        /**
+         * Start recording into a new segment, then stop recording into the
+         * previous one.
+         * 
+         * @param dir is the directory of the new segment.
+         * @throws Exception if the recording can't be moved, in which case it
+         *             must go on in the previous segment.
+         */
+        public void rotate(String dir)
+            throws Exception;
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
+
+import org.jitsi.util.*;
+import org.jivesoftware.smack.*;
+import org.jivesoftware.smack.filter.*;
+import org.jivesoftware.smack.packet.*;
+import org.jivesoftware.smack.util.StringUtils;
+
+/**
+ * <tt>StanzaDispatcher</tt> is the only packet listener the tasks need on an
+ * <tt>XMPPConnection</tt>. It routes every received stanza to the task which
+ * owns it, looking it up by Jingle session id or by the bare JID of the MUC
+ * the stanza comes from, instead of letting every task filter every stanza.
+ * <p>
+ * Each task has its own queue, which is drained on an <tt>Executor</tt>, so
+ * the stanzas of a task are handled in order without holding the connection
+ * thread.
+ */
+public class StanzaDispatcher
+    implements PacketListener
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(StanzaDispatcher.class.getName());
+
+    /**
+     * The maximum number of stanzas a route handles before it gives its thread
+     * back to the executor.
+     */
+    private static final int MAX_DRAIN_BATCH = 64;
+
+    /**
+     * The <tt>Executor</tt> on which the routes are drained.
+     */
+    private final Executor executor;
+
+    /**
+     * The routes by bare MUC JID, in lower case.
+     */
+    private final ConcurrentMap<String, Route> routesByRoom =
+        new ConcurrentHashMap<String, Route>();
+
+    /**
+     * The routes by Jingle session id.
+     */
+    private final ConcurrentMap<String, Route> routesBySid =
+        new ConcurrentHashMap<String, Route>();
+
+    /**
+     * The number of stanzas which have been handed to their route handler.
+     */
+    private final AtomicLong dispatchedCount = new AtomicLong();
+
+    /**
+     * The number of stanzas which didn't belong to any route.
+     */
+    private final AtomicLong unroutedCount = new AtomicLong();
+
+    /**
+     * The sum of the times, in nanoseconds, the dispatched stanzas have spent
+     * in their queue.
+     */
+    private final AtomicLong totalDispatchLatency = new AtomicLong();
+
+    /**
+     * The number of stanzas queued in all the routes.
+     */
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    /**
+     * The highest value of {@link #queueDepth}.
+     */
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    /**
+     * Create a dispatcher.
+     * 
+     * @param executor is the <tt>Executor</tt> on which the stanzas are
+     *            handled.
+     */
+    public StanzaDispatcher(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Start dispatching the stanzas received by a connection.
+     * 
+     * @param connection is the <tt>XMPPConnection</tt>.
+     */
+    public void attach(XMPPConnection connection)
+    {
+        connection.addPacketListener(this, new PacketFilter()
+        {
+            @Override
+            public boolean accept(Packet packet)
+            {
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Stop dispatching the stanzas received by a connection.
+     * 
+     * @param connection is the <tt>XMPPConnection</tt>.
+     */
+    public void detach(XMPPConnection connection)
+    {
+        connection.removePacketListener(this);
+    }
+
+    /**
+     * Register a route for the stanzas coming from a MUC.
+     * 
+     * @param roomJid is the bare JID of the MUC.
+     * @param handler handles the stanzas of the route.
+     * @return the registered <tt>Route</tt>.
+     */
+    public Route register(String roomJid, PacketListener handler)
+    {
+        final Route route = new Route(roomJid.toLowerCase(), handler);
+        final Route old = routesByRoom.put(route.roomJid, route);
+        if (null != old)
+        {
+            logger.warn("Route of " + roomJid + " replaced.");
+            unregister(old);
+        }
+        return route;
+    }
+
+    /**
+     * Add a Jingle session to a route, so that the Jingle stanzas of the
+     * session reach it even if they don't come from its MUC.
+     * 
+     * @param sid is the Jingle session id.
+     * @param route is the <tt>Route</tt>.
+     */
+    public void registerSession(String sid, Route route)
+    {
+        if (null == sid || route.isClosed)
+            return;
+
+        synchronized (route.sids)
+        {
+            route.sids.add(sid);
+        }
+        routesBySid.put(sid, route);
+    }
+
+    /**
+     * Remove a route. Its queued stanzas are dropped.
+     * 
+     * @param route is the <tt>Route</tt> to be removed.
+     */
+    public void unregister(Route route)
+    {
+        route.isClosed = true;
+        routesByRoom.remove(route.roomJid, route);
+        synchronized (route.sids)
+        {
+            for (String sid : route.sids)
+                routesBySid.remove(sid, route);
+            route.sids.clear();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Put the stanza into the queue of its route.
+     */
+    @Override
+    public void processPacket(Packet packet)
+    {
+        final Route route = findRoute(packet);
+        if (null == route)
+        {
+            unroutedCount.incrementAndGet();
+            return;
+        }
+
+        route.enqueue(packet);
+    }
+
+    /**
+     * Find the route of a stanza.
+     * 
+     * @param packet is the stanza.
+     * @return the <tt>Route</tt>, or null if the stanza doesn't belong to any.
+     */
+    private Route findRoute(Packet packet)
+    {
+        if (packet instanceof JingleIQ)
+        {
+            final String sid = ((JingleIQ) packet).getSID();
+            if (null != sid)
+            {
+                final Route route = routesBySid.get(sid);
+                if (null != route)
+                    return route;
+            }
+        }
+
+        final String from = packet.getFrom();
+        if (null == from)
+            return null;
+
+        return routesByRoom.get(StringUtils.parseBareAddress(from)
+            .toLowerCase());
+    }
+
+    /**
+     * Get the number of stanzas which have been handed to their route handler.
+     * 
+     * @return the number of dispatched stanzas.
+     */
+    public long getDispatchedCount()
+    {
+        return dispatchedCount.get();
+    }
+
+    /**
+     * Get the number of stanzas which didn't belong to any route.
+     * 
+     * @return the number of unrouted stanzas.
+     */
+    public long getUnroutedCount()
+    {
+        return unroutedCount.get();
+    }
+
+    /**
+     * Get the average time the dispatched stanzas have spent in their queue.
+     * 
+     * @return the average dispatch latency in microseconds.
+     */
+    public long getAverageDispatchLatency()
+    {
+        final long count = dispatchedCount.get();
+        return 0 == count ? 0 : totalDispatchLatency.get() / count / 1000;
+    }
+
+    /**
+     * Get the number of stanzas queued in all the routes.
+     * 
+     * @return the current queue depth.
+     */
+    public int getQueueDepth()
+    {
+        return queueDepth.get();
+    }
+
+    /**
+     * Get the highest number of stanzas which have been queued at the same
+     * time.
+     * 
+     * @return the maximum queue depth.
+     */
+    public int getMaxQueueDepth()
+    {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * Get a human-readable summary of the metrics of the dispatcher.
+     * 
+     * @return the summary.
+     */
+    public String getStatistics()
+    {
+        return "routes: " + routesByRoom.size() + ", dispatched: "
+            + getDispatchedCount() + ", unrouted: " + getUnroutedCount()
+            + ", average latency: " + getAverageDispatchLatency()
+            + "us, queue depth: " + getQueueDepth() + " (max "
+            + getMaxQueueDepth() + ")";
+    }
+
+    /**
+     * The route of the stanzas of a task.
+     */
+    public class Route
+    {
+        /**
+         * The bare JID of the MUC, in lower case.
+         */
+        private final String roomJid;
+
+        /**
+         * Handles the stanzas of the route.
+         */
+        private final PacketListener handler;
+
+        /**
+         * The Jingle session ids of the route.
+         */
+        private final List<String> sids = new ArrayList<String>();
+
+        /**
+         * The stanzas waiting to be handled, with the time they were queued.
+         */
+        private final Queue<QueuedStanza> queue =
+            new ConcurrentLinkedQueue<QueuedStanza>();
+
+        /**
+         * Whether the queue is being drained, or is scheduled to be.
+         */
+        private final AtomicBoolean isDraining = new AtomicBoolean();
+
+        /**
+         * Whether the route has been removed.
+         */
+        private volatile boolean isClosed = false;
+
+        /**
+         * Create a route.
+         * 
+         * @param roomJid is the bare JID of the MUC, in lower case.
+         * @param handler handles the stanzas of the route.
+         */
+        private Route(String roomJid, PacketListener handler)
+        {
+            this.roomJid = roomJid;
+            this.handler = handler;
+        }
+
+        /**
+         * Queue a stanza and make sure the queue will be drained.
+         * 
+         * @param packet is the stanza.
+         */
+        private void enqueue(Packet packet)
+        {
+            queue.add(new QueuedStanza(packet));
+
+            final int depth = queueDepth.incrementAndGet();
+            int max;
+            while (depth > (max = maxQueueDepth.get())
+                && !maxQueueDepth.compareAndSet(max, depth))
+                ;
+
+            scheduleDrain();
+        }
+
+        /**
+         * Schedule the draining of the queue, unless it is already.
+         */
+        private void scheduleDrain()
+        {
+            if (!isDraining.compareAndSet(false, true))
+                return;
+
+            try
+            {
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        drain();
+                    }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                // We're shutting down, nobody will handle them.
+                queueDepth.addAndGet(-queue.size());
+                queue.clear();
+                isDraining.set(false);
+            }
+        }
+
+        /**
+         * Handle the queued stanzas, in order.
+         */
+        private void drain()
+        {
+            QueuedStanza queued;
+            int handled = 0;
+            while (handled < MAX_DRAIN_BATCH && null != (queued = queue.poll()))
+            {
+                queueDepth.decrementAndGet();
+                handled++;
+                if (isClosed)
+                    continue;
+
+                totalDispatchLatency.addAndGet(System.nanoTime()
+                    - queued.queuedTime);
+                dispatchedCount.incrementAndGet();
+                try
+                {
+                    handler.processPacket(queued.packet);
+                }
+                catch (Throwable t)
+                {
+                    logger.error("Failed to handle stanza of " + roomJid
+                        + ", " + t);
+                }
+            }
+
+            isDraining.set(false);
+            if (!queue.isEmpty())
+                scheduleDrain();
+        }
+    }
+
+    /**
+     * A stanza waiting in the queue of a route.
+     */
+    private static class QueuedStanza
+    {
+        /**
+         * The stanza.
+         */
+        private final Packet packet;
+
+        /**
+         * When the stanza was queued, in nanoseconds.
+         */
+        private final long queuedTime = System.nanoTime();
+
+        private QueuedStanza(Packet packet)
+        {
+            this.packet = packet;
+        }
+    }
+}
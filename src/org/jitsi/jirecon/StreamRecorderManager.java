@@ -13,13 +13,16 @@ import java.util.concurrent.*;
 import org.jitsi.impl.neomedia.recording.*;
 import org.jitsi.impl.neomedia.rtp.translator.*;
 import org.jitsi.jirecon.TaskEvent.*;
+import org.jitsi.jirecon.capture.*;
 import org.jitsi.jirecon.datachannel.*;
+import org.jitsi.jirecon.metadata.*;
+import org.jitsi.jirecon.utils.*;
+import org.jitsi.service.configuration.*;
 import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.neomedia.format.*;
 import org.jitsi.service.neomedia.recording.*;
 import org.jitsi.util.*;
-import org.json.simple.*;
 import org.json.simple.parser.*;
 
  /**
@@ -63,6 +66,58 @@ public class StreamRecorderManager
     private Map<MediaType, Recorder> recorders =
         new HashMap<MediaType, Recorder>();
 
+    /**
+     * The scheduler of segment rotations, shared by all recorder managers.
+     */
+    private static final ScheduledExecutorService rotationScheduler =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "Jirecon segment rotation");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * The duration of a segment in milliseconds, or 0 if the recording isn't
+     * segmented.
+     */
+    private long segmentDuration = 0;
+
+    /**
+     * The segments of the recording, if it is segmented.
+     */
+    private SegmentManifest manifest;
+
+    /**
+     * Moves the recording to the next segment, if it is segmented.
+     */
+    private SegmentRotator rotator;
+
+    /**
+     * Whether the packets are captured into raw capture files instead of
+     * being recorded.
+     */
+    private boolean rawCapture = false;
+
+    /**
+     * The map between <tt>MediaType</tt> and the <tt>RtpCaptureWriter</tt>
+     * tapping its <tt>RTPTranslator</tt>.
+     */
+    private final Map<MediaType, RtpCaptureWriter> captureWriters =
+        new HashMap<MediaType, RtpCaptureWriter>();
+
+    /**
+     * The <tt>RTPTranslator.WriteFilter</tt>s added to the translators of each
+     * <tt>MediaType</tt>, applied when the translators are created.
+     */
+    private final Map<MediaType, List<RTPTranslator.WriteFilter>>
+        writeFilters =
+            new HashMap<MediaType, List<RTPTranslator.WriteFilter>>();
+
     /**
      * SCTP data channel. It's used for receiving some event packets, such as
      * SPEAKER_CHANGE event.
@@ -82,9 +137,17 @@ public class StreamRecorderManager
         new ArrayList<TaskEventListener>();
 
     /**
-     * Active endpoints in the meeting currently.
+     * Active endpoints in the meeting currently, map between endpoint id and
+     * endpoint.
      */
-    private List<EndpointInfo> endpoints = new ArrayList<EndpointInfo>();
+    private final Map<String, EndpointInfo> endpoints =
+        new LinkedHashMap<String, EndpointInfo>();
+
+    /**
+     * The index of {@link #endpoints}, rebuilt whenever they change. The
+     * recorder events look the endpoints up in it without locking.
+     */
+    private volatile EndpointIndex endpointIndex = EndpointIndex.EMPTY;
 
     /**
      * The endpoints sync root.
@@ -123,10 +186,29 @@ public class StreamRecorderManager
      *            <tt>DtlsControl</tt> which is used for SRTP transfer.
      */
     public void init(String outputDir, Map<MediaType, DtlsControl> dtlsControls)
+    {
+        setOutputDir(outputDir);
+        init(dtlsControls);
+    }
+
+    /**
+     * Initialize <tt>JireconRecorder</tt> without deciding where to output the
+     * files yet, so that it can be done before the recording is requested.
+     * {@link #setOutputDir(String)} must be called before the recording starts.
+     * <p>
+     * <strong>Warning:</strong> LibJitsi must be started before calling this
+     * method.
+     * 
+     * @param dtlsControls is the map between <tt>MediaType</tt> and
+     *            <tt>DtlsControl</tt> which is used for SRTP transfer.
+     */
+    public void init(Map<MediaType, DtlsControl> dtlsControls)
     {
         this.mediaService = LibJitsi.getMediaService();
-        this.outputDir = outputDir;
         logger.setLevelAll();
+        rawCapture =
+            LibJitsi.getConfigurationService().getBoolean(
+                ConfigurationKey.RAW_CAPTURE_KEY, false);
 
         /*
          * NOTE: DtlsControl will be managed by MediaStream. So we don't need to
@@ -134,7 +216,53 @@ public class StreamRecorderManager
          */
         createMediaStreams(dtlsControls);
         createDataChannel(dtlsControls.get(MediaType.DATA));
+    }
+
+    /**
+     * Set whether the packets are captured into raw capture files instead of
+     * being recorded. It overrides the configuration and must be called
+     * before the recording starts.
+     * 
+     * @param rawCapture whether to capture the packets.
+     */
+    public void setRawCapture(boolean rawCapture)
+    {
+        this.rawCapture = rawCapture;
+    }
+
+    /**
+     * Add a <tt>RTPTranslator.WriteFilter</tt> to the translator of a
+     * <tt>MediaType</tt>. It sees every packet written to the recorder and may
+     * drop it.
+     * 
+     * @param mediaType is the <tt>MediaType</tt> of the translator.
+     * @param filter is the filter.
+     */
+    public void addWriteFilter(MediaType mediaType,
+        RTPTranslator.WriteFilter filter)
+    {
+        List<RTPTranslator.WriteFilter> filters = writeFilters.get(mediaType);
+        if (null == filters)
+        {
+            filters = new ArrayList<RTPTranslator.WriteFilter>();
+            writeFilters.put(mediaType, filters);
+        }
+        filters.add(filter);
 
+        final RTPTranslator translator = rtpTranslators.get(mediaType);
+        if (null != translator)
+            translator.addWriteFilter(filter);
+    }
+
+    /**
+     * Set where to output the files.
+     * 
+     * @param outputDir decide where to output the files. The directory must be
+     *            existed and writable.
+     */
+    public void setOutputDir(String outputDir)
+    {
+        this.outputDir = outputDir;
     }
 
     /**
@@ -160,8 +288,7 @@ public class StreamRecorderManager
          * Here we don't guarantee whether file path is available.
          * RecorderEventHandlerImpl needs check this and do some job.
          */
-        final String filename = "metadata.json";
-        eventHandler = new RecorderEventHandlerImpl(outputDir + "/" + filename);
+        eventHandler = new RecorderEventHandlerImpl(outputDir);
 
         /*
          * 1. Open sctp data channel, if there is data connector and target.
@@ -185,7 +312,13 @@ public class StreamRecorderManager
         prepareRecorders();
 
         /*
-         * 5. Start recording audio and video streams.
+         * 5. Tap the translators if the packets are captured.
+         */
+        if (rawCapture)
+            startCapture(formatAndDynamicPTs);
+
+        /*
+         * 6. Start recording audio and video streams.
          */
         startRecordingStreams();
     }
@@ -196,6 +329,9 @@ public class StreamRecorderManager
     public void stopRecording()
     {
         stopRecordingStreams();
+        // Events coming late, from the data channel, are dropped.
+        if (null != eventHandler)
+            eventHandler.closeMetadata();
         stopReceivingStreams();
         closeDataChannel();
         /*
@@ -273,6 +409,19 @@ public class StreamRecorderManager
     {
         logger.debug("prepareRecorders");
 
+        recorders.putAll(createRecorders());
+
+        updateSynchronizers();
+    }
+
+    /**
+     * Create a recorder for each <tt>RTPTranslator</tt>.
+     * 
+     * @return the map between <tt>MediaType</tt> and <tt>Recorder</tt>.
+     */
+    private Map<MediaType, Recorder> createRecorders()
+    {
+        Map<MediaType, Recorder> created = new HashMap<MediaType, Recorder>();
         for (Entry<MediaType, RTPTranslator> e : rtpTranslators.entrySet())
         {
             Recorder recorder = mediaService.createRecorder(e.getValue());
@@ -280,10 +429,10 @@ public class StreamRecorderManager
             // a Synchronizer instance. Otherwise audio and video will not be
             // synced.
             recorder.setSynchronizer(getSynchronizer());
-            recorders.put(e.getKey(), recorder);
+            recorder.setEventHandler(eventHandler);
+            created.put(e.getKey(), recorder);
         }
-
-        updateSynchronizers();
+        return created;
     }
 
     /**
@@ -357,25 +506,147 @@ public class StreamRecorderManager
                 "Could not start recording streams, recorders are already recording.");
         }
 
-        for (Entry<MediaType, Recorder> entry : recorders.entrySet())
+        isRecording = true;
+        segmentDuration =
+            1000L * LibJitsi.getConfigurationService().getLong(
+                ConfigurationKey.SEGMENT_DURATION_KEY, 0);
+        if (segmentDuration > 0)
+        {
+            manifest = new SegmentManifest(new File(outputDir));
+            rotator =
+                new SegmentRotator(manifest, new File(outputDir),
+                    segmentDuration, rotationScheduler,
+                    new SegmentRotator.Listener()
+                    {
+                        @Override
+                        public void rotate(String dir)
+                            throws Exception
+                        {
+                            rotateRecorders(dir);
+                        }
+                    });
+            startRecorders(recorders, rotator.start());
+        }
+        else
+        {
+            startRecorders(recorders, outputDir);
+        }
+    }
+
+    /**
+     * Start recorders.
+     * 
+     * @param toStart is the map between <tt>MediaType</tt> and the
+     *            <tt>Recorder</tt> to start.
+     * @param dir is the directory where the recorders write their files.
+     * @throws Exception if some recorder failed to start.
+     */
+    private void startRecorders(Map<MediaType, Recorder> toStart, String dir)
+        throws Exception
+    {
+        for (Entry<MediaType, Recorder> entry : toStart.entrySet())
         {
             final Recorder recorder = entry.getValue();
             recorder.setEventHandler(eventHandler);
             try
             {
-                recorder.start(entry.getKey().toString(), outputDir);
+                recorder.start(entry.getKey().toString(), dir);
             }
             catch (Exception e)
             {
                 throw new Exception("Could not start recording streams, " + e.getMessage());
             }
         }
-        isRecording = true;
+    }
+
+    /**
+     * Move the recording to a new segment. The new recorders are started
+     * before the old ones are stopped, so no packet falls between the
+     * segments.
+     * 
+     * @param dir is the directory of the new segment.
+     * @throws Exception if the new recorders failed to start, in which case
+     *             the old ones go on.
+     */
+    private void rotateRecorders(String dir)
+        throws Exception
+    {
+        final Map<MediaType, Recorder> old;
+        synchronized (endpointsSyncRoot)
+        {
+            old = new HashMap<MediaType, Recorder>(recorders);
+        }
+
+        Map<MediaType, Recorder> next = createRecorders();
+        try
+        {
+            startRecorders(next, dir);
+        }
+        catch (Exception e)
+        {
+            for (Recorder recorder : next.values())
+                recorder.stop();
+            throw e;
+        }
+
+        synchronized (endpointsSyncRoot)
+        {
+            recorders.putAll(next);
+        }
+        for (Recorder recorder : old.values())
+            recorder.stop();
+    }
+
+    /**
+     * Tap every <tt>RTPTranslator</tt> with a <tt>RtpCaptureWriter</tt>. The
+     * writers consume the packets, so the recorders are only there to be the
+     * destinations of the translators and don't record anything.
+     * 
+     * @param formatAndPTs is the map between <tt>MediaType</tt> and the
+     *            payload types of its <tt>MediaFormat</tt>s.
+     * @throws IOException if the formats of the capture can't be written.
+     */
+    private void startCapture(
+        Map<MediaType, Map<MediaFormat, Byte>> formatAndPTs)
+        throws IOException
+    {
+        final File dir = new File(outputDir);
+        RtpCaptureWriter.writeFormats(dir, formatAndPTs);
+
+        final int chunkSize =
+            LibJitsi.getConfigurationService().getInt(
+                ConfigurationKey.RAW_CAPTURE_CHUNK_SIZE_KEY, 16 * 1024 * 1024);
+        for (Entry<MediaType, RTPTranslator> e : rtpTranslators.entrySet())
+        {
+            final RtpCaptureWriter writer =
+                new RtpCaptureWriter(dir, e.getKey(), chunkSize);
+            e.getValue().addWriteFilter(writer);
+            captureWriters.put(e.getKey(), writer);
+        }
+        logger.info("Capturing raw packets into " + outputDir);
+    }
+
+    /**
+     * Remove the <tt>RtpCaptureWriter</tt>s from the <tt>RTPTranslator</tt>s
+     * and close their files.
+     */
+    private void stopCapture()
+    {
+        for (Entry<MediaType, RtpCaptureWriter> e : captureWriters.entrySet())
+        {
+            final RTPTranslator translator = rtpTranslators.get(e.getKey());
+            if (null != translator)
+                translator.removeWriteFilter(e.getValue());
+            e.getValue().close();
+        }
+        captureWriters.clear();
     }
 
     private void closeDataChannel()
     {
-        dataChannel.disconnect();
+        // The task may be stopped before this manager has been initialized.
+        if (null != dataChannel)
+            dataChannel.disconnect();
     }
 
     /**
@@ -388,12 +659,23 @@ public class StreamRecorderManager
         if (!isRecording)
             return;
 
-        for (Entry<MediaType, Recorder> e : recorders.entrySet())
+        // Wait for a running rotation, the manifest must not change after.
+        if (null != rotator)
+            rotator.stop();
+        final List<Recorder> toStop;
+        synchronized (endpointsSyncRoot)
         {
-            e.getValue().stop();
+            toStop = new ArrayList<Recorder>(recorders.values());
+            recorders.clear();
+            isRecording = false;
         }
-        recorders.clear();
-        isRecording = false;
+        for (Recorder recorder : toStop)
+        {
+            recorder.stop();
+        }
+        stopCapture();
+        if (null != manifest)
+            manifest.endSegment(System.currentTimeMillis());
     }
 
     /**
@@ -402,10 +684,8 @@ public class StreamRecorderManager
     private void stopReceivingStreams()
     {
         logger.debug("Stop receiving streams");
-        
-        if (!isReceiving)
-            return;
 
+        // Streams which have never been started have to be closed as well.
         for (Map.Entry<MediaType, MediaStream> e : streams.entrySet())
         {
             e.getValue().close();
@@ -491,6 +771,13 @@ public class StreamRecorderManager
              */
             ((RTPTranslatorImpl) translator).setLocalSSRC(localSsrcs
                 .get(mediaType));
+            final List<RTPTranslator.WriteFilter> filters =
+                writeFilters.get(mediaType);
+            if (null != filters)
+            {
+                for (RTPTranslator.WriteFilter filter : filters)
+                    translator.addWriteFilter(filter);
+            }
             rtpTranslators.put(mediaType, translator);
         }
         return translator;
@@ -509,30 +796,10 @@ public class StreamRecorderManager
      */
     private long getAssociatedSsrc(long ssrc, MediaType mediaType)
     {
-        synchronized (endpointsSyncRoot)
-        {
-            if (endpoints != null && !endpoints.isEmpty())
-            {
-                for (EndpointInfo endpoint : endpoints)
-                {
-                    Map<MediaType, Long> ssrcs = endpoint.getSsrcs();
-
-                    if (ssrcs.size() < 2)
-                        continue;
-
-                    if (ssrcs.containsValue(ssrc))
-                    {
-                        return ssrcs.get(mediaType);
-                    }
-                }
-            }
-            else
-            {
-                logger.warn("The endpoints collection is empty!");
-            }
-        }
-
-        return -1;
+        final EndpointIndex index = endpointIndex;
+        if (index.isEmpty())
+            logger.warn("The endpoints collection is empty!");
+        return index.getAssociatedSsrc(ssrc, mediaType);
     }
 
     /**
@@ -548,26 +815,10 @@ public class StreamRecorderManager
      */
     private long getEndpointSsrc(String endpointId, MediaType mediaType)
     {
-        synchronized (endpointsSyncRoot)
-        {
-            if (endpoints != null && !endpoints.isEmpty())
-            {
-                for (EndpointInfo endpoint : endpoints)
-                {
-                    if (0 == endpoint.getId().compareTo(endpointId)
-                        || 0 == endpoint.getBareId().compareTo(endpointId))
-                    {
-                        return endpoint.getSsrc(mediaType);
-                    }
-                }
-            }
-            else
-            {
-                logger.warn("The endpoints collection is empty!");
-            }
-
-            return -1;
-        }
+        final EndpointIndex index = endpointIndex;
+        if (index.isEmpty())
+            logger.warn("The endpoints collection is empty!");
+        return index.getEndpointSsrc(endpointId, mediaType);
     }
 
     /**
@@ -579,37 +830,57 @@ public class StreamRecorderManager
      * found
      */
     private String getEndpointId(long ssrc, MediaType mediaType)
+    {
+        final EndpointIndex index = endpointIndex;
+        if (index.isEmpty())
+            logger.warn("The endpoints collection is empty!");
+        final String endpointId = index.getEndpointId(ssrc, mediaType);
+        return null == endpointId ? "" : endpointId;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setEndpoints(List<EndpointInfo> newEndpoints)
     {
         synchronized (endpointsSyncRoot)
         {
-            if (endpoints != null && !endpoints.isEmpty())
-            {
-                for (EndpointInfo endpoint : endpoints)
-                {
-                    if (endpoint.getSsrc(mediaType) == ssrc)
-                    {
-                        return endpoint.getId();
-                    }
-                }
-            }
-            else
-            {
-                logger.warn("The endpoints collection is empty!");
-            }
+            endpoints.clear();
+            for (EndpointInfo endpoint : newEndpoints)
+                endpoints.put(endpoint.getId(), endpoint);
+            endpointIndex = new EndpointIndex(endpoints.values());
+            updateSynchronizers();
+        }
+    }
 
-            return "";
+    /**
+     * Add an endpoint, or replace it if it is known already.
+     * <p>
+     * Only the synchronizer entries of this endpoint are updated.
+     * 
+     * @param endpoint is the endpoint.
+     */
+    public void updateEndpoint(EndpointInfo endpoint)
+    {
+        synchronized (endpointsSyncRoot)
+        {
+            endpoints.put(endpoint.getId(), endpoint);
+            endpointIndex = new EndpointIndex(endpoints.values());
+            updateSynchronizer(endpoint);
         }
     }
 
     /**
-     * {@inheritDoc}
+     * Remove an endpoint.
+     * 
+     * @param endpointId is the id of the endpoint.
      */
-    public void setEndpoints(List<EndpointInfo> newEndpoints)
+    public void removeEndpoint(String endpointId)
     {
         synchronized (endpointsSyncRoot)
         {
-            endpoints = newEndpoints;
-            updateSynchronizers();
+            if (null != endpoints.remove(endpointId))
+                endpointIndex = new EndpointIndex(endpoints.values());
         }
     }
 
@@ -617,29 +888,38 @@ public class StreamRecorderManager
     {
         synchronized (endpointsSyncRoot)
         {
-            for (EndpointInfo endpoint : endpoints)
+            for (EndpointInfo endpoint : endpoints.values())
             {
-                final String endpointId = endpoint.getId();
-                for (Entry<MediaType, Long> ssrc : endpoint.getSsrcs()
-                    .entrySet())
-                {
-                    Recorder recorder = recorders.get(ssrc.getKey());
-                    // During the ICE connectivity establishment and after we've
-                    // joined the MUC, there is a high probability that we
-                    // process a media type/ssrc for which we *don't* have a
-                    // recorder yet (because we get XMPP presence packets before
-                    // the recorders are prepared (see method
-                    // prepareRecorders())
-                    if (recorder != null)
-                    {
-                        Synchronizer synchronizer = recorder.getSynchronizer();
-                        synchronizer.setEndpoint(ssrc.getValue(), endpointId);
-                    }
-                    logger.info("endpoint: " + endpointId + " " + ssrc.getKey()
-                        + " " + ssrc.getValue());
-                }
+                updateSynchronizer(endpoint);
+            }
+        }
+    }
+
+    /**
+     * Tell the synchronizers of the recorders about the ssrcs of an endpoint.
+     * 
+     * @param endpoint is the endpoint.
+     */
+    private void updateSynchronizer(EndpointInfo endpoint)
+    {
+        final String endpointId = endpoint.getId();
+        for (Entry<MediaType, Long> ssrc : endpoint.getSsrcs().entrySet())
+        {
+            Recorder recorder = recorders.get(ssrc.getKey());
+            // During the ICE connectivity establishment and after we've
+            // joined the MUC, there is a high probability that we
+            // process a media type/ssrc for which we *don't* have a
+            // recorder yet (because we get XMPP presence packets before
+            // the recorders are prepared (see method
+            // prepareRecorders())
+            if (recorder != null)
+            {
+                Synchronizer synchronizer = recorder.getSynchronizer();
+                synchronizer.setEndpoint(ssrc.getValue(), endpointId);
             }
         }
+        if (logger.isDebugEnabled())
+            logger.debug("endpoint: " + endpointId + " " + endpoint.getSsrcs());
     }
 
     /**
@@ -716,20 +996,28 @@ public class StreamRecorderManager
     {
         /**
          * The true <tt>RecorderEventHandler</tt> which is used for handling
-         * event actually.
+         * event actually. It writes the events into the meta data file on
+         * a writer thread.
          */
-        private RecorderEventHandler handler;
+        private AsyncRecorderEventHandler handler;
 
         /**
          * The construction method for creating
          * <tt>JireconRecorderEventHandler</tt>.
          * 
-         * @param filename the meta data file's name.
+         * @param dir the directory of the meta data file.
          * @throws Exception if failed to create handler
          */
-        public RecorderEventHandlerImpl(String filename)
+        public RecorderEventHandlerImpl(String dir)
             throws Exception
         {
+            final ConfigurationService configuration =
+                LibJitsi.getConfigurationService();
+            final MetadataFormat format =
+                MetadataFormat.parse(configuration
+                    .getString(ConfigurationKey.METADATA_FORMAT_KEY));
+            final String filename = dir + "/" + format.getFileName();
+
             /*
              * If there is an existed file with "filename", add suffix to
              * "filename". For instance, from "metadata.json" to
@@ -738,14 +1026,14 @@ public class StreamRecorderManager
             int count = 1;
             String filenameAvailable = filename;
             File file = null;
+            MetadataSink sink = null;
             while (true)
             {
                 file = new File(filenameAvailable);
 
                 try
                 {
-                    handler =
-                        new RecorderEventHandlerJSONImpl(filenameAvailable);
+                    sink = format.createSink(file);
                     break;
                 }
                 catch (IOException e)
@@ -761,10 +1049,21 @@ public class StreamRecorderManager
                     }
                 }
             }
+
+            handler =
+                new AsyncRecorderEventHandler(sink, configuration.getInt(
+                    ConfigurationKey.METADATA_QUEUE_SIZE_KEY, 1024),
+                    configuration.getInt(
+                        ConfigurationKey.METADATA_SYNC_EVENTS_KEY, 64),
+                    configuration.getLong(
+                        ConfigurationKey.METADATA_SYNC_INTERVAL_KEY, 1000));
         }
 
         /**
          * {@inheritDoc}
+         * <p>
+         * Both recorders share this handler, so the meta data file is only
+         * closed by {@link #closeMetadata()}.
          */
         @Override
         public void close()
@@ -772,11 +1071,19 @@ public class StreamRecorderManager
             logger.debug("close");
         }
 
+        /**
+         * Write the remaining events and close the meta data file.
+         */
+        public void closeMetadata()
+        {
+            handler.close();
+        }
+
         /**
          * Handle event.
          */
         @Override
-        public synchronized boolean handleEvent(RecorderEvent event)
+        public boolean handleEvent(RecorderEvent event)
         {
             logger.debug(event + " ssrc:" + event.getSsrc());
 
@@ -847,6 +1154,15 @@ public class StreamRecorderManager
                 }
             }
 
+            if (RecorderEvent.Type.STREAM_ADDED.equals(event.getType())
+                && null != manifest && null != event.getFilename())
+            {
+                manifest.addFile(event.getEndpointId(),
+                    null == event.getMediaType() ? null : event
+                        .getMediaType().toString(), event.getSsrc(),
+                    event.getFilename());
+            }
+
             return handler.handleEvent(event);
         }
     }
@@ -877,11 +1193,6 @@ public class StreamRecorderManager
          */
         private WebRtcDataStream dataChannel;
         
-        private ExecutorService executorService = Executors
-            .newSingleThreadExecutor();
-        
-        private final Object syncRoot = new Object();
-        
         public DataChannelAdapter(DtlsControl dtlsControl)
         {
             this.dtlsControl = dtlsControl;
@@ -890,8 +1201,9 @@ public class StreamRecorderManager
         }
 
         /**
-         * Start <tt>WebRtcDataStreamManager</tt> and wait for videobridge
-         * create a default <tt>WebRtcDataStream</tt> whose sid is "0".
+         * Start <tt>WebRtcDataStreamManager</tt>. Once videobridge creates a
+         * default <tt>WebRtcDataStream</tt> whose sid is "0", we'll be notified
+         * by {@link #onChannelOpened(WebRtcDataStream)}.
          * 
          * @param connector
          * @param streamTarget
@@ -900,51 +1212,38 @@ public class StreamRecorderManager
             MediaStreamTarget streamTarget)
         {
             streamManager.runAsClient(connector, streamTarget, dtlsControl);
-
-            executorService.execute(new Runnable()
-            {
-                @Override
-                public void run()
-                {
-                    synchronized (syncRoot)
-                    {
-                        try
-                        {
-                            syncRoot.wait();
-                        }
-                        catch (InterruptedException e)
-                        {
-                            // TODO Auto-generated catch block
-                            e.printStackTrace();
-                        }
-                    }
-
-                    logger.info("DataChannel connected (?)");
-                    prepareDataChannel();
-                }
-
-            });
         }
 
         public void disconnect()
         {
             streamManager.shutdown();
-            dtlsControl.cleanup(null);
+            // There is no DtlsControl when the data channel isn't negotiated.
+            if (null != dtlsControl)
+                dtlsControl.cleanup(null);
         }
 
         @Override
         public void onChannelOpened(WebRtcDataStream channel)
         {
             dataChannel = channel;
-            
-            synchronized (syncRoot)
-            {
-                syncRoot.notify();
-            }
+
+            /*
+             * Setting the data callback is cheap, so there is no need to hand
+             * it over to another thread.
+             */
+            logger.info("DataChannel connected (?)");
+            prepareDataChannel();
         }
         
         private void prepareDataChannel()
         {
+            /*
+             * The callback runs on the receiving loop of the data channel, one
+             * message at a time, so a single decoder serves all of them.
+             */
+            final ColibriMessageDecoder decoder =
+                new ColibriMessageDecoder(new MessageRecorder());
+
             dataChannel.setDataCallback(new WebRtcDataStream.DataCallback()
             {
                 @Override
@@ -952,33 +1251,14 @@ public class StreamRecorderManager
                 {
                     try
                     {
-                        /*
-                         * Once we got an legal message(SPEAKER_CHANGE event),
-                         * we create a RecorderEvent and let event handler to
-                         * handle it.
-                         */
-                        JSONParser parser = new JSONParser();
-                        JSONObject json = (JSONObject) parser.parse(msg);
-                        String endpointId =
-                            json.get("dominantSpeakerEndpoint").toString();
-
-                        logger.debug("Hey! " + endpointId);
-                        System.out.println("Event: " + msg);
-                        System.out.println("Hey! " + endpointId);
-
-                        RecorderEvent event = new RecorderEvent();
-                        event.setMediaType(MediaType.AUDIO);
-                        event.setType(RecorderEvent.Type.SPEAKER_CHANGED);
-                        event.setEndpointId(endpointId);
-                        event.setAudioSsrc(getEndpointSsrc(endpointId,
-                            MediaType.AUDIO));
-                        event.setInstant(System.currentTimeMillis());
-
-                        eventHandler.handleEvent(event);
+                        if (!decoder.decode(msg))
+                            logger.warn("Incomplete data channel message, "
+                                + msg);
                     }
                     catch (ParseException e)
                     {
-                        e.printStackTrace();
+                        logger.error("Malformed data channel message, "
+                            + e.getMessage());
                     }
                 }
 
@@ -992,4 +1272,67 @@ public class StreamRecorderManager
             });
         }
     }
+
+    /**
+     * Records the colibri messages received over the data channel as
+     * <tt>RecorderEvent</tt>s. The dominant speaker changes are
+     * <tt>SPEAKER_CHANGED</tt> events. The last-N and the endpoint
+     * connectivity changes are <tt>DataChannelEvent</tt>s.
+     */
+    private class MessageRecorder
+        implements ColibriMessageDecoder.MessageHandler
+    {
+        @Override
+        public void onDominantSpeakerChanged(String endpointId)
+        {
+            logger.debug("Dominant speaker: " + endpointId);
+
+            RecorderEvent event = new RecorderEvent();
+            event.setMediaType(MediaType.AUDIO);
+            event.setType(RecorderEvent.Type.SPEAKER_CHANGED);
+            event.setEndpointId(endpointId);
+            event.setAudioSsrc(getEndpointSsrc(endpointId, MediaType.AUDIO));
+            event.setInstant(System.currentTimeMillis());
+
+            eventHandler.handleEvent(event);
+        }
+
+        @Override
+        public void onLastNChanged(List<String> lastN, List<String> entering)
+        {
+            logger.debug("Last-N endpoints: " + lastN);
+
+            DataChannelEvent event =
+                new DataChannelEvent(ColibriMessageDecoder.LAST_N_CLASS);
+            event.setMediaType(MediaType.VIDEO);
+            event.setLastNEndpoints(lastN);
+            event.setEndpointsEnteringLastN(entering);
+            event.setInstant(System.currentTimeMillis());
+
+            eventHandler.handleEvent(event);
+        }
+
+        @Override
+        public void onEndpointConnectivityChanged(String endpointId,
+            boolean active)
+        {
+            logger.debug("Endpoint " + endpointId
+                + (active ? " connected" : " disconnected"));
+
+            DataChannelEvent event =
+                new DataChannelEvent(
+                    ColibriMessageDecoder.ENDPOINT_CONNECTIVITY_CLASS);
+            event.setEndpointId(endpointId);
+            event.setActive(active);
+            event.setInstant(System.currentTimeMillis());
+
+            eventHandler.handleEvent(event);
+        }
+
+        @Override
+        public void onOtherMessage(String colibriClass)
+        {
+            logger.debug("Ignored data channel message: " + colibriClass);
+        }
+    }
 }
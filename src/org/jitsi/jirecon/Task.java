@@ -13,6 +13,7 @@ import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
 
 import org.jitsi.jirecon.*;
+import org.jitsi.jirecon.IceUdpTransportManager.*;
 import org.jitsi.jirecon.TaskEvent.*;
 import org.jitsi.jirecon.TaskManagerEvent.*;
 import org.jitsi.jirecon.utils.*;
@@ -71,14 +72,43 @@ public class Task
     private StreamRecorderManager recorderMgr;
 
     /**
-     * The thread pool to make the method "start" to be asynchronous.
+     * The <tt>RecordingSlot</tt> which holds the managers above.
+     */
+    private RecordingSlot slot;
+
+    /**
+     * The thread pool to make the method "start" to be asynchronous. It is
+     * usually shared with other tasks.
      */
     private ExecutorService taskExecutor;
 
+    /**
+     * Whether {@link #taskExecutor} was created by this task, in which case
+     * the task has to shut it down.
+     */
+    private boolean ownsTaskExecutor = false;
+
+    /**
+     * The stages of the session setup which have been scheduled by
+     * {@link #submitStage(Callable)}. They're cancelled when the task is
+     * stopped, so that none of them runs on freed managers, and dropped once
+     * the setup has waited for them.
+     */
+    private final List<Future<?>> stages = new ArrayList<Future<?>>();
+
+    /**
+     * The number of stream ports this task accounts for. Until the remote peer
+     * has answered whether it supports rtcp-mux, RTCP may need ports of its
+     * own, so the whole {@link IceUdpTransportManager#PORTS_PER_TRANSPORT} is
+     * reserved.
+     */
+    private volatile int reservedPorts =
+        IceUdpTransportManager.PORTS_PER_TRANSPORT;
+
     /**
      * Indicate whether this task has stopped.
      */
-    private boolean isStopped = false;
+    private volatile boolean isStopped = false;
     
     /**
      * Indicate whether this task has aborted. We need this to identify the
@@ -103,6 +133,45 @@ public class Task
      * @param savingDir indicates where we should output the media files.
      */
     public void init(String mucJid, XMPPConnection connection, String savingDir)
+    {
+        init(mucJid, connection, savingDir, null);
+    }
+
+    /**
+     * Initialize a <tt>JireconTask</tt> whose work is scheduled on the given
+     * <tt>ExecutorService</tt>.
+     * 
+     * @param mucJid indicates which meet you want to record.
+     * @param connection is an existed <tt>XMPPConnection</tt> which will be
+     *            used to send/receive Jingle packet.
+     * @param savingDir indicates where we should output the media files.
+     * @param executor is the <tt>ExecutorService</tt> shared by the tasks. If
+     *            it is null, the task will create a thread of its own.
+     */
+    public void init(String mucJid, XMPPConnection connection,
+        String savingDir, ExecutorService executor)
+    {
+        init(mucJid, connection, savingDir, executor, null, null);
+    }
+
+    /**
+     * Initialize a <tt>JireconTask</tt> which uses a <tt>RecordingSlot</tt>
+     * prepared in advance.
+     * 
+     * @param mucJid indicates which meet you want to record.
+     * @param connection is an existed <tt>XMPPConnection</tt> which will be
+     *            used to send/receive Jingle packet.
+     * @param savingDir indicates where we should output the media files.
+     * @param executor is the <tt>ExecutorService</tt> shared by the tasks. If
+     *            it is null, the task will create a thread of its own.
+     * @param slot is the <tt>RecordingSlot</tt> to be used by the task. If it
+     *            is null, the task will create a new one.
+     * @param dispatcher is the <tt>StanzaDispatcher</tt> of the connection.
+     *            If it is null, the task will listen to the connection itself.
+     */
+    public void init(String mucJid, XMPPConnection connection,
+        String savingDir, ExecutorService executor, RecordingSlot slot,
+        StanzaDispatcher dispatcher)
     {
         logger.info(this.getClass() + " init");
         
@@ -117,21 +186,38 @@ public class Task
         info.setNickname(configuration
             .getString(ConfigurationKey.NICK_KEY));
 
-        taskExecutor =
-            Executors.newSingleThreadExecutor(new HandlerThreadFactory());
+        if (null == executor)
+        {
+            taskExecutor =
+                Executors.newSingleThreadExecutor(new HandlerThreadFactory());
+            ownsTaskExecutor = true;
+        }
+        else
+        {
+            taskExecutor = executor;
+        }
+
+        if (null == slot)
+            slot = new RecordingSlot();
+        this.slot = slot;
 
-        transportMgr = new IceUdpTransportManager();
+        transportMgr = slot.getTransportManager();
 
-        dtlsControlMgr = new DtlsControlManager();
+        dtlsControlMgr = slot.getDtlsControlManager();
 
         jingleSessionMgr = new JingleSessionManager();
         jingleSessionMgr.addTaskEventListener(this);
-        jingleSessionMgr.init(connection);
+        jingleSessionMgr.init(connection, dispatcher);
         addEventListener(jingleSessionMgr);
 
-        recorderMgr = new StreamRecorderManager();
+        /*
+         * Unless the slot has been prepared in advance, the recorder manager is
+         * initialized in method "run", in parallel with the other preparations
+         * of the session.
+         */
+        recorderMgr = slot.getRecorderManager();
+        recorderMgr.setOutputDir(savingDir);
         recorderMgr.addTaskEventListener(this);
-        recorderMgr.init(savingDir, dtlsControlMgr.getAllDtlsControl());
     }
 
     /**
@@ -148,6 +234,9 @@ public class Task
         listeners.clear();
 //        transport.free();
 
+        if (ownsTaskExecutor)
+            taskExecutor.shutdown();
+
         if (!keepData)
         {
             logger.info("Delete output files " + info.getOutputDir());
@@ -173,7 +262,36 @@ public class Task
      */
     public void start()
     {
-        taskExecutor.execute(this);
+        execute(this);
+    }
+
+    /**
+     * Schedule a piece of work of this task on {@link #taskExecutor}.
+     * <p>
+     * The executor may be shared with other tasks, so we can't rely on the
+     * <tt>UncaughtExceptionHandler</tt> of its threads. Instead every piece of
+     * work is wrapped so that an exception only aborts this task.
+     * 
+     * @param work is the work to be scheduled.
+     */
+    private void execute(final Runnable work)
+    {
+        taskExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    work.run();
+                }
+                catch (Throwable t)
+                {
+                    new ThreadExceptionHandler().uncaughtException(
+                        Thread.currentThread(), t);
+                }
+            }
+        });
     }
 
     /**
@@ -183,11 +301,18 @@ public class Task
     {
         if (!isStopped)
         {
+            // Set it first, so that pending setup work sees it.
+            isStopped = true;
             logger.info(this.getClass() + " stop.");
+            synchronized (stages)
+            {
+                for (Future<?> stage : stages)
+                    stage.cancel(true);
+                stages.clear();
+            }
             transportMgr.free();
             recorderMgr.stopRecording();
             jingleSessionMgr.disconnect(Reason.SUCCESS, "OK, gotta go.");
-            isStopped = true;
             
             /*
              * We should only fire TASK_FINISHED event when the task has really
@@ -210,33 +335,144 @@ public class Task
     {
         try
         {
-            /* 1. Join MUC. */
+            /*
+             * 1. Start the preparations which don't depend on the
+             * session-init packet. They run in parallel on the task executor,
+             * while we are joining the MUC and waiting for the offer.
+             */
+            final List<FutureTask<Void>> localStages =
+                new ArrayList<FutureTask<Void>>();
+            for (final MediaType mediaType : MediaType.values())
+            {
+                localStages.add(submitStage(new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        transportMgr.harvestLocalCandidates(mediaType);
+                        return null;
+                    }
+                }));
+            }
+            localStages.add(submitStage(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    // Creating DtlsControls generates the local certificates.
+                    // It has already been done if the slot came from the pool.
+                    slot.prepare();
+                    return null;
+                }
+            }));
+
+            /* 2. Join MUC. */
             jingleSessionMgr.connect(info.getMucJid(), info.getNickname());
 
-            /* 2. Wait for session-init packet. */
-            JingleIQ initIq = jingleSessionMgr.waitForInitPacket();
-            MediaType[] supportedMediaTypes =
+            /*
+             * 3. Wait for session-init packet. No thread waits for it, the
+             * setup goes on once it has arrived.
+             */
+            jingleSessionMgr.getInitPacketFuture().addListener(
+                new PacketFuture.Listener<JingleIQ>()
+                {
+                    @Override
+                    public void packetReceived(final JingleIQ initIq)
+                    {
+                        execute(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                acceptSession(initIq, localStages);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void packetFailed(Exception cause)
+                    {
+                        if (isStopped)
+                            return;
+
+                        logger.error("Could not get session-init packet ("
+                            + info.getMucJid() + "), maybe the MUC has"
+                            + " locked. " + cause.getMessage());
+                        fireEvent(new TaskManagerEvent(info.getMucJid(),
+                            TaskManagerEvent.Type.TASK_ABORTED));
+                    }
+                });
+        }
+        catch (Exception e)
+        {
+            logger.error("Failed to start the task (" + info.getMucJid()
+                + ")", e);
+            fireEvent(new TaskManagerEvent(info.getMucJid(),
+                TaskManagerEvent.Type.TASK_ABORTED));
+        }
+    }
+
+    /**
+     * The part of the setup once Jingle session-init packet has arrived. Wait
+     * for the local preparations, send session-accept packet and start
+     * establishing ICE connectivity.
+     * 
+     * @param initIq is the Jingle session-init packet.
+     * @param localStages are the stages of the local preparations.
+     */
+    private void acceptSession(JingleIQ initIq,
+        List<FutureTask<Void>> localStages)
+    {
+        // The task may have been stopped in the meantime.
+        if (isStopped)
+            return;
+
+        try
+        {
+            final MediaType[] supportedMediaTypes =
                 JinglePacketParser.getSupportedMediaTypes(initIq);
 
             /*
-             * 3.1 Prepare for sending session-accept packet.
+             * 4.1 Prepare for sending session-accept packet.
              */
             // Media format and payload type id.
-            Map<MediaType, Map<MediaFormat, Byte>> formatAndPTs = new HashMap<MediaType, Map<MediaFormat, Byte>>();
+            final Map<MediaType, Map<MediaFormat, Byte>> formatAndPTs = new HashMap<MediaType, Map<MediaFormat, Byte>>();
             for (MediaType mediaType : new MediaType[] {MediaType.AUDIO, MediaType.VIDEO})
             {
                 formatAndPTs.put(mediaType, JinglePacketParser
                     .getFormatAndDynamicPTs(initIq, mediaType));
             }
 
-            Map<MediaType, Long> localSsrcs = recorderMgr.getLocalSsrcs();
-            
-            // Transport packet extension.
+            for (FutureTask<Void> stage : localStages)
+            {
+                awaitStage(stage);
+            }
+            // They're done, there is nothing left to cancel.
+            synchronized (stages)
+            {
+                stages.removeAll(localStages);
+            }
+            // We've harvested for every media type, drop the unused ones.
+            transportMgr.removeUnusedStreams(supportedMediaTypes);
+
+            // Only use rtcp-mux if the remote peer supports it as well.
+            Set<MediaType> rtcpMuxTypes = new HashSet<MediaType>();
             for (MediaType mediaType : supportedMediaTypes)
             {
-                transportMgr.harvestLocalCandidates(mediaType);
+                if (!transportMgr.isRtcpMux(mediaType))
+                    continue;
+
+                if (JinglePacketParser.isRtcpMux(initIq, mediaType))
+                    rtcpMuxTypes.add(mediaType);
+                else
+                    transportMgr.disableRtcpMux(mediaType);
             }
+            // Every component has been created, nothing more will be bound.
+            reservedPorts = transportMgr.getAllocatedPortCount();
 
+            Map<MediaType, Long> localSsrcs = recorderMgr.getLocalSsrcs();
+
+            // Transport packet extension.
             Map<MediaType, AbstractPacketExtension> transportPEs =
                 new HashMap<MediaType, AbstractPacketExtension>();
             for (MediaType mediaType : supportedMediaTypes)
@@ -259,16 +495,16 @@ public class Task
                     dtlsControlMgr.createFingerprintPacketExt(mediaType));
             }
 
-            /* 3.2 Send session-accept packet. */
+            /* 4.2 Send session-accept packet. */
             jingleSessionMgr.sendAcceptPacket(formatAndPTs, localSsrcs, transportPEs,
-                fingerprintPEs);
+                fingerprintPEs, rtcpMuxTypes);
 
-            /* 3.3 Wait for session-ack packet. */
+            /* 4.3 Wait for session-ack packet. */
             // Go on with ICE, no need to waste an RTT here.
             //jingleSessionMgr.waitForResultPacket();
 
             /*
-             * 4.1 Prepare for ICE connectivity establishment. Harvest remote
+             * 5.1 Prepare for ICE connectivity establishment. Harvest remote
              * candidates.
              */
             Map<MediaType, IceUdpTransportPacketExtension> remoteTransportPEs = new HashMap<MediaType, IceUdpTransportPacketExtension>();
@@ -279,30 +515,74 @@ public class Task
             transportMgr.addRemoteCandidates(remoteTransportPEs);
 
             /*
-             * 4.2 Start establishing ICE connectivity. Warning: that this
-             * method is asynchronous method.
+             * 5.2 Start establishing ICE connectivity. No thread waits for it,
+             * the setup goes on once ICE has completed, failed or timed out.
              */
-            transportMgr.startConnectivityEstablishment();
-
-            /*
-             * 4.3 Wait for ICE to complete (or fail).
-             */
-            if(!transportMgr.wrapupConnectivityEstablishment())
-            {
-                logger.error("Failed to establish an ICE session.");
-                fireEvent(
-                    new TaskManagerEvent(info.getMucJid(),
-                                         TaskManagerEvent.Type.TASK_ABORTED));
+            transportMgr.startConnectivityEstablishment(
+                new IceUdpTransportManager.ConnectivityListener()
+                {
+                    @Override
+                    public void connectivityEstablishmentFinished(
+                        final ConnectivityResult result)
+                    {
+                        execute(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                startRecording(result, formatAndPTs,
+                                    supportedMediaTypes);
+                            }
+                        });
+                    }
+                });
+        }
+        catch (Exception e)
+        {
+            // The stages have been cancelled if the task has been stopped.
+            if (isStopped)
                 return;
-            }
-            logger.info("ICE connection established (" + info.getMucJid() + ")");
 
+            logger.error("Failed to accept the session (" + info.getMucJid()
+                + ")", e);
+            fireEvent(new TaskManagerEvent(info.getMucJid(),
+                TaskManagerEvent.Type.TASK_ABORTED));
+        }
+    }
+
+    /**
+     * The last part of the setup, once ICE connectivity establishment has
+     * finished. Abort the task unless ICE has completed, otherwise start
+     * recording.
+     * 
+     * @param result is the result of the ICE connectivity establishment.
+     * @param formatAndPTs is the map between <tt>MediaType</tt> and the
+     *            formats with their payload type ids.
+     * @param supportedMediaTypes are the <tt>MediaType</tt>s of the session.
+     */
+    private void startRecording(ConnectivityResult result,
+        Map<MediaType, Map<MediaFormat, Byte>> formatAndPTs,
+        MediaType[] supportedMediaTypes)
+    {
+        // The task may have been stopped in the meantime.
+        if (isStopped)
+            return;
+
+        if (ConnectivityResult.COMPLETED != result)
+        {
+            logger.error("Failed to establish an ICE session ("
+                + info.getMucJid() + "): " + result);
+            fireEvent(new TaskManagerEvent(info.getMucJid(),
+                TaskManagerEvent.Type.TASK_ABORTED));
+            return;
+        }
+        logger.info("ICE connection established (" + info.getMucJid() + ")");
+
+        try
+        {
             /*
-             * 5.1 Prepare for recording. Once transport manager has selected
-             * candidates pairs, we can get stream connectors from it, otherwise
-             * we have to wait. Notice that if ICE connectivity establishment
-             * doesn't get selected pairs for a specified time(MAX_WAIT_TIME),
-             * we must break the task.
+             * 6.1 Prepare for recording. Once transport manager has selected
+             * candidates pairs, we can get stream connectors from it.
              */
             Map<MediaType, StreamConnector> streamConnectors =
                 new HashMap<MediaType, StreamConnector>();
@@ -319,7 +599,7 @@ public class Task
                 mediaStreamTargets.put(mediaType, mediaStreamTarget);
             }
             
-            /* 5.2 Start recording. */
+            /* 6.2 Start recording. */
             recorderMgr.startRecording(formatAndPTs, streamConnectors,
                 mediaStreamTargets);
 
@@ -334,6 +614,55 @@ public class Task
         }
     }
 
+    /**
+     * Schedule a stage of the session setup on {@link #taskExecutor}.
+     * 
+     * @param stage is the work of the stage.
+     * @return the <tt>FutureTask</tt> which can be used to wait for the stage.
+     */
+    private <T> FutureTask<T> submitStage(Callable<T> stage)
+    {
+        FutureTask<T> future = new FutureTask<T>(stage);
+        synchronized (stages)
+        {
+            // Don't start anything once the task has been stopped.
+            if (isStopped)
+                future.cancel(false);
+            else
+                stages.add(future);
+        }
+        taskExecutor.execute(future);
+        return future;
+    }
+
+    /**
+     * Wait for a stage of the session setup to complete.
+     * <p>
+     * If the stage hasn't been picked up by the executor yet, it is run in the
+     * current thread. Otherwise a busy executor, whose threads are all waiting
+     * for their stages, could never make progress.
+     * 
+     * @param stage is the stage to wait for.
+     * @return the result of the stage.
+     * @throws Exception if the stage failed.
+     */
+    private <T> T awaitStage(FutureTask<T> stage) throws Exception
+    {
+        // Does nothing if the stage has already been started.
+        stage.run();
+        try
+        {
+            return stage.get();
+        }
+        catch (ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            throw e;
+        }
+    }
+
     /**
      * Register an event listener to this <tt>JireconTask</tt>.
      * 
@@ -354,6 +683,18 @@ public class Task
         listeners.remove(listener);
     }
 
+    /**
+     * Get the number of stream ports this task needs. It's the worst case
+     * until the session has been negotiated, and the ports actually held
+     * afterwards.
+     * 
+     * @return the number of stream ports.
+     */
+    public int getReservedPortCount()
+    {
+        return reservedPorts;
+    }
+
     /**
      * Get the task information.
      * 
@@ -384,29 +725,26 @@ public class Task
     {
         logger.info("JireconTask event: " + event.getType());
 
-        if (event.getType() == TaskEvent.Type.PARTICIPANT_CAME)
+        if (event.getType() == TaskEvent.Type.PARTICIPANT_CAME
+            || event.getType() == TaskEvent.Type.PARTICIPANT_UPDATED)
         {
-            List<EndpointInfo> endpoints =
-                jingleSessionMgr.getEndpoints();
-            recorderMgr.setEndpoints(endpoints);
+            recorderMgr.updateEndpoint(event.getEndpoint());
         }
 
         else if (event.getType() == TaskEvent.Type.PARTICIPANT_LEFT)
         {
-            List<EndpointInfo> endpoints =
-                jingleSessionMgr.getEndpoints();
             // Oh, it seems that all participants have left the MUC(except Jirecon
             // or other participants which only receive data). It's time to
             // finish the recording.
-            if (endpoints.isEmpty())
+            if (0 == jingleSessionMgr.getEndpointCount())
             {
                 stop();
                 fireEvent(new TaskManagerEvent(info.getMucJid(),
                     TaskManagerEvent.Type.TASK_FINISED));
             }
-            else
+            else if (null != event.getEndpoint())
             {
-                recorderMgr.setEndpoints(endpoints);
+                recorderMgr.removeEndpoint(event.getEndpoint().getId());
             }
         }
     }
@@ -445,6 +783,7 @@ public class Task
             /*
              * Exception can only be thrown by Task.
              */
+            logger.error("Task of " + info.getMucJid() + " failed, " + e);
             Task.this.stop();
             fireEvent(new TaskManagerEvent(info.getMucJid(),
                 TaskManagerEvent.Type.TASK_ABORTED));
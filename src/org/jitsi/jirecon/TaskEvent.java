@@ -20,14 +20,32 @@ public class TaskEvent
      */
     private Type type;
 
+    /**
+     * The endpoint which came, left or changed, if this is a participant
+     * event.
+     */
+    private EndpointInfo endpoint;
+
     /**
      * Construction method.
      * 
      * @param type
      */
     public TaskEvent(Type type)
+    {
+        this(type, null);
+    }
+
+    /**
+     * Construction method.
+     * 
+     * @param type
+     * @param endpoint is the endpoint concerned by the event.
+     */
+    public TaskEvent(Type type, EndpointInfo endpoint)
     {
         this.type = type;
+        this.endpoint = endpoint;
     }
 
     /**
@@ -40,6 +58,16 @@ public class TaskEvent
         return type;
     }
 
+    /**
+     * Get the endpoint concerned by the event.
+     * 
+     * @return the endpoint, or null if the event isn't about an endpoint.
+     */
+    public EndpointInfo getEndpoint()
+    {
+        return endpoint;
+    }
+
     /**
      * <tt>JireconTaskEvent</tt> type.
      * 
@@ -58,6 +86,11 @@ public class TaskEvent
          */
         PARTICIPANT_LEFT("PARTICIPANT_LEFT"),
 
+        /**
+         * The ssrcs of one participant changed.
+         */
+        PARTICIPANT_UPDATED("PARTICIPANT_UPDATED"),
+
         /**
          * Recorder has broken for some reasons.
          */
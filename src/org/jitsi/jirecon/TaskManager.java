@@ -5,12 +5,15 @@
  */
 package org.jitsi.jirecon;
 
+import java.io.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
-import net.java.sip.communicator.impl.protocol.jabber.*;
 import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
 import org.jitsi.jirecon.TaskManagerEvent.*;
+import org.jitsi.jirecon.datachannel.*;
 import org.jitsi.jirecon.protocol.extension.*;
 import org.jitsi.jirecon.utils.*;
 import org.jitsi.service.configuration.*;
@@ -18,7 +21,6 @@ import org.jitsi.service.libjitsi.*;
 import org.jitsi.util.*;
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.provider.*;
-import org.jivesoftware.smackx.*;
 
 /**
  * The manager of <tt>Task</tt>, each <tt>Task</tt> represents a
@@ -27,7 +29,8 @@ import org.jivesoftware.smackx.*;
  * @author lishunyang
  */
 public class TaskManager
-    implements JireconEventListener
+    implements JireconEventListener,
+               XmppConnectionPool.ShardListener
 {
     /**
      * The <tt>Logger</tt>, used to log messages to standard output.
@@ -42,10 +45,10 @@ public class TaskManager
         new ArrayList<JireconEventListener>();
 
     /**
-     * An instance of <tt>XMPPConnection</tt>, it is shared with every
-     * <tt>JireconTask</tt>
+     * The pool of XMPP connections, each <tt>Task</tt> uses the one its MUC is
+     * assigned to.
      */
-    private XMPPConnection connection;
+    private XmppConnectionPool connectionPool;
 
     /**
      * Active <tt>JireconTask</tt>, map between Jitsi-meeting jid and task.
@@ -53,12 +56,58 @@ public class TaskManager
     private final Map<String, Task> tasks =
         new HashMap<String, Task>();
 
+    /**
+     * The pool of prepared <tt>RecordingSlot</tt>s handed to new tasks.
+     */
+    private RecordingSlotPool slotPool;
+
+    /**
+     * The MUC jids of the tasks which are setting up their sessions right now.
+     */
+    private final Set<String> pendingSetups = new HashSet<String>();
+
+    /**
+     * The MUC jids of the tasks which are waiting for a setup slot, in the
+     * order they were requested.
+     */
+    private final LinkedList<String> queuedTasks = new LinkedList<String>();
+
+    /**
+     * The maximum number of tasks, or -1 if it isn't limited.
+     */
+    private int maxTasks = -1;
+
+    /**
+     * The maximum number of tasks setting up at the same time, or -1 if it
+     * isn't limited.
+     */
+    private int maxPendingSetups = -1;
+
+    /**
+     * The minimum free space in bytes that must be left in
+     * {@link #baseOutputDir} to accept a task, or -1 if it isn't checked.
+     */
+    private long minFreeDiskSpace = -1;
+
+    /**
+     * The number of stream ports in the configured range, or -1 if the range
+     * isn't configured.
+     */
+    private int streamPorts = -1;
+
     /**
      * The base directory to save recording files. <tt>JireconImpl</tt> will add
      * date suffix to it as a final output directory.
      */
     private String baseOutputDir;
     
+    /**
+     * The pool of threads shared by every <tt>Task</tt>. Tasks schedule their
+     * work on it instead of owning a thread each, so the number of threads
+     * does not grow with the number of recorded conferences.
+     */
+    private ExecutorService taskExecutor;
+
     /**
      * Indicates whether <tt>JireconImpl</tt> has been initialized, it is used
      * to avoid double initialization.
@@ -114,6 +163,33 @@ public class TaskManager
                 baseOutputDir.substring(0, baseOutputDir.length() - 1);
         }
 
+        int taskThreads =
+            configuration.getInt(ConfigurationKey.TASK_EXECUTOR_THREADS_KEY, -1);
+        if (taskThreads <= 0)
+        {
+            taskThreads = 2 * Runtime.getRuntime().availableProcessors();
+        }
+        taskExecutor = createTaskExecutor(taskThreads);
+
+        slotPool =
+            new RecordingSlotPool(configuration.getInt(
+                ConfigurationKey.SLOT_POOL_SIZE_KEY, 0), taskExecutor);
+        slotPool.start();
+
+        maxTasks = configuration.getInt(ConfigurationKey.MAX_TASKS_KEY, -1);
+        maxPendingSetups =
+            configuration.getInt(ConfigurationKey.MAX_PENDING_SETUPS_KEY, -1);
+        final long minFreeDiskMb =
+            configuration.getLong(ConfigurationKey.MIN_FREE_DISK_MB_KEY, -1);
+        if (minFreeDiskMb > 0)
+            minFreeDiskSpace = minFreeDiskMb * 1024 * 1024;
+        final int minStreamPort =
+            configuration.getInt(ConfigurationKey.MIN_STREAM_PORT_KEY, -1);
+        final int maxStreamPort =
+            configuration.getInt(ConfigurationKey.MAX_STREAM_PORT_KEY, -1);
+        if (minStreamPort > 0 && maxStreamPort >= minStreamPort)
+            streamPorts = maxStreamPort - minStreamPort + 1;
+
         final String xmppHost =
             configuration.getString(ConfigurationKey.XMPP_HOST_KEY);
         final int xmppPort =
@@ -123,6 +199,11 @@ public class TaskManager
         final String xmppPass =
             configuration.getString(ConfigurationKey.XMPP_PASS_KEY);
 
+        connectionPool =
+            new XmppConnectionPool(configuration.getInt(
+                ConfigurationKey.XMPP_CONNECTIONS_KEY, 1), taskExecutor);
+        connectionPool.setShardListener(this);
+
         try
         {
             connect(xmppHost, xmppPort, xmppUser, xmppPass);
@@ -159,6 +240,16 @@ public class TaskManager
             }
         }
         closeConnection();
+        if (null != slotPool)
+        {
+            slotPool.close();
+            slotPool = null;
+        }
+        if (null != taskExecutor)
+        {
+            taskExecutor.shutdownNow();
+            taskExecutor = null;
+        }
         LibJitsi.stop();
     }
 
@@ -168,6 +259,10 @@ public class TaskManager
      * <strong>Warning:</strong> This method is asynchronous, it will return
      * immediately while it doesn't mean the task has been started successfully.
      * If the task failed, it will notify event listeners.
+     * <p>
+     * The task is rejected, with a <tt>TASK_REJECTED</tt> event telling why, if
+     * there isn't enough capacity left for it. If too many tasks are setting up
+     * at the moment, it is queued and started once one of them is done.
      * 
      * @param mucJid indicates which Jitsi-meeting you want to record.
      * @return true if the task has been started successfully, otherwise false.
@@ -178,6 +273,7 @@ public class TaskManager
         logger.info(this.getClass() + "startJireconTask: " + mucJid);
 
         Task task = null;
+        String rejectReason = null;
         synchronized (tasks)
         {
             if (tasks.containsKey(mucJid))
@@ -186,21 +282,143 @@ public class TaskManager
                     + ". Duplicate mucJid.");
                 return false;
             }
-            task = new Task();
-            tasks.put(mucJid, task);
+
+            rejectReason = checkCapacity();
+            if (null == rejectReason)
+            {
+                task = new Task();
+                tasks.put(mucJid, task);
+            }
+        }
+
+        if (null != rejectReason)
+        {
+            logger.info("Rejected Jirecon task of mucJid: " + mucJid + ". "
+                + rejectReason);
+            fireEvent(new TaskManagerEvent(mucJid,
+                TaskManagerEvent.Type.TASK_REJECTED, rejectReason));
+            return false;
         }
 
         String outputDir =
             baseOutputDir + "/" + mucJid
                 + new SimpleDateFormat("-yyMMdd-HHmmss").format(new Date());
 
+        final XmppConnectionPool.Shard shard = connectionPool.getShard(mucJid);
         task.addEventListener(this);
-        task.init(mucJid, connection, outputDir);
+        task.init(mucJid, shard.getConnection(), outputDir, taskExecutor,
+            slotPool.acquire(), shard.getDispatcher());
 
-        task.start();
+        boolean startNow;
+        synchronized (tasks)
+        {
+            startNow =
+                maxPendingSetups <= 0
+                    || pendingSetups.size() < maxPendingSetups;
+            if (startNow)
+                pendingSetups.add(mucJid);
+            else
+                queuedTasks.add(mucJid);
+        }
+
+        logger.info("Stream ports in use: "
+            + IceUdpTransportManager.getUsedPortCount() + ", free: "
+            + IceUdpTransportManager.getFreePortCount());
+
+        if (startNow)
+            task.start();
+        else
+            logger.info("Queued Jirecon task of mucJid: " + mucJid
+                + ", too many tasks are setting up.");
         return true;
     }
 
+    /**
+     * Check whether there is enough capacity left for one more task.
+     * <p>
+     * <strong>Warning:</strong> The caller must hold the lock of
+     * {@link #tasks}.
+     * 
+     * @return null if a new task can be accepted, otherwise the reason why it
+     *         can't.
+     */
+    private String checkCapacity()
+    {
+        if (maxTasks > 0 && tasks.size() >= maxTasks)
+        {
+            return "Too many recording tasks, the limit is " + maxTasks + ".";
+        }
+
+        // The new task may not get rtcp-mux, count all the ports it may need.
+        final int portsPerTask = IceUdpTransportManager.PORTS_PER_TRANSPORT;
+        if (streamPorts > 0)
+        {
+            int reservedPorts = portsPerTask;
+            for (Task task : tasks.values())
+                reservedPorts += task.getReservedPortCount();
+
+            if (reservedPorts > streamPorts)
+            {
+                return "Not enough stream ports left, " + streamPorts
+                    + " ports are configured.";
+            }
+        }
+
+        final int freePorts = IceUdpTransportManager.getFreePortCount();
+        if (freePorts >= 0 && freePorts < portsPerTask)
+        {
+            return "Not enough stream ports left, only " + freePorts
+                + " ports are free.";
+        }
+
+        if (minFreeDiskSpace > 0)
+        {
+            // The output directory may not have been created yet.
+            File dir = new File(baseOutputDir).getAbsoluteFile();
+            while (null != dir && !dir.exists())
+                dir = dir.getParentFile();
+
+            if (null != dir && dir.getUsableSpace() < minFreeDiskSpace)
+            {
+                return "Not enough free disk space left in " + baseOutputDir
+                    + ".";
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Notify that the specified task has finished setting up, whether it
+     * succeeded or not, and start the next queued task if there is one.
+     * 
+     * @param mucJid indicates which task has finished setting up.
+     */
+    private void onSetupFinished(String mucJid)
+    {
+        Task next = null;
+        String nextMucJid = null;
+        synchronized (tasks)
+        {
+            if (!pendingSetups.remove(mucJid))
+                return;
+
+            while (null == next && !queuedTasks.isEmpty())
+            {
+                nextMucJid = queuedTasks.removeFirst();
+                next = tasks.get(nextMucJid);
+            }
+            if (null != next)
+                pendingSetups.add(nextMucJid);
+        }
+
+        if (null != next)
+        {
+            logger.info("Start queued Jirecon task of mucJid: " + nextMucJid);
+            next.start();
+        }
+    }
+
     /**
      * Stop a recording task for a specified Jitsi-meeting.
      * 
@@ -219,7 +437,9 @@ public class TaskManager
         synchronized (tasks)
         {
             task = tasks.remove(mucJid);
+            queuedTasks.remove(mucJid);
         }
+        onSetupFinished(mucJid);
         
         if (null == task)
         {
@@ -232,11 +452,12 @@ public class TaskManager
             task.stop();
             task.uninit(keepData);
         }
+        logger.info("XMPP connections: " + connectionPool.getStatistics());
         return true;
     }
 
     /**
-     * Build XMPP connection.
+     * Build XMPP connections.
      * 
      * @param xmppHost is the host name of XMPP server.
      * @param xmppPort is the port of XMPP server.
@@ -247,49 +468,36 @@ public class TaskManager
         throws XMPPException
     {
         logger.info(this.getClass() + "connect");
-        ConnectionConfiguration conf =
-            new ConnectionConfiguration(xmppHost, xmppPort);
-        connection = new XMPPConnection(conf);
-        connection.connect();
-
-        // Register Jingle Features.
-        ServiceDiscoveryManager discoManager
-            = ServiceDiscoveryManager.getInstanceFor(connection);
-        if (discoManager != null)
-        {
-            discoManager.addFeature(
-                ProtocolProviderServiceJabberImpl.URN_XMPP_JINGLE_RTP_VIDEO);
-            discoManager.addFeature(
-                ProtocolProviderServiceJabberImpl.URN_XMPP_JINGLE_RTP_AUDIO);
-            discoManager.addFeature(
-                ProtocolProviderServiceJabberImpl.URN_XMPP_JINGLE_ICE_UDP_1);
-
-            // XXX(gp) I'm hard coding the dtls-sctp feature here because it is
-            // not yet part of ProtocolProviderServiceJabberImpl. I'm unsure if
-            // it should be.
-            discoManager.addFeature("urn:xmpp:jingle:transports:dtls-sctp:1");
-        }
-        else
-        {
-            logger.warn("Could not register Jingle features because the " +
-                "ServiceDiscoveryManager for this XMPPConnection could not " +
-                "be found.");
-        }
-
-        // Login either anonymously or with a provided username & password.
+        connectionPool.connect(xmppHost, xmppPort, xmppUser, xmppPass);
+    }
 
-        if (StringUtils.isNullOrEmpty(xmppUser)
-            || StringUtils.isNullOrEmpty(xmppPass))
-        {
-            logger.info(this.getClass() + " login anonymously.");
-            connection.loginAnonymously();
-        }
-        else
+    /**
+     * Create the pool of threads shared by all tasks.
+     * <p>
+     * A task never occupies a thread while it is idle, so the pool only needs
+     * to be as large as the amount of setup and event handling work that runs
+     * at the same time.
+     * 
+     * @param threads is the number of threads in the pool.
+     * @return the created <tt>ExecutorService</tt>.
+     */
+    private ExecutorService createTaskExecutor(int threads)
+    {
+        logger.info(this.getClass() + " createTaskExecutor: " + threads);
+        return Executors.newFixedThreadPool(threads, new ThreadFactory()
         {
-            logger.info(this.getClass() + " login with user/pass.");
-            connection.login(xmppUser, xmppPass);
-        }
+            private final AtomicInteger count = new AtomicInteger();
 
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t =
+                    new Thread(r, "Jirecon task executor-"
+                        + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
 
     /**
@@ -298,8 +506,8 @@ public class TaskManager
     private void closeConnection()
     {
         logger.info(this.getClass() + "closeConnection");
-        if (connection.isConnected())
-            connection.disconnect();
+        if (null != connectionPool)
+            connectionPool.disconnect();
     }
 
     /**
@@ -336,6 +544,21 @@ public class TaskManager
         listeners.add(listener);
     }
 
+    /**
+     * Dump the last SCTP packets of the data channels of all tasks into a pcap
+     * file. Nothing is kept unless the data channel trace is enabled in the
+     * configuration.
+     * 
+     * @param file is the pcap file.
+     * @return the number of packets dumped.
+     * @throws IOException if the file can't be written.
+     */
+    public int dumpDataChannelTrace(File file)
+        throws IOException
+    {
+        return DataChannelTrace.getInstance().dump(file);
+    }
+
     /**
      * Remove an event listener.
      * 
@@ -369,6 +592,7 @@ public class TaskManager
             fireEvent(evt);
             break;
         case TASK_STARTED:
+            onSetupFinished(mucJid);
             logger.info("Recording task of MUC " + mucJid + " started.");
             fireEvent(evt);
             break;
@@ -377,6 +601,49 @@ public class TaskManager
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The MUCs and Jingle sessions of the tasks on the lost shard are gone, so
+     * those tasks are aborted. The tasks on the other shards go on.
+     */
+    @Override
+    public void shardDisconnected(XmppConnectionPool.Shard shard)
+    {
+        final List<String> lost = new ArrayList<String>();
+        synchronized (tasks)
+        {
+            for (String mucJid : tasks.keySet())
+            {
+                if (connectionPool.getShard(mucJid) == shard)
+                    lost.add(mucJid);
+            }
+        }
+
+        for (final String mucJid : lost)
+        {
+            taskExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    handleEvent(new TaskManagerEvent(mucJid,
+                        TaskManagerEvent.Type.TASK_ABORTED,
+                        "XMPP connection lost"));
+                }
+            });
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void shardReconnected(XmppConnectionPool.Shard shard)
+    {
+        logger.info("XMPP connections: " + connectionPool.getStatistics());
+    }
+
     /**
      * Notify the listeners.
      * 
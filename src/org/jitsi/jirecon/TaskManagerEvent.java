@@ -26,6 +26,11 @@ public class TaskManagerEvent
      */
     private String mucJid;
 
+    /**
+     * The human-readable reason of this event. It may be null.
+     */
+    private String reason;
+
     /**
      * Construction method.
      * 
@@ -33,9 +38,22 @@ public class TaskManagerEvent
      * @param type indicates the event type.
      */
     public TaskManagerEvent(String mucJid, Type type)
+    {
+        this(mucJid, type, null);
+    }
+
+    /**
+     * Construction method.
+     * 
+     * @param mucJid indicates which task this event comes from.
+     * @param type indicates the event type.
+     * @param reason indicates why this event happened.
+     */
+    public TaskManagerEvent(String mucJid, Type type, String reason)
     {
         this.mucJid = mucJid;
         this.type = type;
+        this.reason = reason;
     }
 
     /**
@@ -58,6 +76,16 @@ public class TaskManagerEvent
         return mucJid;
     }
 
+    /**
+     * Get the reason of this event.
+     * 
+     * @return the reason, or null if it wasn't given.
+     */
+    public String getReason()
+    {
+        return reason;
+    }
+
     /**
      * <tt>JireconEvent</tt> type.
      * 
@@ -79,7 +107,12 @@ public class TaskManagerEvent
         /**
          * Task finished.
          */
-        TASK_FINISED("TASK_FINISHED");
+        TASK_FINISED("TASK_FINISHED"),
+
+        /**
+         * Task was not accepted because there isn't enough capacity left.
+         */
+        TASK_REJECTED("TASK_REJECTED");
 
         private String name;
 
@@ -0,0 +1,475 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon;
+
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import net.java.sip.communicator.impl.protocol.jabber.*;
+
+import org.jitsi.jirecon.utils.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.util.*;
+import org.jivesoftware.smack.*;
+import org.jivesoftware.smack.filter.*;
+import org.jivesoftware.smack.packet.*;
+import org.jivesoftware.smackx.*;
+
+/**
+ * <tt>XmppConnectionPool</tt> holds several <tt>XMPPConnection</tt>s, called
+ * shards, so that the XMPP traffic of the tasks isn't serialized through a
+ * single socket. Each MUC is assigned to a shard by consistent hashing of its
+ * JID.
+ * <p>
+ * Every shard has its own <tt>StanzaDispatcher</tt> and reconnects on its own,
+ * so losing a shard only affects the tasks assigned to it.
+ */
+public class XmppConnectionPool
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(XmppConnectionPool.class.getName());
+
+    /**
+     * The number of points each shard has on the hash ring. The more there
+     * are, the more even the MUCs are spread over the shards.
+     */
+    private static final int VIRTUAL_NODES = 64;
+
+    /**
+     * The shards of the pool.
+     */
+    private final List<Shard> shards = new ArrayList<Shard>();
+
+    /**
+     * The hash ring, mapping hash points to shards.
+     */
+    private final TreeMap<Long, Shard> ring = new TreeMap<Long, Shard>();
+
+    /**
+     * The <tt>Executor</tt> on which the dispatchers handle stanzas.
+     */
+    private final Executor executor;
+
+    /**
+     * The listener of the connection state of the shards. It may be null.
+     */
+    private volatile ShardListener shardListener;
+
+    /**
+     * Create a pool.
+     * 
+     * @param size is the number of connections.
+     * @param executor is the <tt>Executor</tt> on which the stanzas are
+     *            handled.
+     */
+    public XmppConnectionPool(int size, Executor executor)
+    {
+        this.executor = executor;
+
+        for (int i = 0; i < Math.max(1, size); i++)
+        {
+            final Shard shard = new Shard(i);
+            shards.add(shard);
+            for (int v = 0; v < VIRTUAL_NODES; v++)
+                ring.put(hash("shard-" + i + "-" + v), shard);
+        }
+    }
+
+    /**
+     * Set the listener of the connection state of the shards.
+     * 
+     * @param listener is the listener.
+     */
+    public void setShardListener(ShardListener listener)
+    {
+        this.shardListener = listener;
+    }
+
+    /**
+     * Connect and log in all the shards.
+     * 
+     * @param xmppHost is the host name of XMPP server.
+     * @param xmppPort is the port of XMPP server.
+     * @param xmppUser is the user name, or null to log in anonymously.
+     * @param xmppPass is the password, or null to log in anonymously.
+     * @throws XMPPException if any shard failed to connect. The shards which
+     *             did are disconnected.
+     */
+    public void connect(String xmppHost, int xmppPort, String xmppUser,
+        String xmppPass)
+        throws XMPPException
+    {
+        try
+        {
+            for (Shard shard : shards)
+                shard.connect(xmppHost, xmppPort, xmppUser, xmppPass);
+        }
+        catch (XMPPException e)
+        {
+            disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Disconnect all the shards.
+     */
+    public void disconnect()
+    {
+        for (Shard shard : shards)
+            shard.disconnect();
+    }
+
+    /**
+     * Get the shard a MUC is assigned to.
+     * 
+     * @param mucJid is the JID of the MUC.
+     * @return the <tt>Shard</tt>.
+     */
+    public Shard getShard(String mucJid)
+    {
+        if (1 == shards.size())
+            return shards.get(0);
+
+        Map.Entry<Long, Shard> e = ring.ceilingEntry(hash(mucJid.toLowerCase()));
+        if (null == e)
+            e = ring.firstEntry();
+        return e.getValue();
+    }
+
+    /**
+     * Get all the shards.
+     * 
+     * @return the shards.
+     */
+    public List<Shard> getShards()
+    {
+        return Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * Get a human-readable summary of the metrics of the shards.
+     * 
+     * @return the summary.
+     */
+    public String getStatistics()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Shard shard : shards)
+        {
+            if (sb.length() > 0)
+                sb.append("; ");
+            sb.append("shard ").append(shard.getIndex())
+                .append(shard.isConnected() ? "" : " (disconnected)")
+                .append(": received ").append(shard.getReceivedCount())
+                .append(", sent ").append(shard.getSentCount())
+                .append(", ").append(shard.getDispatcher().getStatistics());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Hash a string onto the ring.
+     * 
+     * @param key is the string to be hashed.
+     * @return the hash.
+     */
+    private static long hash(String key)
+    {
+        try
+        {
+            final byte[] digest =
+                MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            long h = 0;
+            for (int i = 0; i < 8; i++)
+                h = (h << 8) | (digest[i] & 0xFF);
+            return h;
+        }
+        catch (Exception e)
+        {
+            // MD5 and UTF-8 are always supported.
+            return key.hashCode();
+        }
+    }
+
+    /**
+     * A connection of the pool.
+     */
+    public class Shard
+        implements ConnectionListener
+    {
+        /**
+         * The index of the shard in the pool.
+         */
+        private final int index;
+
+        /**
+         * Routes the stanzas received by the connection to the tasks.
+         */
+        private final StanzaDispatcher dispatcher;
+
+        /**
+         * The number of stanzas received by the connection.
+         */
+        private final AtomicLong receivedCount = new AtomicLong();
+
+        /**
+         * The number of stanzas sent through the connection.
+         */
+        private final AtomicLong sentCount = new AtomicLong();
+
+        /**
+         * The connection of the shard.
+         */
+        private XMPPConnection connection;
+
+        /**
+         * Create a shard.
+         * 
+         * @param index is the index of the shard in the pool.
+         */
+        private Shard(int index)
+        {
+            this.index = index;
+            this.dispatcher = new StanzaDispatcher(executor);
+        }
+
+        /**
+         * Connect and log in.
+         * 
+         * @param xmppHost is the host name of XMPP server.
+         * @param xmppPort is the port of XMPP server.
+         * @param xmppUser is the user name, or null to log in anonymously.
+         * @param xmppPass is the password, or null to log in anonymously.
+         * @throws XMPPException if failed to connect.
+         */
+        private void connect(String xmppHost, int xmppPort, String xmppUser,
+            String xmppPass)
+            throws XMPPException
+        {
+            logger.info("Connect XMPP shard " + index);
+            ConnectionConfiguration conf =
+                new ConnectionConfiguration(xmppHost, xmppPort);
+            // Let Smack reconnect this shard on its own.
+            conf.setReconnectionAllowed(true);
+            connection = new XMPPConnection(conf);
+            connection.connect();
+            connection.addConnectionListener(this);
+
+            new StanzaTrace(LibJitsi.getConfigurationService())
+                .attach(connection);
+            dispatcher.attach(connection);
+
+            final PacketFilter acceptAll = new PacketFilter()
+            {
+                @Override
+                public boolean accept(Packet packet)
+                {
+                    return true;
+                }
+            };
+            connection.addPacketListener(new PacketListener()
+            {
+                @Override
+                public void processPacket(Packet packet)
+                {
+                    receivedCount.incrementAndGet();
+                }
+            }, acceptAll);
+            connection.addPacketSendingListener(new PacketListener()
+            {
+                @Override
+                public void processPacket(Packet packet)
+                {
+                    sentCount.incrementAndGet();
+                }
+            }, acceptAll);
+
+            // Register Jingle Features.
+            ServiceDiscoveryManager discoManager
+                = ServiceDiscoveryManager.getInstanceFor(connection);
+            if (discoManager != null)
+            {
+                discoManager.addFeature(
+                    ProtocolProviderServiceJabberImpl.URN_XMPP_JINGLE_RTP_VIDEO);
+                discoManager.addFeature(
+                    ProtocolProviderServiceJabberImpl.URN_XMPP_JINGLE_RTP_AUDIO);
+                discoManager.addFeature(
+                    ProtocolProviderServiceJabberImpl.URN_XMPP_JINGLE_ICE_UDP_1);
+
+                // XXX(gp) I'm hard coding the dtls-sctp feature here because it is
+                // not yet part of ProtocolProviderServiceJabberImpl. I'm unsure if
+                // it should be.
+                discoManager.addFeature("urn:xmpp:jingle:transports:dtls-sctp:1");
+            }
+            else
+            {
+                logger.warn("Could not register Jingle features because the " +
+                    "ServiceDiscoveryManager for this XMPPConnection could not " +
+                    "be found.");
+            }
+
+            // Login either anonymously or with a provided username & password.
+
+            if (StringUtils.isNullOrEmpty(xmppUser)
+                || StringUtils.isNullOrEmpty(xmppPass))
+            {
+                logger.info(this.getClass() + " login anonymously.");
+                connection.loginAnonymously();
+            }
+            else if (1 == shards.size())
+            {
+                logger.info(this.getClass() + " login with user/pass.");
+                connection.login(xmppUser, xmppPass);
+            }
+            else
+            {
+                // The shards share the account, so they need their own
+                // resources.
+                logger.info(this.getClass() + " login with user/pass.");
+                connection.login(xmppUser, xmppPass, "jirecon-" + index);
+            }
+        }
+
+        /**
+         * Disconnect.
+         */
+        private void disconnect()
+        {
+            if (null == connection)
+                return;
+
+            connection.removeConnectionListener(this);
+            dispatcher.detach(connection);
+            if (connection.isConnected())
+                connection.disconnect();
+        }
+
+        /**
+         * Get the index of the shard in the pool.
+         * 
+         * @return the index.
+         */
+        public int getIndex()
+        {
+            return index;
+        }
+
+        /**
+         * Get the connection of the shard.
+         * 
+         * @return the <tt>XMPPConnection</tt>.
+         */
+        public XMPPConnection getConnection()
+        {
+            return connection;
+        }
+
+        /**
+         * Get the dispatcher of the stanzas received by the shard.
+         * 
+         * @return the <tt>StanzaDispatcher</tt>.
+         */
+        public StanzaDispatcher getDispatcher()
+        {
+            return dispatcher;
+        }
+
+        /**
+         * Get the number of stanzas received by the shard.
+         * 
+         * @return the number of stanzas.
+         */
+        public long getReceivedCount()
+        {
+            return receivedCount.get();
+        }
+
+        /**
+         * Get the number of stanzas sent through the shard.
+         * 
+         * @return the number of stanzas.
+         */
+        public long getSentCount()
+        {
+            return sentCount.get();
+        }
+
+        /**
+         * Whether the shard is connected.
+         * 
+         * @return true if it is connected, otherwise false.
+         */
+        public boolean isConnected()
+        {
+            return null != connection && connection.isConnected();
+        }
+
+        @Override
+        public void connectionClosed()
+        {
+            logger.info("XMPP shard " + index + " closed.");
+        }
+
+        @Override
+        public void connectionClosedOnError(Exception e)
+        {
+            logger.warn("XMPP shard " + index + " lost, " + e.getMessage());
+            final ShardListener l = shardListener;
+            if (null != l)
+                l.shardDisconnected(this);
+        }
+
+        @Override
+        public void reconnectingIn(int seconds)
+        {
+            logger.debug("XMPP shard " + index + " reconnecting in "
+                + seconds + "s.");
+        }
+
+        @Override
+        public void reconnectionSuccessful()
+        {
+            logger.info("XMPP shard " + index + " reconnected.");
+            final ShardListener l = shardListener;
+            if (null != l)
+                l.shardReconnected(this);
+        }
+
+        @Override
+        public void reconnectionFailed(Exception e)
+        {
+            logger.warn("XMPP shard " + index + " failed to reconnect, "
+                + e.getMessage());
+        }
+    }
+
+    /**
+     * Listener of the connection state of the shards.
+     */
+    public interface ShardListener
+    {
+        /**
+         * Fired when a shard has lost its connection. The MUCs and Jingle
+         * sessions of its tasks are gone.
+         * 
+         * @param shard is the <tt>Shard</tt>.
+         */
+        public void shardDisconnected(Shard shard);
+
+        /**
+         * Fired when a shard has been reconnected.
+         * 
+         * @param shard is the <tt>Shard</tt>.
+         */
+        public void shardReconnected(Shard shard);
+    }
+}
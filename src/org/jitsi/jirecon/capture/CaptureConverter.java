@@ -0,0 +1,105 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.capture;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+
+/**
+ * Offline tool which converts the captures of a raw capture directory into
+ * the recording layout, as if they had been recorded.
+ * <p>
+ * The captured packets are replayed by a <tt>ReplayHarness</tt>, as fast as
+ * the recorders keep up.
+ */
+public class CaptureConverter
+{
+    /**
+     * Argument name of the configuration file.
+     */
+    private final static String CONF_ARG_NAME = "--conf=";
+
+    /**
+     * Application entry.
+     * 
+     * @param args [--conf=CONFIGURATION FILE PATH] CAPTURE DIRECTORY OUTPUT
+     *            DIRECTORY
+     */
+    public static void main(String[] args)
+    {
+        String conf = null;
+        final List<String> dirs = new ArrayList<String>();
+        for (String arg : args)
+        {
+            if (arg.startsWith(CONF_ARG_NAME))
+                conf = arg.substring(CONF_ARG_NAME.length());
+            else
+                dirs.add(arg);
+        }
+        if (2 != dirs.size())
+        {
+            System.out.println("Usage: CaptureConverter "
+                + "[--conf=CONFIGURATION FILE PATH] "
+                + "CAPTURE_DIRECTORY OUTPUT_DIRECTORY");
+            return;
+        }
+
+        if (null != conf)
+        {
+            System.setProperty(
+                ConfigurationService.PNAME_CONFIGURATION_FILE_NAME, conf);
+            System.setProperty(
+                ConfigurationService.PNAME_CONFIGURATION_FILE_IS_READ_ONLY,
+                "true");
+        }
+        LibJitsi.start();
+        try
+        {
+            final long packets =
+                convert(new File(dirs.get(0)), new File(dirs.get(1)));
+            System.out.println("Converted " + packets + " packets.");
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            LibJitsi.stop();
+        }
+    }
+
+    /**
+     * Convert the captures of a directory.
+     * <p>
+     * <strong>Warning:</strong> LibJitsi must be started before calling this
+     * method.
+     * 
+     * @param captureDir is the directory of the captures.
+     * @param outputDir is the directory of the recording, it must exist.
+     * @return the number of packets converted.
+     * @throws Exception if the captures can't be read or recorded.
+     */
+    public static long convert(File captureDir, File outputDir)
+        throws Exception
+    {
+        final ReplayHarness harness =
+            new ReplayHarness(RtpCaptureReader.readFormats(captureDir),
+                outputDir);
+        final ReplaySource source = new CaptureDirectorySource(captureDir);
+        try
+        {
+            return harness.run(source).getPacketCount();
+        }
+        finally
+        {
+            source.close();
+        }
+    }
+}
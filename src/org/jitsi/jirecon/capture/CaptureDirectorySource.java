@@ -0,0 +1,126 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.capture;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.jirecon.capture.RtpCaptureReader.*;
+
+/**
+ * A <tt>ReplaySource</tt> which merges the capture files of a directory in
+ * the order the packets arrived.
+ */
+public class CaptureDirectorySource
+    implements ReplaySource
+{
+    /**
+     * The readers which have packets left, ordered by the arrival time of
+     * their next packet.
+     */
+    private final PriorityQueue<Head> heads = new PriorityQueue<Head>(16,
+        new Comparator<Head>()
+        {
+            @Override
+            public int compare(Head a, Head b)
+            {
+                return a.packet.arrivalTime < b.packet.arrivalTime ? -1
+                    : a.packet.arrivalTime == b.packet.arrivalTime ? 0 : 1;
+            }
+        });
+
+    /**
+     * Open the capture files of a directory.
+     * 
+     * @param dir is the directory of the captures.
+     * @throws IOException if a capture file can't be read.
+     */
+    public CaptureDirectorySource(File dir)
+        throws IOException
+    {
+        final File[] files = dir.listFiles();
+        if (null == files)
+            throw new IOException("Not a directory: " + dir);
+
+        try
+        {
+            for (File file : files)
+            {
+                if (!file.getName().endsWith(RtpCaptureWriter.FILE_EXTENSION))
+                    continue;
+                final Head head = new Head(new RtpCaptureReader(file));
+                if (head.advance())
+                    heads.add(head);
+                else
+                    head.reader.close();
+            }
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CapturedPacket next()
+        throws IOException
+    {
+        final Head head = heads.poll();
+        if (null == head)
+            return null;
+
+        final CapturedPacket packet = head.packet;
+        if (head.advance())
+            heads.add(head);
+        else
+            head.reader.close();
+        return packet;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        Head head;
+        while (null != (head = heads.poll()))
+            head.reader.close();
+    }
+
+    /**
+     * The next packet of a capture file.
+     */
+    private static class Head
+    {
+        private final RtpCaptureReader reader;
+
+        private CapturedPacket packet;
+
+        private Head(RtpCaptureReader reader)
+        {
+            this.reader = reader;
+        }
+
+        /**
+         * Read the next packet.
+         * 
+         * @return false at the end of the capture.
+         * @throws IOException if the file is truncated.
+         */
+        private boolean advance()
+            throws IOException
+        {
+            packet = reader.next();
+            return null != packet;
+        }
+    }
+}
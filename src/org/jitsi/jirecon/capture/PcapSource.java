@@ -0,0 +1,310 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.capture;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.Map.*;
+
+import org.jitsi.jirecon.capture.RtpCaptureReader.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.format.*;
+
+/**
+ * A <tt>ReplaySource</tt> which reads the unencrypted RTP and RTCP packets
+ * carried by UDP in a pcap file.
+ * <p>
+ * The <tt>MediaType</tt> of a RTP packet is the one of its payload type. A
+ * RTCP packet takes the <tt>MediaType</tt> of the RTP packets of its sender.
+ * Other packets, IP fragments and pcapng files aren't supported and are
+ * skipped.
+ */
+public class PcapSource
+    implements ReplaySource
+{
+    /**
+     * The magic number of pcap files with microsecond timestamps.
+     */
+    private static final int MAGIC_MICROS = 0xA1B2C3D4;
+
+    /**
+     * The magic number of pcap files with nanosecond timestamps.
+     */
+    private static final int MAGIC_NANOS = 0xA1B23C4D;
+
+    /**
+     * Link type of BSD loopback captures.
+     */
+    private static final int LINKTYPE_NULL = 0;
+
+    /**
+     * Link type of Ethernet captures.
+     */
+    private static final int LINKTYPE_ETHERNET = 1;
+
+    /**
+     * Link type of raw IP captures.
+     */
+    private static final int LINKTYPE_RAW = 101;
+
+    /**
+     * Link type of Linux "any" interface captures.
+     */
+    private static final int LINKTYPE_LINUX_SLL = 113;
+
+    /**
+     * The input of the file.
+     */
+    private final DataInputStream in;
+
+    /**
+     * The byte order of the file.
+     */
+    private final ByteOrder order;
+
+    /**
+     * Whether the timestamps are in nanoseconds.
+     */
+    private final boolean nanos;
+
+    /**
+     * The link type of the file.
+     */
+    private final int linkType;
+
+    /**
+     * The map between payload type and <tt>MediaType</tt>.
+     */
+    private final Map<Integer, MediaType> payloadTypes =
+        new HashMap<Integer, MediaType>();
+
+    /**
+     * The map between ssrc and <tt>MediaType</tt>, learnt from the RTP
+     * packets.
+     */
+    private final Map<Long, MediaType> ssrcs = new HashMap<Long, MediaType>();
+
+    /**
+     * The buffer of the record headers.
+     */
+    private final ByteBuffer recordHeader = ByteBuffer.allocate(16);
+
+    /**
+     * The number of skipped records.
+     */
+    private long skipped = 0;
+
+    /**
+     * Open a pcap file.
+     * 
+     * @param file is the pcap file.
+     * @param formatAndPTs is the map between <tt>MediaType</tt> and the
+     *            payload types of its <tt>MediaFormat</tt>s.
+     * @throws IOException if the file can't be read or isn't a pcap file.
+     */
+    public PcapSource(File file,
+        Map<MediaType, Map<MediaFormat, Byte>> formatAndPTs)
+        throws IOException
+    {
+        for (Entry<MediaType, Map<MediaFormat, Byte>> e : formatAndPTs
+            .entrySet())
+        {
+            for (Byte pt : e.getValue().values())
+                payloadTypes.put(pt & 0x7F, e.getKey());
+        }
+
+        in =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(
+                file)));
+        try
+        {
+            final byte[] header = new byte[24];
+            in.readFully(header);
+            final ByteBuffer buf = ByteBuffer.wrap(header);
+            int magic = buf.getInt(0);
+            if (MAGIC_MICROS != magic && MAGIC_NANOS != magic)
+            {
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                magic = buf.getInt(0);
+                if (MAGIC_MICROS != magic && MAGIC_NANOS != magic)
+                    throw new IOException("Not a pcap file: " + file);
+            }
+            order = buf.order();
+            nanos = MAGIC_NANOS == magic;
+            linkType = buf.getInt(20);
+            if (LINKTYPE_NULL != linkType && LINKTYPE_ETHERNET != linkType
+                && LINKTYPE_RAW != linkType && LINKTYPE_LINUX_SLL != linkType)
+                throw new IOException("Unsupported link type " + linkType);
+        }
+        catch (IOException e)
+        {
+            in.close();
+            throw e;
+        }
+        recordHeader.order(order);
+    }
+
+    /**
+     * Get the number of records which were skipped, because they didn't hold
+     * a known RTP or RTCP packet.
+     * 
+     * @return the number of skipped records.
+     */
+    public long getSkipped()
+    {
+        return skipped;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CapturedPacket next()
+        throws IOException
+    {
+        while (true)
+        {
+            recordHeader.clear();
+            try
+            {
+                in.readFully(recordHeader.array());
+            }
+            catch (EOFException e)
+            {
+                return null;
+            }
+            final long seconds = recordHeader.getInt(0) & 0xFFFFFFFFL;
+            final long fraction = recordHeader.getInt(4) & 0xFFFFFFFFL;
+            final int length = recordHeader.getInt(8);
+            if (length < 0 || length > 0xFFFF + 64)
+                throw new IOException("Malformed pcap record of " + length
+                    + " bytes");
+            final byte[] frame = new byte[length];
+            in.readFully(frame);
+
+            final CapturedPacket packet =
+                parse(frame, seconds * 1000000
+                    + (nanos ? fraction / 1000 : fraction));
+            if (null != packet)
+                return packet;
+            skipped++;
+        }
+    }
+
+    /**
+     * Extract the RTP or RTCP packet of a frame.
+     * 
+     * @param frame is the captured frame.
+     * @param arrivalTime is the arrival time of the frame in microseconds.
+     * @return the packet, or null if the frame doesn't hold a known one.
+     */
+    private CapturedPacket parse(byte[] frame, long arrivalTime)
+    {
+        final ByteBuffer buf = ByteBuffer.wrap(frame);
+        int ip;
+        int etherType;
+        switch (linkType)
+        {
+        case LINKTYPE_NULL:
+            ip = 4;
+            etherType = 0;
+            break;
+        case LINKTYPE_ETHERNET:
+            ip = 14;
+            if (frame.length < ip)
+                return null;
+            etherType = buf.getShort(12) & 0xFFFF;
+            // 802.1Q tag
+            if (0x8100 == etherType && frame.length >= 18)
+            {
+                etherType = buf.getShort(16) & 0xFFFF;
+                ip = 18;
+            }
+            break;
+        case LINKTYPE_LINUX_SLL:
+            ip = 16;
+            if (frame.length < ip)
+                return null;
+            etherType = buf.getShort(14) & 0xFFFF;
+            break;
+        default:
+            ip = 0;
+            etherType = 0;
+            break;
+        }
+        if (0 != etherType && 0x0800 != etherType && 0x86DD != etherType)
+            return null;
+        if (frame.length < ip + 1)
+            return null;
+
+        final int udp;
+        final int version = (frame[ip] & 0xF0) >> 4;
+        if (4 == version)
+        {
+            if (frame.length < ip + 20)
+                return null;
+            final int headerLength = (frame[ip] & 0x0F) * 4;
+            // Fragments aren't reassembled.
+            if (17 != (frame[ip + 9] & 0xFF)
+                || 0 != (buf.getShort(ip + 6) & 0x3FFF))
+                return null;
+            udp = ip + headerLength;
+        }
+        else if (6 == version)
+        {
+            // Extension headers aren't supported.
+            if (frame.length < ip + 40 || 17 != (frame[ip + 6] & 0xFF))
+                return null;
+            udp = ip + 40;
+        }
+        else
+            return null;
+
+        final int payload = udp + 8;
+        if (frame.length < payload)
+            return null;
+        final int udpLength = buf.getShort(udp + 4) & 0xFFFF;
+        final int length = Math.min(udpLength - 8, frame.length - payload);
+        if (length < 8 || 2 != ((frame[payload] & 0xC0) >> 6))
+            return null;
+
+        // RTCP packet types take the payload types 64 to 95 with the marker
+        // bit set, RFC 5761.
+        final int type = frame[payload + 1] & 0xFF;
+        final boolean rtcp = type >= 192 && type <= 223;
+        final long ssrc =
+            RtpCaptureFile.getSsrc(frame, payload, length, rtcp);
+        if (-1 == ssrc)
+            return null;
+
+        final MediaType mediaType;
+        if (rtcp)
+            mediaType = ssrcs.get(ssrc);
+        else
+        {
+            mediaType = payloadTypes.get(type & 0x7F);
+            if (null != mediaType)
+                ssrcs.put(ssrc, mediaType);
+        }
+        if (null == mediaType)
+            return null;
+
+        final byte[] data = new byte[length];
+        System.arraycopy(frame, payload, data, 0, length);
+        return new CapturedPacket(mediaType, data, arrivalTime, rtcp);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        in.close();
+    }
+}
@@ -0,0 +1,561 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.capture;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.jirecon.*;
+import org.jitsi.jirecon.capture.RtpCaptureReader.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.format.*;
+
+/**
+ * Replays captured packets into the recording pipeline, without any
+ * videobridge.
+ * <p>
+ * The packets are sent through loopback UDP sockets into a
+ * <tt>StreamRecorderManager</tt> without SRTP, either at the pace they arrived
+ * or as fast as the receiving side keeps up. The harness measures, for each
+ * stream, the packets sent and received by the recorder and the latency from
+ * the loopback socket to the recorder.
+ */
+public class ReplayHarness
+{
+    /**
+     * Argument name of the configuration file.
+     */
+    private final static String CONF_ARG_NAME = "--conf=";
+
+    /**
+     * Argument name of the formats file.
+     */
+    private final static String FORMATS_ARG_NAME = "--formats=";
+
+    /**
+     * Argument replaying the packets at the pace they arrived.
+     */
+    private final static String REALTIME_ARG_NAME = "--realtime";
+
+    /**
+     * Number of packets sent at the maximum speed before giving the receiving
+     * side some time, so that the socket buffers don't overflow.
+     */
+    private final static int BURST = 64;
+
+    /**
+     * The receive buffer size requested for the loopback sockets.
+     */
+    private final static int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The time given to the recorders to consume the last packets, in
+     * milliseconds.
+     */
+    private final static long DRAIN_TIME = 1000;
+
+    /**
+     * The map between <tt>MediaType</tt> and the payload types of its
+     * <tt>MediaFormat</tt>s.
+     */
+    private final Map<MediaType, Map<MediaFormat, Byte>> formatAndPTs;
+
+    /**
+     * The directory of the recording.
+     */
+    private final File outputDir;
+
+    /**
+     * Whether the packets are replayed at the pace they arrived.
+     */
+    private boolean realTime = false;
+
+    /**
+     * The map between ssrc and the statistics of its stream.
+     */
+    private final Map<Long, StreamStatistics> streams =
+        new ConcurrentHashMap<Long, StreamStatistics>();
+
+    /**
+     * Create a harness.
+     * 
+     * @param formatAndPTs is the map between <tt>MediaType</tt> and the
+     *            payload types of its <tt>MediaFormat</tt>s.
+     * @param outputDir is the directory of the recording, it must exist.
+     */
+    public ReplayHarness(Map<MediaType, Map<MediaFormat, Byte>> formatAndPTs,
+        File outputDir)
+    {
+        this.formatAndPTs =
+            new HashMap<MediaType, Map<MediaFormat, Byte>>(formatAndPTs);
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * Set whether the packets are replayed at the pace they arrived, rather
+     * than as fast as possible.
+     * 
+     * @param realTime whether to replay in real time.
+     */
+    public void setRealTime(boolean realTime)
+    {
+        this.realTime = realTime;
+    }
+
+    /**
+     * Replay packets and record them.
+     * <p>
+     * <strong>Warning:</strong> LibJitsi must be started before calling this
+     * method.
+     * 
+     * @param source is the source of the packets. It isn't closed.
+     * @return the report of the replay.
+     * @throws Exception if the packets can't be read or recorded.
+     */
+    public Report run(ReplaySource source)
+        throws Exception
+    {
+        streams.clear();
+        final List<DatagramSocket> sockets = new ArrayList<DatagramSocket>();
+        final StreamRecorderManager recorderMgr = new StreamRecorderManager();
+        final long startTime;
+        final long endTime;
+        long count = 0;
+        try
+        {
+            recorderMgr.init(outputDir.getPath(),
+                new HashMap<MediaType, DtlsControl>());
+            recorderMgr.setRawCapture(false);
+            // The translators need the local ssrcs.
+            recorderMgr.getLocalSsrcs();
+
+            final Map<MediaType, StreamConnector> connectors =
+                new HashMap<MediaType, StreamConnector>();
+            final Map<MediaType, MediaStreamTarget> targets =
+                new HashMap<MediaType, MediaStreamTarget>();
+            final Map<MediaType, SocketAddress[]> destinations =
+                new HashMap<MediaType, SocketAddress[]>();
+            final DatagramSocket sender =
+                new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+            sockets.add(sender);
+            final InetSocketAddress senderAddress =
+                (InetSocketAddress) sender.getLocalSocketAddress();
+            final RTPTranslator.WriteFilter probe = new LatencyProbe();
+            for (MediaType mediaType : new MediaType[]
+            { MediaType.AUDIO, MediaType.VIDEO })
+            {
+                final DatagramSocket data = createSocket(sockets);
+                final DatagramSocket control = createSocket(sockets);
+                connectors.put(mediaType, new DefaultStreamConnector(data,
+                    control));
+                targets.put(mediaType, new MediaStreamTarget(senderAddress,
+                    senderAddress));
+                destinations.put(mediaType, new SocketAddress[]
+                { data.getLocalSocketAddress(),
+                    control.getLocalSocketAddress() });
+                if (!formatAndPTs.containsKey(mediaType))
+                    formatAndPTs.put(mediaType,
+                        new HashMap<MediaFormat, Byte>());
+                recorderMgr.addWriteFilter(mediaType, probe);
+            }
+
+            recorderMgr.startRecording(formatAndPTs, connectors, targets);
+
+            final DatagramPacket datagram = new DatagramPacket(new byte[0], 0);
+            long firstArrival = -1;
+            startTime = System.nanoTime();
+            CapturedPacket packet;
+            while (null != (packet = source.next()))
+            {
+                final SocketAddress[] destination =
+                    destinations.get(packet.mediaType);
+                if (null == destination)
+                    continue;
+
+                if (realTime)
+                {
+                    if (-1 == firstArrival)
+                        firstArrival = packet.arrivalTime;
+                    final long wait =
+                        startTime + (packet.arrivalTime - firstArrival) * 1000
+                            - System.nanoTime();
+                    if (wait > 0)
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                else if (0 == count % BURST && 0 != count)
+                    Thread.sleep(1);
+
+                if (!packet.rtcp)
+                    getStream(packet).sent(packet.data, System.nanoTime());
+                datagram.setData(packet.data);
+                datagram.setSocketAddress(destination[packet.rtcp ? 1 : 0]);
+                sender.send(datagram);
+                count++;
+            }
+            endTime = System.nanoTime();
+
+            Thread.sleep(DRAIN_TIME);
+        }
+        finally
+        {
+            recorderMgr.stopRecording();
+            for (DatagramSocket socket : sockets)
+                socket.close();
+        }
+
+        return new Report(count, endTime - startTime, sizeOf(outputDir),
+            new ArrayList<StreamStatistics>(streams.values()));
+    }
+
+    /**
+     * Get the statistics of the stream of a packet, create them if they don't
+     * exist.
+     * 
+     * @param packet is the RTP packet.
+     * @return the statistics.
+     */
+    private StreamStatistics getStream(CapturedPacket packet)
+    {
+        final long ssrc =
+            RtpCaptureFile.getSsrc(packet.data, 0, packet.data.length, false);
+        StreamStatistics stream = streams.get(ssrc);
+        if (null == stream)
+        {
+            stream = new StreamStatistics(packet.mediaType, ssrc);
+            streams.put(ssrc, stream);
+        }
+        return stream;
+    }
+
+    /**
+     * Create a loopback socket.
+     * 
+     * @param sockets is the list of the created sockets, to close them later.
+     * @return the socket.
+     * @throws IOException if the socket can't be created.
+     */
+    private static DatagramSocket createSocket(List<DatagramSocket> sockets)
+        throws IOException
+    {
+        final DatagramSocket socket =
+            new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        sockets.add(socket);
+        socket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        return socket;
+    }
+
+    /**
+     * Get the size of the files of a directory and its sub-directories.
+     * 
+     * @param dir is the directory.
+     * @return the size in bytes.
+     */
+    private static long sizeOf(File dir)
+    {
+        long size = 0;
+        final File[] files = dir.listFiles();
+        if (null != files)
+        {
+            for (File file : files)
+                size += file.isDirectory() ? sizeOf(file) : file.length();
+        }
+        return size;
+    }
+
+    /**
+     * Application entry.
+     * 
+     * @param args [--conf=CONFIGURATION FILE PATH] [--formats=FORMATS FILE
+     *            PATH] [--realtime] SOURCE OUTPUT DIRECTORY, where SOURCE is a
+     *            capture directory or a pcap file. The formats are read from
+     *            the capture directory if they are not given.
+     */
+    public static void main(String[] args)
+    {
+        String conf = null;
+        String formats = null;
+        boolean realTime = false;
+        final List<String> paths = new ArrayList<String>();
+        for (String arg : args)
+        {
+            if (arg.startsWith(CONF_ARG_NAME))
+                conf = arg.substring(CONF_ARG_NAME.length());
+            else if (arg.startsWith(FORMATS_ARG_NAME))
+                formats = arg.substring(FORMATS_ARG_NAME.length());
+            else if (arg.equals(REALTIME_ARG_NAME))
+                realTime = true;
+            else
+                paths.add(arg);
+        }
+        if (2 != paths.size())
+        {
+            System.out.println("Usage: ReplayHarness "
+                + "[--conf=CONFIGURATION FILE PATH] "
+                + "[--formats=FORMATS FILE PATH] [--realtime] "
+                + "CAPTURE_DIRECTORY|PCAP_FILE OUTPUT_DIRECTORY");
+            return;
+        }
+
+        if (null != conf)
+        {
+            System.setProperty(
+                ConfigurationService.PNAME_CONFIGURATION_FILE_NAME, conf);
+            System.setProperty(
+                ConfigurationService.PNAME_CONFIGURATION_FILE_IS_READ_ONLY,
+                "true");
+        }
+        LibJitsi.start();
+        try
+        {
+            final File input = new File(paths.get(0));
+            final Map<MediaType, Map<MediaFormat, Byte>> formatAndPTs =
+                RtpCaptureReader.readFormats(null == formats ? input
+                    : new File(formats));
+            final ReplaySource source =
+                input.isDirectory() ? new CaptureDirectorySource(input)
+                    : new PcapSource(input, formatAndPTs);
+            try
+            {
+                final ReplayHarness harness =
+                    new ReplayHarness(formatAndPTs, new File(paths.get(1)));
+                harness.setRealTime(realTime);
+                System.out.println(harness.run(source));
+            }
+            finally
+            {
+                source.close();
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            LibJitsi.stop();
+        }
+    }
+
+    /**
+     * Measures the latency of the RTP packets from the loopback socket to the
+     * recorder.
+     */
+    private class LatencyProbe
+        implements RTPTranslator.WriteFilter
+    {
+        @Override
+        public boolean accept(MediaStream source, byte[] buf, int off,
+            int len, MediaStream destination, boolean data)
+        {
+            if (data && len >= 12)
+            {
+                final StreamStatistics stream =
+                    streams.get(RtpCaptureFile.getSsrc(buf, off, len, false));
+                if (null != stream)
+                    stream.received(buf, off, System.nanoTime());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The statistics of a replayed stream.
+     */
+    public static class StreamStatistics
+    {
+        private final MediaType mediaType;
+
+        private final long ssrc;
+
+        /**
+         * The time each sequence number was sent, in nanoseconds.
+         */
+        private final AtomicLongArray sendTimes = new AtomicLongArray(65536);
+
+        private final AtomicLong sentPackets = new AtomicLong();
+
+        private final AtomicLong sentBytes = new AtomicLong();
+
+        private final AtomicLong receivedPackets = new AtomicLong();
+
+        private final AtomicLong latencySum = new AtomicLong();
+
+        private final AtomicLong latencyMax = new AtomicLong();
+
+        private StreamStatistics(MediaType mediaType, long ssrc)
+        {
+            this.mediaType = mediaType;
+            this.ssrc = ssrc;
+        }
+
+        private void sent(byte[] packet, long time)
+        {
+            sendTimes.set(sequenceNumber(packet, 0), time);
+            sentPackets.incrementAndGet();
+            sentBytes.addAndGet(packet.length);
+        }
+
+        private void received(byte[] buf, int off, long time)
+        {
+            final long sent = sendTimes.getAndSet(sequenceNumber(buf, off), 0);
+            if (0 == sent)
+                return;
+
+            final long latency = time - sent;
+            receivedPackets.incrementAndGet();
+            latencySum.addAndGet(latency);
+            long max;
+            while ((max = latencyMax.get()) < latency
+                && !latencyMax.compareAndSet(max, latency));
+        }
+
+        private static int sequenceNumber(byte[] buf, int off)
+        {
+            return ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+        }
+
+        public MediaType getMediaType()
+        {
+            return mediaType;
+        }
+
+        public long getSsrc()
+        {
+            return ssrc;
+        }
+
+        public long getSentPackets()
+        {
+            return sentPackets.get();
+        }
+
+        public long getSentBytes()
+        {
+            return sentBytes.get();
+        }
+
+        public long getReceivedPackets()
+        {
+            return receivedPackets.get();
+        }
+
+        /**
+         * Get the mean latency of the received packets.
+         * 
+         * @return the latency in microseconds.
+         */
+        public long getMeanLatency()
+        {
+            final long received = receivedPackets.get();
+            return 0 == received ? 0 : latencySum.get() / received / 1000;
+        }
+
+        /**
+         * Get the maximum latency of the received packets.
+         * 
+         * @return the latency in microseconds.
+         */
+        public long getMaxLatency()
+        {
+            return latencyMax.get() / 1000;
+        }
+
+        @Override
+        public String toString()
+        {
+            return mediaType + " " + ssrc + ": sent " + getSentPackets()
+                + " packets, " + getSentBytes() + " bytes, received "
+                + getReceivedPackets() + ", latency mean "
+                + getMeanLatency() + " us, max " + getMaxLatency() + " us";
+        }
+    }
+
+    /**
+     * The report of a replay.
+     */
+    public static class Report
+    {
+        private final long packetCount;
+
+        private final long duration;
+
+        private final long bytesWritten;
+
+        private final List<StreamStatistics> streams;
+
+        private Report(long packetCount, long duration, long bytesWritten,
+            List<StreamStatistics> streams)
+        {
+            this.packetCount = packetCount;
+            this.duration = duration;
+            this.bytesWritten = bytesWritten;
+            this.streams = Collections.unmodifiableList(streams);
+        }
+
+        /**
+         * Get the number of replayed packets, RTCP included.
+         * 
+         * @return the number of packets.
+         */
+        public long getPacketCount()
+        {
+            return packetCount;
+        }
+
+        /**
+         * Get the time spent sending the packets.
+         * 
+         * @return the duration in nanoseconds.
+         */
+        public long getDuration()
+        {
+            return duration;
+        }
+
+        /**
+         * Get the number of packets sent per second.
+         * 
+         * @return the rate.
+         */
+        public double getPacketRate()
+        {
+            return 0 == duration ? 0 : packetCount * 1e9 / duration;
+        }
+
+        /**
+         * Get the size of the recording.
+         * 
+         * @return the size in bytes.
+         */
+        public long getBytesWritten()
+        {
+            return bytesWritten;
+        }
+
+        public List<StreamStatistics> getStreams()
+        {
+            return streams;
+        }
+
+        @Override
+        public String toString()
+        {
+            final StringBuilder s = new StringBuilder();
+            s.append("Replayed ").append(packetCount).append(" packets in ")
+                .append(duration / 1000000).append(" ms, ")
+                .append((long) getPacketRate()).append(" packets/s, ")
+                .append(bytesWritten).append(" bytes written");
+            for (StreamStatistics stream : streams)
+                s.append("\n  ").append(stream);
+            return s.toString();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.capture;
+
+import java.io.*;
+
+import org.jitsi.jirecon.capture.RtpCaptureReader.*;
+
+/**
+ * A source of captured packets, in the order they arrived.
+ */
+public interface ReplaySource
+    extends Closeable
+{
+    /**
+     * Read the next packet.
+     * 
+     * @return the packet, or null at the end of the source.
+     * @throws IOException if the source can't be read.
+     */
+    public CapturedPacket next()
+        throws IOException;
+}
@@ -0,0 +1,299 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.capture;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+import org.jitsi.service.neomedia.*;
+
+/**
+ * An append-only capture file of the RTP and RTCP packets of one ssrc.
+ * <p>
+ * The file is memory-mapped in chunks which are allocated ahead of the
+ * writes, so appending a packet is a copy into memory. It starts with a header
+ * of {@link #HEADER_LENGTH} bytes: {@link #MAGIC}, {@link #VERSION}, the
+ * ordinal of the <tt>MediaType</tt>, two reserved bytes and the ssrc as a
+ * long. Each packet follows as a record: its length as an int, its arrival
+ * time in microseconds since the epoch as a long, a flags byte telling whether
+ * it is RTCP, and the packet itself. A zero length, or the end of the file,
+ * ends the capture.
+ */
+public class RtpCaptureFile
+{
+    /**
+     * The first bytes of the file.
+     */
+    public static final int MAGIC = 0x4A524350; // "JRCP"
+
+    /**
+     * The version of the format.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The length of the header of the file.
+     */
+    public static final int HEADER_LENGTH = 16;
+
+    /**
+     * The length of the header of a record.
+     */
+    public static final int RECORD_HEADER_LENGTH = 13;
+
+    /**
+     * Flag telling that a record holds an RTCP packet.
+     */
+    public static final int FLAG_RTCP = 0x01;
+
+    /**
+     * The smallest chunk which is mapped at once.
+     */
+    private static final int MIN_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * The thread which forces the full chunks to the disk, shared by all
+     * capture files. Forcing a chunk may take a while, it mustn't hold up the
+     * packets.
+     */
+    private static final ExecutorService forceExecutor =
+        Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "RTP capture force");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * The access to the file.
+     */
+    private final RandomAccessFile file;
+
+    /**
+     * The channel of the file.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The size of the chunks mapped at once.
+     */
+    private final int chunkSize;
+
+    /**
+     * The mapped chunk being written.
+     */
+    private MappedByteBuffer chunk;
+
+    /**
+     * The forcing of the last full chunk. As {@link #forceExecutor} has a
+     * single thread, the previous chunks have been forced once it is done.
+     */
+    private Future<?> lastForce;
+
+    /**
+     * Whether the file has been closed. The packets appended afterwards are
+     * dropped, the file having been cut to the written bytes.
+     */
+    private boolean closed = false;
+
+    /**
+     * The offset of {@link #chunk} in the file.
+     */
+    private long chunkOffset = 0;
+
+    /**
+     * The number of packets written.
+     */
+    private long packetCount = 0;
+
+    /**
+     * The number of bytes written, headers included.
+     */
+    private long byteCount = HEADER_LENGTH;
+
+    /**
+     * Create a capture file.
+     * 
+     * @param path is the file, it must not exist.
+     * @param mediaType is the <tt>MediaType</tt> of the packets.
+     * @param ssrc is the ssrc of the packets.
+     * @param chunkSize is the number of bytes mapped at once.
+     * @throws IOException if the file exists or can't be created.
+     */
+    public RtpCaptureFile(File path, MediaType mediaType, long ssrc,
+        int chunkSize)
+        throws IOException
+    {
+        if (!path.createNewFile())
+            throw new IOException("File exists or cannot be created: " + path);
+
+        this.chunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize);
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        chunk = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.chunkSize);
+
+        chunk.putInt(MAGIC);
+        chunk.put((byte) VERSION);
+        chunk.put((byte) mediaType.ordinal());
+        chunk.putShort((short) 0);
+        chunk.putLong(ssrc);
+    }
+
+    /**
+     * Append a packet. It is dropped if the file has been closed.
+     * 
+     * @param buf is the buffer holding the packet.
+     * @param off is the offset of the packet in the buffer.
+     * @param len is the length of the packet.
+     * @param arrivalTime is the arrival time of the packet, in microseconds
+     *            since the epoch.
+     * @param rtcp whether the packet is RTCP.
+     * @throws IOException if failed to map the next chunk.
+     */
+    public synchronized void append(byte[] buf, int off, int len,
+        long arrivalTime, boolean rtcp)
+        throws IOException
+    {
+        if (closed || len <= 0)
+            return;
+
+        final int recordLength = RECORD_HEADER_LENGTH + len;
+        if (chunk.remaining() < recordLength)
+            nextChunk(recordLength);
+
+        chunk.putInt(len);
+        chunk.putLong(arrivalTime);
+        chunk.put((byte) (rtcp ? FLAG_RTCP : 0));
+        chunk.put(buf, off, len);
+        packetCount++;
+        byteCount += recordLength;
+    }
+
+    /**
+     * Map the chunk following the written bytes.
+     * 
+     * @param needed is the number of bytes the chunk must hold at least.
+     * @throws IOException if failed to map it.
+     */
+    private void nextChunk(int needed)
+        throws IOException
+    {
+        final MappedByteBuffer full = chunk;
+        lastForce = forceExecutor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                full.force();
+            }
+        });
+
+        chunkOffset += chunk.position();
+        chunk =
+            channel.map(FileChannel.MapMode.READ_WRITE, chunkOffset,
+                Math.max(chunkSize, needed));
+    }
+
+    /**
+     * Get the number of packets written.
+     * 
+     * @return the number of packets.
+     */
+    public synchronized long getPacketCount()
+    {
+        return packetCount;
+    }
+
+    /**
+     * Get the number of bytes written, headers included.
+     * 
+     * @return the number of bytes.
+     */
+    public synchronized long getByteCount()
+    {
+        return byteCount;
+    }
+
+    /**
+     * Force the written packets to the disk, cut the unused part of the last
+     * chunk and close the file. Closing it again does nothing.
+     * 
+     * @throws IOException if failed to close it.
+     */
+    public synchronized void close()
+        throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+
+        try
+        {
+            // The full chunks must not be forced once the file has been cut.
+            if (null != lastForce)
+                awaitForce(lastForce);
+            chunk.force();
+            channel.truncate(byteCount);
+        }
+        finally
+        {
+            chunk = null;
+            lastForce = null;
+            file.close();
+        }
+    }
+
+    /**
+     * Wait for the forcing of a chunk.
+     * 
+     * @param force is the forcing of the chunk.
+     * @throws IOException if failed to force it.
+     */
+    private static void awaitForce(Future<?> force)
+        throws IOException
+    {
+        try
+        {
+            force.get();
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Failed to force the capture file",
+                e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while forcing the"
+                + " capture file");
+        }
+    }
+
+    /**
+     * Get the ssrc of a packet.
+     * 
+     * @param buf is the buffer holding the packet.
+     * @param off is the offset of the packet in the buffer.
+     * @param len is the length of the packet.
+     * @param rtcp whether the packet is RTCP.
+     * @return the ssrc of the sender, or -1 if the packet is too short.
+     */
+    public static long getSsrc(byte[] buf, int off, int len, boolean rtcp)
+    {
+        // The sender ssrc of RTCP follows the common header, the one of RTP
+        // follows the timestamp.
+        final int at = rtcp ? 4 : 8;
+        if (len < at + 4)
+            return -1;
+        return ByteBuffer.wrap(buf, off + at, 4).getInt() & 0xFFFFFFFFL;
+    }
+}
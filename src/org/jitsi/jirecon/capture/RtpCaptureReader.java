@@ -0,0 +1,226 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.capture;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.impl.neomedia.format.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.format.*;
+import org.json.simple.*;
+import org.json.simple.parser.*;
+
+/**
+ * Reads a capture file written by <tt>RtpCaptureFile</tt>.
+ */
+public class RtpCaptureReader
+    implements ReplaySource
+{
+    /**
+     * The input of the file.
+     */
+    private final DataInputStream in;
+
+    /**
+     * The <tt>MediaType</tt> of the packets.
+     */
+    private final MediaType mediaType;
+
+    /**
+     * The ssrc of the packets.
+     */
+    private final long ssrc;
+
+    /**
+     * Open a capture file.
+     * 
+     * @param path is the file.
+     * @throws IOException if it can't be opened or isn't a capture file.
+     */
+    public RtpCaptureReader(File path)
+        throws IOException
+    {
+        in =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(
+                path)));
+        try
+        {
+            if (RtpCaptureFile.MAGIC != in.readInt())
+                throw new IOException("Not a capture file: " + path);
+            final int version = in.readUnsignedByte();
+            if (version > RtpCaptureFile.VERSION)
+                throw new IOException("Unknown capture version " + version);
+            final int type = in.readUnsignedByte();
+            if (type >= MediaType.values().length)
+                throw new IOException("Unknown media type " + type);
+            mediaType = MediaType.values()[type];
+            in.readShort();
+            ssrc = in.readLong();
+        }
+        catch (IOException e)
+        {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the <tt>MediaType</tt> of the packets.
+     * 
+     * @return the <tt>MediaType</tt>.
+     */
+    public MediaType getMediaType()
+    {
+        return mediaType;
+    }
+
+    /**
+     * Get the ssrc of the packets.
+     * 
+     * @return the ssrc.
+     */
+    public long getSsrc()
+    {
+        return ssrc;
+    }
+
+    /**
+     * Read the next packet.
+     * 
+     * @return the packet, or null at the end of the capture.
+     * @throws IOException if the file is truncated.
+     */
+    @Override
+    public CapturedPacket next()
+        throws IOException
+    {
+        final int length;
+        try
+        {
+            length = in.readInt();
+        }
+        catch (EOFException e)
+        {
+            return null;
+        }
+        if (length <= 0)
+            return null;
+
+        final long arrivalTime = in.readLong();
+        final int flags = in.readUnsignedByte();
+        final byte[] data = new byte[length];
+        in.readFully(data);
+        return new CapturedPacket(mediaType, data, arrivalTime,
+            0 != (flags & RtpCaptureFile.FLAG_RTCP));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        in.close();
+    }
+
+    /**
+     * Read the payload types of the captures of a directory, written by
+     * <tt>RtpCaptureWriter.writeFormats</tt>.
+     * 
+     * @param dir is the directory of the captures, or the formats file
+     *            itself.
+     * @return the map between <tt>MediaType</tt> and the payload types of its
+     *         <tt>MediaFormat</tt>s.
+     * @throws IOException if the file can't be read or parsed.
+     */
+    public static Map<MediaType, Map<MediaFormat, Byte>> readFormats(File dir)
+        throws IOException
+    {
+        final Object parsed;
+        final Reader in =
+            new InputStreamReader(new FileInputStream(
+                dir.isDirectory() ? new File(dir,
+                    RtpCaptureWriter.FORMATS_FILE_NAME) : dir), "UTF-8");
+        try
+        {
+            parsed = new JSONParser().parse(in);
+        }
+        catch (ParseException e)
+        {
+            throw new IOException("Malformed formats file, " + e.getMessage());
+        }
+        finally
+        {
+            in.close();
+        }
+        if (!(parsed instanceof JSONObject))
+            throw new IOException("Malformed formats file");
+
+        final Map<MediaType, Map<MediaFormat, Byte>> formatAndPTs =
+            new HashMap<MediaType, Map<MediaFormat, Byte>>();
+        final MediaFormatFactoryImpl fmtFactory = new MediaFormatFactoryImpl();
+        for (Object o : ((JSONObject) parsed).entrySet())
+        {
+            final Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            final MediaType mediaType =
+                MediaType.parseString(e.getKey().toString());
+            final Map<MediaFormat, Byte> formats =
+                new HashMap<MediaFormat, Byte>();
+            for (Object f : (JSONArray) e.getValue())
+            {
+                final JSONObject format = (JSONObject) f;
+                final Number channels = (Number) format.get("channels");
+                final MediaFormat mediaFormat =
+                    fmtFactory.createMediaFormat(
+                        (String) format.get("encoding"),
+                        ((Number) format.get("clockRate")).doubleValue(),
+                        null == channels ? 1 : channels.intValue());
+                if (null != mediaFormat)
+                    formats.put(mediaFormat,
+                        ((Number) format.get("pt")).byteValue());
+            }
+            formatAndPTs.put(mediaType, formats);
+        }
+        return formatAndPTs;
+    }
+
+    /**
+     * A captured packet.
+     */
+    public static class CapturedPacket
+    {
+        /**
+         * The <tt>MediaType</tt> of the packet.
+         */
+        public final MediaType mediaType;
+
+        /**
+         * The packet.
+         */
+        public final byte[] data;
+
+        /**
+         * The arrival time of the packet, in microseconds since the epoch.
+         */
+        public final long arrivalTime;
+
+        /**
+         * Whether the packet is RTCP.
+         */
+        public final boolean rtcp;
+
+        public CapturedPacket(MediaType mediaType, byte[] data,
+            long arrivalTime, boolean rtcp)
+        {
+            this.mediaType = mediaType;
+            this.data = data;
+            this.arrivalTime = arrivalTime;
+            this.rtcp = rtcp;
+        }
+    }
+}
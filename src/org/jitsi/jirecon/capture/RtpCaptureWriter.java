@@ -0,0 +1,237 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.capture;
+
+import java.io.*;
+import java.util.*;
+import java.util.Map.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.format.*;
+import org.jitsi.util.*;
+import org.json.simple.*;
+
+/**
+ * A <tt>RTPTranslator.WriteFilter</tt> which captures the packets of a
+ * <tt>RTPTranslator</tt> into one <tt>RtpCaptureFile</tt> per ssrc, instead of
+ * letting them reach the <tt>Recorder</tt>.
+ * <p>
+ * The packets are already SRTP-decrypted when the translator writes them. The
+ * files are named "&lt;media type&gt;-&lt;ssrc&gt;.rtpcap".
+ */
+public class RtpCaptureWriter
+    implements RTPTranslator.WriteFilter
+{
+    /**
+     * The <tt>Logger</tt>.
+     */
+    private static final Logger logger = Logger
+        .getLogger(RtpCaptureWriter.class.getName());
+
+    /**
+     * The extension of the capture files.
+     */
+    public static final String FILE_EXTENSION = ".rtpcap";
+
+    /**
+     * The name of the file describing the payload types of the captures.
+     */
+    public static final String FORMATS_FILE_NAME = "formats.json";
+
+    /**
+     * The directory of the capture files.
+     */
+    private final File dir;
+
+    /**
+     * The <tt>MediaType</tt> of the captured packets.
+     */
+    private final MediaType mediaType;
+
+    /**
+     * The number of bytes mapped at once in the capture files.
+     */
+    private final int chunkSize;
+
+    /**
+     * The map between ssrc and its capture file.
+     */
+    private final Map<Long, RtpCaptureFile> files =
+        new HashMap<Long, RtpCaptureFile>();
+
+    /**
+     * The wall clock, in microseconds, matching {@link #baseNanoTime}.
+     */
+    private final long baseTime = System.currentTimeMillis() * 1000;
+
+    /**
+     * The <tt>System.nanoTime()</tt> when this writer was created.
+     */
+    private final long baseNanoTime = System.nanoTime();
+
+    /**
+     * The number of packets which couldn't be captured.
+     */
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Whether this writer has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * Create a writer.
+     * 
+     * @param dir is the directory of the capture files.
+     * @param mediaType is the <tt>MediaType</tt> of the captured packets.
+     * @param chunkSize is the number of bytes mapped at once in the capture
+     *            files.
+     */
+    public RtpCaptureWriter(File dir, MediaType mediaType, int chunkSize)
+    {
+        this.dir = dir;
+        this.mediaType = mediaType;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Capture a packet written by the translator. It never reaches the
+     * destination.
+     * 
+     * @return false, always.
+     */
+    @Override
+    public boolean accept(MediaStream source, byte[] buf, int off, int len,
+        MediaStream destination, boolean data)
+    {
+        final long arrivalTime =
+            baseTime + (System.nanoTime() - baseNanoTime) / 1000;
+        final boolean rtcp = !data;
+        final long ssrc = RtpCaptureFile.getSsrc(buf, off, len, rtcp);
+        if (-1 == ssrc)
+            return false;
+
+        try
+        {
+            final RtpCaptureFile file = getFile(ssrc);
+            if (null != file)
+                file.append(buf, off, len, arrivalTime, rtcp);
+        }
+        catch (IOException e)
+        {
+            // Log the first failure only, the following ones are counted.
+            if (0 == failed.getAndIncrement())
+                logger.error("Failed to capture " + mediaType + " packet of "
+                    + ssrc + ", " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Get the capture file of a ssrc, create it if it doesn't exist.
+     * 
+     * @param ssrc is the ssrc.
+     * @return the capture file, or null if this writer has been closed.
+     * @throws IOException if the file can't be created.
+     */
+    private synchronized RtpCaptureFile getFile(long ssrc)
+        throws IOException
+    {
+        if (closed)
+            return null;
+
+        RtpCaptureFile file = files.get(ssrc);
+        if (null == file)
+        {
+            file =
+                new RtpCaptureFile(new File(dir, mediaType + "-" + ssrc
+                    + FILE_EXTENSION), mediaType, ssrc, chunkSize);
+            files.put(ssrc, file);
+        }
+        return file;
+    }
+
+    /**
+     * Close all capture files.
+     */
+    public void close()
+    {
+        final List<RtpCaptureFile> toClose;
+        synchronized (this)
+        {
+            if (closed)
+                return;
+            closed = true;
+            toClose = new ArrayList<RtpCaptureFile>(files.values());
+        }
+
+        long packets = 0;
+        long bytes = 0;
+        for (RtpCaptureFile file : toClose)
+        {
+            try
+            {
+                file.close();
+            }
+            catch (IOException e)
+            {
+                logger.error("Failed to close capture file, " + e.getMessage());
+            }
+            packets += file.getPacketCount();
+            bytes += file.getByteCount();
+        }
+        logger.info("Captured " + packets + " " + mediaType + " packets, "
+            + bytes + " bytes, into " + toClose.size() + " files, "
+            + failed.get() + " failed");
+    }
+
+    /**
+     * Write the payload types of the captures, so that they can be converted
+     * later.
+     * 
+     * @param dir is the directory of the captures.
+     * @param formatAndPTs is the map between <tt>MediaType</tt> and the
+     *            payload types of its <tt>MediaFormat</tt>s.
+     * @throws IOException if failed to write the file.
+     */
+    @SuppressWarnings("unchecked")
+    public static void writeFormats(File dir,
+        Map<MediaType, Map<MediaFormat, Byte>> formatAndPTs)
+        throws IOException
+    {
+        final JSONObject json = new JSONObject();
+        for (Entry<MediaType, Map<MediaFormat, Byte>> e : formatAndPTs
+            .entrySet())
+        {
+            final JSONArray formats = new JSONArray();
+            for (Entry<MediaFormat, Byte> f : e.getValue().entrySet())
+            {
+                final JSONObject format = new JSONObject();
+                format.put("pt", (long) (f.getValue() & 0xFF));
+                format.put("encoding", f.getKey().getEncoding());
+                format.put("clockRate", (long) f.getKey().getClockRate());
+                if (f.getKey() instanceof AudioMediaFormat)
+                    format.put("channels",
+                        (long) ((AudioMediaFormat) f.getKey()).getChannels());
+                formats.add(format);
+            }
+            json.put(e.getKey().toString(), formats);
+        }
+
+        final Writer out =
+            new OutputStreamWriter(new FileOutputStream(new File(dir,
+                FORMATS_FILE_NAME)), "UTF-8");
+        try
+        {
+            json.writeJSONString(out);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.datachannel;
+
+import java.io.*;
+import java.util.*;
+
+import org.json.simple.parser.*;
+
+/**
+ * Decodes the colibri messages which the videobridge sends over the data
+ * channel, and dispatches them by their <tt>colibriClass</tt> to a
+ * <tt>MessageHandler</tt>.
+ * <p>
+ * The messages are decoded as a stream of JSON tokens: only the primitive
+ * fields of the message object and its arrays of primitives are kept, nested
+ * objects are skipped without being built. The decoder is meant to be reused
+ * for every message of a data channel, it isn't thread-safe.
+ */
+public class ColibriMessageDecoder
+    implements ContentHandler
+{
+    /**
+     * The class of the dominant speaker messages.
+     */
+    public static final String DOMINANT_SPEAKER_CLASS =
+        "DominantSpeakerEndpointChangeEvent";
+
+    /**
+     * The class of the last-N messages.
+     */
+    public static final String LAST_N_CLASS = "LastNEndpointsChangeEvent";
+
+    /**
+     * The class of the endpoint connectivity messages.
+     */
+    public static final String ENDPOINT_CONNECTIVITY_CLASS =
+        "EndpointConnectivityStatusChangeEvent";
+
+    /**
+     * The handler of the decoded messages.
+     */
+    private final MessageHandler handler;
+
+    /**
+     * The parser, reused for every message.
+     */
+    private final JSONParser parser = new JSONParser();
+
+    /**
+     * The primitive fields of the message being decoded.
+     */
+    private final Map<String, Object> fields = new HashMap<String, Object>();
+
+    /**
+     * The arrays of primitives of the message being decoded.
+     */
+    private final Map<String, List<String>> arrays =
+        new HashMap<String, List<String>>();
+
+    /**
+     * The nesting depth of the current token, 1 being the message object.
+     */
+    private int depth;
+
+    /**
+     * The name of the current field of the message object.
+     */
+    private String field;
+
+    /**
+     * The array being decoded, if it is a field of the message object.
+     */
+    private List<String> array;
+
+    /**
+     * Create a decoder.
+     * 
+     * @param handler is the handler of the decoded messages.
+     */
+    public ColibriMessageDecoder(MessageHandler handler)
+    {
+        this.handler = handler;
+    }
+
+    /**
+     * Decode a message and dispatch it to the handler.
+     * 
+     * @param message is the JSON message.
+     * @return false if the message lacks the fields of its class, otherwise
+     *         true.
+     * @throws ParseException if the message isn't valid JSON.
+     */
+    public boolean decode(String message)
+        throws ParseException
+    {
+        parser.parse(message, this);
+
+        final Object colibriClass = fields.get("colibriClass");
+        // Former bridges sent the dominant speaker without any class.
+        if (DOMINANT_SPEAKER_CLASS.equals(colibriClass)
+            || (null == colibriClass && fields
+                .containsKey("dominantSpeakerEndpoint")))
+        {
+            final Object endpoint = fields.get("dominantSpeakerEndpoint");
+            if (null == endpoint)
+                return false;
+            handler.onDominantSpeakerChanged(endpoint.toString());
+        }
+        else if (LAST_N_CLASS.equals(colibriClass))
+        {
+            final List<String> lastN = arrays.get("lastNEndpoints");
+            if (null == lastN)
+                return false;
+            final List<String> entering = arrays.get("endpointsEnteringLastN");
+            handler.onLastNChanged(lastN, null == entering ? Collections
+                .<String> emptyList() : entering);
+        }
+        else if (ENDPOINT_CONNECTIVITY_CLASS.equals(colibriClass))
+        {
+            final Object endpoint = fields.get("endpoint");
+            if (null == endpoint)
+                return false;
+            handler.onEndpointConnectivityChanged(endpoint.toString(),
+                Boolean.parseBoolean(String.valueOf(fields.get("active"))));
+        }
+        else
+        {
+            handler.onOtherMessage(null == colibriClass ? null : colibriClass
+                .toString());
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void startJSON()
+    {
+        depth = 0;
+        field = null;
+        array = null;
+        fields.clear();
+        arrays.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void endJSON()
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean startObject()
+    {
+        depth++;
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean endObject()
+    {
+        depth--;
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean startObjectEntry(String key)
+    {
+        if (1 == depth)
+            field = key;
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean endObjectEntry()
+    {
+        if (1 == depth)
+            field = null;
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean startArray()
+    {
+        depth++;
+        if (2 == depth && null != field)
+        {
+            array = new ArrayList<String>();
+            arrays.put(field, array);
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean endArray()
+    {
+        if (2 == depth)
+            array = null;
+        depth--;
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean primitive(Object value)
+        throws ParseException, IOException
+    {
+        if (1 == depth && null != field)
+            fields.put(field, value);
+        else if (2 == depth && null != array && null != value)
+            array.add(value.toString());
+        return true;
+    }
+
+    /**
+     * Handles the decoded colibri messages.
+     */
+    public interface MessageHandler
+    {
+        /**
+         * The dominant speaker of the conference changed.
+         * 
+         * @param endpointId is the id of the new dominant speaker.
+         */
+        public void onDominantSpeakerChanged(String endpointId);
+
+        /**
+         * The endpoints whose video is forwarded changed.
+         * 
+         * @param lastN is the ids of the forwarded endpoints.
+         * @param entering is the ids of the endpoints which are forwarded
+         *            from now on.
+         */
+        public void onLastNChanged(List<String> lastN, List<String> entering);
+
+        /**
+         * The connectivity of an endpoint with the bridge changed.
+         * 
+         * @param endpointId is the id of the endpoint.
+         * @param active whether the endpoint is connected.
+         */
+        public void onEndpointConnectivityChanged(String endpointId,
+            boolean active);
+
+        /**
+         * A message of another class was received.
+         * 
+         * @param colibriClass is the class of the message, null if it has
+         *            none.
+         */
+        public void onOtherMessage(String colibriClass);
+    }
+}
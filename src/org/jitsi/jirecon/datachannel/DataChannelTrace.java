@@ -0,0 +1,253 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.datachannel;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.jirecon.utils.*;
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.util.*;
+
+/**
+ * <tt>DataChannelTrace</tt> keeps the last SCTP packets of the data channels,
+ * decrypted, in a ring buffer shared by all the links, for debugging. It is
+ * switched off unless it is enabled in the configuration, in which case the
+ * ring holds the last <tt>DATA_CHANNEL_TRACE_SIZE</tt> packets.
+ * <p>
+ * The ring is dumped on demand into a pcap file, where every packet is
+ * wrapped into a fake IPv4 header so that its SCTP and data channel messages
+ * are decoded by the usual tools. The addresses of a link are 127.x.y.1 for
+ * Jirecon and 127.x.y.2 for the bridge, x.y being the id of the link.
+ * <p>
+ * When it is switched off, {@link #isEnabled()} is the only cost for the
+ * links, nothing is allocated.
+ */
+public class DataChannelTrace
+{
+    /**
+     * The <tt>Logger</tt>.
+     */
+    private static final Logger logger = Logger
+        .getLogger(DataChannelTrace.class);
+
+    /**
+     * The largest number of bytes kept of a packet.
+     */
+    private static final int SNAPLEN = 2048;
+
+    /**
+     * Link type of raw IP captures.
+     */
+    private static final int LINKTYPE_RAW = 101;
+
+    /**
+     * The protocol number of SCTP in IP headers.
+     */
+    private static final int IPPROTO_SCTP = 132;
+
+    /**
+     * The trace shared by the links, created from the configuration the first
+     * time it is needed.
+     */
+    private static DataChannelTrace instance;
+
+    /**
+     * The slots of the ring.
+     */
+    private final Slot[] slots;
+
+    /**
+     * The number of packets recorded, the next slot being this modulo the
+     * size of the ring.
+     */
+    private final AtomicLong recorded = new AtomicLong();
+
+    /**
+     * Get the trace shared by the links.
+     * 
+     * @return the trace, disabled unless the configuration enables it.
+     */
+    public static synchronized DataChannelTrace getInstance()
+    {
+        if (null == instance)
+        {
+            final ConfigurationService configuration =
+                LibJitsi.getConfigurationService();
+            int size = 0;
+            if (configuration.getBoolean(
+                ConfigurationKey.DATA_CHANNEL_TRACE_KEY, false))
+            {
+                size =
+                    Math.max(1, configuration.getInt(
+                        ConfigurationKey.DATA_CHANNEL_TRACE_SIZE_KEY, 1024));
+                logger.info("Tracing the last " + size
+                    + " data channel packets.");
+            }
+            instance = new DataChannelTrace(size);
+        }
+        return instance;
+    }
+
+    /**
+     * Create a trace.
+     * 
+     * @param size is the number of packets kept, 0 to disable the trace.
+     */
+    public DataChannelTrace(int size)
+    {
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++)
+            slots[i] = new Slot();
+    }
+
+    /**
+     * Whether the trace is enabled.
+     * 
+     * @return true if it is enabled, otherwise false.
+     */
+    public boolean isEnabled()
+    {
+        return 0 != slots.length;
+    }
+
+    /**
+     * Record a packet, overwriting the oldest one if the ring is full. It
+     * does nothing if the trace is disabled.
+     * 
+     * @param linkId is the id of the link carrying the packet.
+     * @param outbound whether the packet is sent to the bridge.
+     * @param buf is the buffer holding the SCTP packet.
+     * @param off is the offset of the packet in the buffer.
+     * @param len is the length of the packet.
+     */
+    public void record(int linkId, boolean outbound, byte[] buf, int off,
+        int len)
+    {
+        if (0 == slots.length)
+            return;
+
+        final Slot slot =
+            slots[(int) (recorded.getAndIncrement() % slots.length)];
+        synchronized (slot)
+        {
+            slot.time = System.currentTimeMillis();
+            slot.linkId = linkId;
+            slot.outbound = outbound;
+            slot.length = len;
+            System.arraycopy(buf, off, slot.data, 0, Math.min(len, SNAPLEN));
+        }
+    }
+
+    /**
+     * Write the packets of the ring, oldest first, into a pcap file.
+     * 
+     * @param file is the pcap file.
+     * @return the number of packets written.
+     * @throws IOException if the file can't be written.
+     */
+    public int dump(File file)
+        throws IOException
+    {
+        final DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try
+        {
+            return dump(out);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Write the packets of the ring, oldest first, in the pcap format.
+     * 
+     * @param out is where the pcap data is written.
+     * @return the number of packets written.
+     * @throws IOException if the data can't be written.
+     */
+    public int dump(DataOutput out)
+        throws IOException
+    {
+        // Global header, big endian, microsecond timestamps.
+        out.writeInt(0xA1B2C3D4);
+        out.writeShort(2);
+        out.writeShort(4);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(20 + SNAPLEN);
+        out.writeInt(LINKTYPE_RAW);
+
+        final long end = recorded.get();
+        final long start = Math.max(0, end - slots.length);
+        final byte[] data = new byte[SNAPLEN];
+        int count = 0;
+        for (long i = start; i < end; i++)
+        {
+            final Slot slot = slots[(int) (i % slots.length)];
+            final long time;
+            final int linkId;
+            final boolean outbound;
+            final int length;
+            synchronized (slot)
+            {
+                if (0 == slot.length)
+                    continue;
+                time = slot.time;
+                linkId = slot.linkId;
+                outbound = slot.outbound;
+                length = slot.length;
+                System.arraycopy(slot.data, 0, data, 0,
+                    Math.min(length, SNAPLEN));
+            }
+            final int captured = Math.min(length, SNAPLEN);
+
+            out.writeInt((int) (time / 1000));
+            out.writeInt((int) (time % 1000) * 1000);
+            out.writeInt(20 + captured);
+            out.writeInt(20 + length);
+
+            final int local = 0x7F000001 | ((linkId & 0xFFFF) << 8);
+            final int remote = local + 1;
+            out.writeByte(0x45);
+            out.writeByte(0);
+            out.writeShort(20 + length);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeByte(64);
+            out.writeByte(IPPROTO_SCTP);
+            out.writeShort(0);
+            out.writeInt(outbound ? local : remote);
+            out.writeInt(outbound ? remote : local);
+            out.write(data, 0, captured);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * A slot of the ring.
+     */
+    private static class Slot
+    {
+        private long time;
+
+        private int linkId;
+
+        private boolean outbound;
+
+        /**
+         * The length of the packet, 0 if the slot has never been used.
+         */
+        private int length;
+
+        private final byte[] data = new byte[SNAPLEN];
+    }
+}
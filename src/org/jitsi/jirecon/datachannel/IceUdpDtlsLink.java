@@ -11,8 +11,7 @@ import java.util.concurrent.*;
 import org.jitsi.impl.neomedia.*;
 import org.jitsi.impl.neomedia.transform.dtls.*;
 import org.jitsi.sctp4j.*;
-import org.jitsi.service.libjitsi.*;
-import org.jitsi.service.packetlogging.*;
+import org.jitsi.util.*;
 
 /**
  * An implementation of <tt>NetworkLink</tt> which is used for receiving and
@@ -32,9 +31,28 @@ public class IceUdpDtlsLink
     private final static int DTLS_BUFFER_SIZE = 2048;
 
     /**
-     * SCTP transport buffer size.
+     * Receive buffer size. It holds a whole datagram, DTLS record included,
+     * as well as the application data the record is decrypted into.
      */
-    private final static int SCTP_BUFFER_SIZE = DTLS_BUFFER_SIZE - 13;
+    private final static int RECEIVE_BUFFER_SIZE = DTLS_BUFFER_SIZE;
+
+    /**
+     * How long a receive blocks before the receiving loop checks whether the
+     * link has been closed, in milliseconds.
+     */
+    private final static int RECEIVE_TIMEOUT = 500;
+
+    /**
+     * How long {@link #close()} waits for the receiving loop to end, in
+     * milliseconds.
+     */
+    private final static long CLOSE_TIMEOUT = 2 * RECEIVE_TIMEOUT;
+
+    /**
+     * The <tt>Logger</tt>.
+     */
+    private static final Logger logger = Logger
+        .getLogger(IceUdpDtlsLink.class);
 
     /**
      * <tt>SctpSocket</tt> instance that is used in this connection.
@@ -51,13 +69,33 @@ public class IceUdpDtlsLink
      */
     private DtlsPacketTransformer transformer;
 
-    private ExecutorService executorService = Executors
-        .newSingleThreadExecutor();
+    /**
+     * The <tt>ExecutorService</tt> which runs the receiving loop. It is shared
+     * with the other links.
+     */
+    private final ExecutorService executorService;
+
+    /**
+     * The receiving loop.
+     */
+    private Future<?> receiving;
+
+    /**
+     * Whether this link has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Whether the <tt>SctpSocket</tt> waits for an incoming association. It
+     * is accepted by the receiving loop, as soon as the packets establishing
+     * it have been handed to the SCTP stack.
+     */
+    private volatile boolean accepting = false;
 
     /**
-     * Switch used for debugging SCTP traffic purposes. FIXME to be removed
+     * The trace of the SCTP packets, for debugging.
      */
-    private final static boolean LOG_SCTP_PACKETS = false;
+    private final DataChannelTrace trace = DataChannelTrace.getInstance();
 
     /**
      * Generator used to track debug IDs.
@@ -65,7 +103,7 @@ public class IceUdpDtlsLink
     private static int debugIdGen = -1;
 
     /**
-     * Debug ID used to distinguish SCTP sockets in packet logs.
+     * Debug ID used to distinguish SCTP sockets in packet traces.
      */
     private int debugId = generateDebugId();
 
@@ -74,73 +112,146 @@ public class IceUdpDtlsLink
      * @param sctpSocket Indicate which <tt>SctpSocket</tt> this link will bind to.
      * @param datagramSocket ICE-UDP socket which is used for receiving packets.
      * @param transformer DTLS transformer which is used for sending packets.
+     * @param executorService the <tt>ExecutorService</tt> which will run the
+     *            receiving loop of this link.
      */
     public IceUdpDtlsLink(SctpSocket sctpSocket, DatagramSocket datagramSocket,
-        DtlsPacketTransformer transformer)
+        DtlsPacketTransformer transformer, ExecutorService executorService)
     {
         this.sctpSocket = sctpSocket;
         this.datagramSocket = datagramSocket;
         this.transformer = transformer;
+        this.executorService = executorService;
 
         startReceiving();
     }
 
+    /**
+     * Accept the incoming association of the <tt>SctpSocket</tt>, which must
+     * be listening, once its packets have been received.
+     */
+    void acceptOnReceive()
+    {
+        accepting = true;
+    }
+
+    /**
+     * Stop the receiving loop and wait for it to end. The sockets aren't
+     * closed.
+     */
+    void close()
+    {
+        closed = true;
+        if (null == receiving)
+            return;
+        try
+        {
+            receiving.get(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            logger.warn("Receiving loop didn't end in " + CLOSE_TIMEOUT + " ms");
+        }
+        catch (ExecutionException e)
+        {
+            logger.error("Receiving loop failed", e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private void startReceiving()
     {
-        executorService.execute(new Runnable()
+        receiving = executorService.submit(new Runnable()
         {
             public void run()
             {
-                byte[] receiveBuffer = new byte[SCTP_BUFFER_SIZE];
-                DatagramPacket rcvPacket =
+                /*
+                 * The buffer, the datagram and the packet of the link are
+                 * reused for every datagram. Decrypting with reverseTransform
+                 * still allocates in the DTLS stack.
+                 */
+                final byte[] receiveBuffer = new byte[RECEIVE_BUFFER_SIZE];
+                final DatagramPacket rcvPacket =
                     new DatagramPacket(receiveBuffer, 0, receiveBuffer.length);
+                final RawPacket rcvRaw = new RawPacket();
 
                 try
                 {
-                    /*
-                     * Once SctpSocket is closed, this loop will be broken down,
-                     * so we don't have to worry about closing this link.
-                     */
-                    do
+                    // Let the loop notice that the link has been closed.
+                    datagramSocket.setSoTimeout(RECEIVE_TIMEOUT);
+
+                    while (!closed)
                     {
-                        datagramSocket.receive(rcvPacket);
+                        // The previous datagram may have shortened it.
+                        rcvPacket.setLength(receiveBuffer.length);
+                        try
+                        {
+                            datagramSocket.receive(rcvPacket);
+                        }
+                        catch (SocketTimeoutException e)
+                        {
+                            continue;
+                        }
 
-                        RawPacket raw =
-                            new RawPacket(rcvPacket.getData(), rcvPacket
-                                .getOffset(), rcvPacket.getLength());
+                        // reverseTransform may have replaced the buffer.
+                        rcvRaw.setBuffer(receiveBuffer);
+                        rcvRaw.setOffset(rcvPacket.getOffset());
+                        rcvRaw.setLength(rcvPacket.getLength());
 
-                        raw = transformer.reverseTransform(raw);
+                        RawPacket raw = transformer.reverseTransform(rcvRaw);
                         // Check for app data
                         if (raw == null)
                             continue;
 
-                        if (LOG_SCTP_PACKETS)
+                        if (trace.isEnabled())
                         {
-                            LibJitsi.getPacketLoggingService().logPacket(
-                                PacketLoggingService.ProtocolName.ICE4J,
-                                new byte[]
-                                { 0, 0, 0, (byte) (debugId + 1) },
-                                datagramSocket.getPort(), new byte[]
-                                { 0, 0, 0, (byte) debugId }, 5000,
-                                PacketLoggingService.TransportName.UDP, false,
-                                raw.getBuffer(), raw.getOffset(),
-                                raw.getLength());
+                            trace.record(debugId, false, raw.getBuffer(),
+                                raw.getOffset(), raw.getLength());
                         }
 
                         // Pass network packet to SCTP stack
                         sctpSocket.onConnIn(raw.getBuffer(), raw.getOffset(),
                             raw.getLength());
+
+                        if (accepting)
+                            accept();
                     }
-                    while (true);
                 }
                 catch (IOException e)
                 {
-                    e.printStackTrace();
+                    // Closing the sockets under the loop ends it as well.
+                    if (!closed && !datagramSocket.isClosed())
+                        logger.error("SCTP receiving loop failed", e);
                 }
             }
         });
     }
 
+    /**
+     * Try to accept the SCTP association. A failure is logged and accepting
+     * is tried again with the next datagram, it doesn't end the receiving
+     * loop.
+     */
+    private void accept()
+    {
+        try
+        {
+            if (sctpSocket.accept())
+            {
+                accepting = false;
+                logger.debug("SCTP association accepted");
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to accept the SCTP association, "
+                + e.getMessage());
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -148,13 +259,14 @@ public class IceUdpDtlsLink
     public void onConnOut(final SctpSocket s, final byte[] packetData)
         throws IOException
     {
-        RawPacket rawPacket = new RawPacket();
-
-        // Send through DTLS transport
-        rawPacket.setBuffer(packetData);
-        rawPacket.setLength(packetData.length);
-
-        transformer.transform(rawPacket);
+        /*
+         * Send through DTLS transport. The packet is handed over as is, rather
+         * than wrapped into a RawPacket for transform(), which would also take
+         * a SCTP packet looking like a DTLS record for one and not send it.
+         */
+        if (trace.isEnabled())
+            trace.record(debugId, true, packetData, 0, packetData.length);
+        transformer.sendApplicationData(packetData, 0, packetData.length);
     }
 
     private static synchronized int generateDebugId()
@@ -0,0 +1,112 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.datachannel;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A table of values indexed by SCTP stream id ("sid"), such as the
+ * <tt>WebRtcDataStream</tt>s of a SCTP connection.
+ * <p>
+ * The sids are split into pages of {@link #PAGE_SIZE}, which are allocated
+ * the first time one of their sids is set, so a connection using a few sids
+ * only holds a few small arrays. Neither reads nor writes take a lock, hence
+ * the messages of the data channels are never held up by the opening of
+ * another one.
+ * 
+ * @param <T> the type of the values.
+ */
+public class SidTable<T>
+{
+    /**
+     * The number of sids, which are 16 bits unsigned integers.
+     */
+    public static final int SID_COUNT = 0x10000;
+
+    /**
+     * The number of bits of a sid which index it in its page.
+     */
+    private static final int PAGE_BITS = 8;
+
+    /**
+     * The number of sids of a page.
+     */
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    /**
+     * The pages, null until one of their sids is set.
+     */
+    private final AtomicReferenceArray<AtomicReferenceArray<T>> pages =
+        new AtomicReferenceArray<AtomicReferenceArray<T>>(SID_COUNT
+            / PAGE_SIZE);
+
+    /**
+     * Get the value with specified "sid".
+     * 
+     * @param sid
+     * @return The value, or null if there is none, the sid being out of
+     *         range included.
+     */
+    public T get(int sid)
+    {
+        if (sid < 0 || sid >= SID_COUNT)
+            return null;
+
+        AtomicReferenceArray<T> page = pages.get(sid >>> PAGE_BITS);
+        return null == page ? null : page.get(sid & (PAGE_SIZE - 1));
+    }
+
+    /**
+     * Set the value with specified "sid".
+     * 
+     * @param sid
+     * @param value is the value, null to remove it.
+     * @return The value which had this sid, or null.
+     * @throws IllegalArgumentException if the sid is out of range.
+     */
+    public T set(int sid, T value)
+    {
+        if (sid < 0 || sid >= SID_COUNT)
+            throw new IllegalArgumentException("Illegal sid: " + sid);
+
+        if (null == value)
+        {
+            AtomicReferenceArray<T> page = pages.get(sid >>> PAGE_BITS);
+            return null == page ? null : page.getAndSet(sid & (PAGE_SIZE - 1),
+                null);
+        }
+        return getPage(sid).getAndSet(sid & (PAGE_SIZE - 1), value);
+    }
+
+    /**
+     * Remove all the values. A value set meanwhile may be removed as well.
+     */
+    public void clear()
+    {
+        for (int i = 0; i < pages.length(); i++)
+            pages.set(i, null);
+    }
+
+    /**
+     * Get the page of a sid, allocating it if it doesn't exist yet.
+     * 
+     * @param sid
+     * @return The page.
+     */
+    private AtomicReferenceArray<T> getPage(int sid)
+    {
+        final int index = sid >>> PAGE_BITS;
+        AtomicReferenceArray<T> page = pages.get(index);
+        if (null == page)
+        {
+            page = new AtomicReferenceArray<T>(PAGE_SIZE);
+            // Another thread may have allocated the page meanwhile.
+            if (!pages.compareAndSet(index, null, page))
+                page = pages.get(index);
+        }
+        return page;
+    }
+}
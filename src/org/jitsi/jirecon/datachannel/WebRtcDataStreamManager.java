@@ -8,7 +8,6 @@ package org.jitsi.jirecon.datachannel;
 import java.io.*;
 import java.net.*;
 import java.nio.*;
-import java.util.*;
 import java.util.concurrent.*;
 import javax.media.rtp.*;
 import org.jitsi.impl.neomedia.*;
@@ -55,7 +54,11 @@ public class WebRtcDataStreamManager
         "http://jitsi.org/protocols/colibri";
 
     /**
-     * The pool of <tt>Thread</tt>s which run <tt>SctpConnection</tt>s.
+     * The pool of <tt>Thread</tt>s which run the receiving loops of the
+     * <tt>IceUdpDtlsLink</tt>s. It is shared by all the managers, so the
+     * threads of closed links are reused by new ones. It doesn't bound the
+     * number of threads though: every open link still holds one, because the
+     * ICE sockets can't be multiplexed by a selector.
      */
     private static final ExecutorService threadPool = ExecutorUtils
         .newCachedThreadPool(true, WebRtcDataStreamManager.class.getName());
@@ -77,16 +80,28 @@ public class WebRtcDataStreamManager
      */
     private SctpSocket sctpSocket;
 
+    /**
+     * The link carrying the packets of {@link #sctpSocket}.
+     */
+    private IceUdpDtlsLink link;
+
     /**
      * Owner endpoint id.
      */
     private String endpointId;
 
     /**
-     * Map of "sid" and <tt>WebRtcDataStream</tt>.
+     * Table of "sid" and <tt>WebRtcDataStream</tt>. It is read without any
+     * lock by the data messages.
+     */
+    private final SidTable<WebRtcDataStream> channels =
+        new SidTable<WebRtcDataStream>();
+
+    /**
+     * Serializes the opening of the channels, whether by us or by the remote
+     * peer. The data messages never take it.
      */
-    private Map<Integer, WebRtcDataStream> channels =
-        new HashMap<Integer, WebRtcDataStream>();
+    private final Object controlLock = new Object();
 
     /**
      * This receiver is used for handling control packets and forward message
@@ -94,7 +109,7 @@ public class WebRtcDataStreamManager
      */
     private SctpPacketReceiver packetReceiver = new SctpPacketReceiver();
     
-    private WebRtcDataStreamListener listener;
+    private volatile WebRtcDataStreamListener listener;
 
     /**
      * 
@@ -123,25 +138,12 @@ public class WebRtcDataStreamManager
         {
             initSctp(connector, streamTarget, dtlsControl);
 
-            // FIXME manage threads
-            threadPool.execute(new Runnable()
-            {
-                @Override
-                public void run()
-                {
-                    try
-                    {
-                        while (!sctpSocket.accept())
-                        {
-                            Thread.sleep(100);
-                        }
-                    }
-                    catch (Exception e)
-                    {
-                        logger.error("Error accepting SCTP connection", e);
-                    }
-                }
-            });
+            /*
+             * The association is accepted by the receiving loop of the link,
+             * when the packets establishing it arrive, rather than by polling.
+             */
+            sctpSocket.listen();
+            link.acceptOnReceive();
         }
         catch (Exception e)
         {
@@ -208,11 +210,9 @@ public class WebRtcDataStreamManager
      * @param sid
      * @return
      */
-    public synchronized WebRtcDataStream getChannel(int sid)
+    public WebRtcDataStream getChannel(int sid)
     {
-        WebRtcDataStream channel = null;
-
-        channel = channels.get(sid);
+        WebRtcDataStream channel = channels.get(sid);
         if (null == channel)
         {
             logger.error("No channel found for sid: " + sid);
@@ -221,7 +221,7 @@ public class WebRtcDataStreamManager
         return channel;
     }
     
-    public synchronized void setListener(WebRtcDataStreamListener listener)
+    public void setListener(WebRtcDataStreamListener listener)
     {
         this.listener = listener;
     }
@@ -263,17 +263,27 @@ public class WebRtcDataStreamManager
         final DatagramSocket iceUdpSocket = rtpConnector.getDataSocket();
 
         sctpSocket = Sctp.createSocket(5000);
-        sctpSocket.setLink(new IceUdpDtlsLink(sctpSocket, iceUdpSocket,
-            transformer));
+        link =
+            new IceUdpDtlsLink(sctpSocket, iceUdpSocket, transformer,
+                threadPool);
+        sctpSocket.setLink(link);
         sctpSocket.setNotificationListener(packetReceiver);
         sctpSocket.setDataCallback(packetReceiver);
     }
 
     private void uinitSctp() throws IOException
     {
+        // The connection may never have been started.
+        if (null == sctpSocket)
+            return;
+        // No packet may reach the SCTP stack once it is finished.
+        link.close();
+        link = null;
         sctpSocket.close();
         // TODO: Don't we need to remove callback from SctpSocket?
         sctpSocket = null;
+        // The channels were bound to the closed socket.
+        channels.clear();
         Sctp.finish();
     }
 
@@ -283,16 +293,24 @@ public class WebRtcDataStreamManager
      * @param data raw packet data that arrived on control PPID.
      * @param sid SCTP stream id on which the data has arrived.
      */
-    private synchronized void onCtrlPacket(byte[] data, int sid)
+    private void onCtrlPacket(byte[] data, int sid)
         throws IOException
     {
-        System.out.print("Control Packet");
-        for (byte b : data)
+        synchronized (controlLock)
         {
-            System.out.printf("%03d ", b);
+            handleCtrlPacket(data, sid);
         }
-        System.out.println();
+    }
 
+    /**
+     * Handles control packet, holding {@link #controlLock}.
+     * 
+     * @param data raw packet data that arrived on control PPID.
+     * @param sid SCTP stream id on which the data has arrived.
+     */
+    private void handleCtrlPacket(byte[] data, int sid)
+        throws IOException
+    {
         ByteBuffer buffer = ByteBuffer.wrap(data);
         int messageType = /* 1 byte unsigned integer */0xFF & buffer.get();
 
@@ -367,20 +385,19 @@ public class WebRtcDataStreamManager
                     + reliability + " label: " + label + " proto: " + protocol);
             }
 
-            if (channels.containsKey(sid))
+            WebRtcDataStream newChannel =
+                new WebRtcDataStream(sctpSocket, sid, label, true);
+            if (null != channels.set(sid, newChannel))
             {
                 logger.error("Channel on sid: " + sid + " already exists");
             }
 
-            WebRtcDataStream newChannel =
-                new WebRtcDataStream(sctpSocket, sid, label, true);
-            channels.put(sid, newChannel);
-
             sendOpenChannelAck(sid);
 
             /*
              * Notify listener that we have built a new channel
              */
+            WebRtcDataStreamListener listener = this.listener;
             if (null != listener)
                 listener.onChannelOpened(newChannel);
         }
@@ -423,10 +440,28 @@ public class WebRtcDataStreamManager
      *         WebRTC data channel.
      * @throws IOException if IO error occurs.
      */
-    public synchronized WebRtcDataStream openChannel(int type, int prio,
-        long reliab, int sid, String label) throws IOException
+    public WebRtcDataStream openChannel(int type, int prio, long reliab,
+        int sid, String label) throws IOException
     {
-        if (channels.containsKey(sid))
+        synchronized (controlLock)
+        {
+            return doOpenChannel(type, prio, reliab, sid, label);
+        }
+    }
+
+    /**
+     * Opens new WebRTC data channel, holding {@link #controlLock}.
+     * 
+     * @see #openChannel(int, int, long, int, String)
+     */
+    private WebRtcDataStream doOpenChannel(int type, int prio, long reliab,
+        int sid, String label) throws IOException
+    {
+        if (sid < 0 || sid >= SidTable.SID_COUNT)
+        {
+            throw new IOException("Illegal sid: " + sid);
+        }
+        if (null != channels.get(sid))
         {
             throw new IOException("Channel on sid: " + sid + " already exists");
         }
@@ -493,13 +528,6 @@ public class WebRtcDataStreamManager
             packet.put(protocolBytes, 0, protocolByteLength);
         }
 
-        System.out.print("openChannel: ");
-        for (byte b : packet.array())
-        {
-            System.out.printf("%03d ", b);
-        }
-        System.out.println();
-
         int sentCount =
             sctpSocket.send(packet.array(), true, sid,
                 WebRtcDataStream.WEB_RTC_PPID_CTRL);
@@ -512,7 +540,7 @@ public class WebRtcDataStreamManager
         WebRtcDataStream channel =
             new WebRtcDataStream(sctpSocket, sid, label, false);
 
-        channels.put(sid, channel);
+        channels.set(sid, channel);
 
         return channel;
     }
@@ -563,7 +591,6 @@ public class WebRtcDataStreamManager
                 catch (IOException e)
                 {
                     logger.error("IOException when processing ctrl packet", e);
-                    e.printStackTrace();
                 }
             }
             else if (WebRtcDataStream.WEB_RTC_PPID_STRING == ppid)
@@ -0,0 +1,360 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.metadata;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.neomedia.recording.*;
+import org.jitsi.util.*;
+
+/**
+ * A <tt>RecorderEventHandler</tt> which hands the events to a
+ * <tt>MetadataSink</tt> on a writer thread, so that the media and event
+ * threads never wait for the disk.
+ * <p>
+ * The events are queued in a bounded buffer. When it is full, new events are
+ * dropped and counted rather than blocking the caller. The writer forces the
+ * file to the disk after a number of events or an amount of time, whichever
+ * comes first, and when the handler is closed.
+ */
+public class AsyncRecorderEventHandler
+    implements RecorderEventHandler
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(AsyncRecorderEventHandler.class.getName());
+
+    /**
+     * The maximum number of events written before the writer gives its thread
+     * back.
+     */
+    private static final int MAX_WRITE_BATCH = 256;
+
+    /**
+     * How long {@link #close()} waits for the queued events to be written, in
+     * milliseconds.
+     */
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    /**
+     * The writer threads shared by the handlers which aren't given an
+     * <tt>Executor</tt>.
+     */
+    private static final ExecutorService sharedWriter =
+        Executors.newFixedThreadPool(2, new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t =
+                    new Thread(r, "Jirecon metadata writer-"
+                        + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * The sink the events are written into.
+     */
+    private final MetadataSink sink;
+
+    /**
+     * The events waiting to be written.
+     */
+    private final BlockingQueue<RecorderEvent> queue;
+
+    /**
+     * The <tt>Executor</tt> running the writer.
+     */
+    private final Executor executor;
+
+    /**
+     * The number of written events after which the file is forced to the
+     * disk, 0 to not force it on a number of events.
+     */
+    private final int syncEvents;
+
+    /**
+     * The time in milliseconds after which the written events are forced to
+     * the disk, 0 to not force them on time.
+     */
+    private final long syncInterval;
+
+    /**
+     * Whether the queue is being drained, or is scheduled to be.
+     */
+    private final AtomicBoolean isDraining = new AtomicBoolean();
+
+    /**
+     * The number of events written.
+     */
+    private final AtomicLong writtenCount = new AtomicLong();
+
+    /**
+     * The number of events dropped, because the queue was full, the handler
+     * was closed or the sink failed.
+     */
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * The largest number of events seen waiting.
+     */
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    /**
+     * Released once the sink is closed.
+     */
+    private final CountDownLatch sinkClosed = new CountDownLatch(1);
+
+    /**
+     * Whether the handler is being closed.
+     */
+    private volatile boolean isClosing = false;
+
+    /**
+     * The number of events written since the file was last forced to the
+     * disk. Only used by the writer.
+     */
+    private int unsyncedEvents = 0;
+
+    /**
+     * When the file was last forced to the disk. Only used by the writer.
+     */
+    private long lastSyncTime = System.currentTimeMillis();
+
+    /**
+     * Create a handler writing on the shared writer threads.
+     * 
+     * @param sink is the sink the events are written into.
+     * @param capacity is the maximum number of events waiting to be written.
+     * @param syncEvents is the number of events after which the file is forced
+     *            to the disk, 0 to not force it on a number of events.
+     * @param syncInterval is the time in milliseconds after which the events
+     *            are forced to the disk, 0 to not force them on time.
+     */
+    public AsyncRecorderEventHandler(MetadataSink sink, int capacity,
+        int syncEvents, long syncInterval)
+    {
+        this(sink, capacity, syncEvents, syncInterval, sharedWriter);
+    }
+
+    /**
+     * Create a handler.
+     * 
+     * @param sink is the sink the events are written into.
+     * @param capacity is the maximum number of events waiting to be written.
+     * @param syncEvents is the number of events after which the file is forced
+     *            to the disk, 0 to not force it on a number of events.
+     * @param syncInterval is the time in milliseconds after which the events
+     *            are forced to the disk, 0 to not force them on time.
+     * @param executor is the <tt>Executor</tt> running the writer.
+     */
+    public AsyncRecorderEventHandler(MetadataSink sink, int capacity,
+        int syncEvents, long syncInterval, Executor executor)
+    {
+        this.sink = sink;
+        this.queue = new ArrayBlockingQueue<RecorderEvent>(capacity);
+        this.syncEvents = syncEvents;
+        this.syncInterval = syncInterval;
+        this.executor = executor;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The event is only queued, it is written later.
+     * 
+     * @return true if the event has been queued, false if it is dropped.
+     */
+    @Override
+    public boolean handleEvent(RecorderEvent event)
+    {
+        if (isClosing || !queue.offer(event))
+        {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+
+        final int depth = queue.size();
+        int max;
+        while (depth > (max = maxQueueDepth.get())
+            && !maxQueueDepth.compareAndSet(max, depth))
+            ;
+
+        scheduleDrain();
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Wait for the queued events to be written, then close the sink.
+     */
+    @Override
+    public void close()
+    {
+        if (isClosing)
+            return;
+        isClosing = true;
+        scheduleDrain();
+
+        try
+        {
+            if (!sinkClosed.await(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS))
+                logger.warn("Timed out waiting for the metadata writer.");
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Metadata events written: " + writtenCount.get()
+            + ", dropped: " + droppedCount.get() + ", max queue depth: "
+            + maxQueueDepth.get());
+    }
+
+    /**
+     * Get the number of events waiting to be written.
+     * 
+     * @return the number of events.
+     */
+    public int getQueueDepth()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Get the largest number of events seen waiting to be written.
+     * 
+     * @return the number of events.
+     */
+    public int getMaxQueueDepth()
+    {
+        return maxQueueDepth.get();
+    }
+
+    /**
+     * Get the number of events written.
+     * 
+     * @return the number of events.
+     */
+    public long getWrittenCount()
+    {
+        return writtenCount.get();
+    }
+
+    /**
+     * Get the number of events dropped.
+     * 
+     * @return the number of events.
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    /**
+     * Schedule the draining of the queue, unless it is already.
+     */
+    private void scheduleDrain()
+    {
+        if (!isDraining.compareAndSet(false, true))
+            return;
+
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    drain();
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // Nobody else will write them.
+            drain();
+        }
+    }
+
+    /**
+     * Write the queued events, then force them to the disk if it is time to,
+     * or close the sink if the handler is closing and nothing is left.
+     */
+    private void drain()
+    {
+        final List<RecorderEvent> batch = new ArrayList<RecorderEvent>();
+        queue.drainTo(batch, MAX_WRITE_BATCH);
+
+        boolean failed = false;
+        for (RecorderEvent event : batch)
+        {
+            if (failed)
+            {
+                droppedCount.incrementAndGet();
+                continue;
+            }
+            try
+            {
+                sink.write(event);
+                writtenCount.incrementAndGet();
+                unsyncedEvents++;
+            }
+            catch (Exception e)
+            {
+                logger.error("Failed to write recorder event " + event + ", "
+                    + e);
+                droppedCount.incrementAndGet();
+                failed = true;
+            }
+        }
+
+        final boolean closeSink =
+            isClosing && queue.isEmpty() && 0 != sinkClosed.getCount();
+        try
+        {
+            if (closeSink)
+            {
+                sink.close();
+            }
+            else if (!batch.isEmpty())
+            {
+                final long now = System.currentTimeMillis();
+                final boolean sync =
+                    (syncEvents > 0 && unsyncedEvents >= syncEvents)
+                        || (syncInterval > 0
+                            && now - lastSyncTime >= syncInterval);
+                sink.flush(sync);
+                if (sync)
+                {
+                    unsyncedEvents = 0;
+                    lastSyncTime = now;
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            logger.error("Failed to flush the metadata, " + e);
+        }
+        finally
+        {
+            if (closeSink)
+                sinkClosed.countDown();
+            isDraining.set(false);
+        }
+
+        if (!queue.isEmpty() || (isClosing && 0 != sinkClosed.getCount()))
+            scheduleDrain();
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.metadata;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.recording.*;
+
+/**
+ * A <tt>MetadataSink</tt> writing compact binary records.
+ * <p>
+ * The file starts with {@link #MAGIC} and {@link #VERSION}. Each event is a
+ * record made of its length, as an unsigned short, followed by: the type, the
+ * media type and the aspect ratio as ordinals (-1 if not set); the instant,
+ * ssrc, audio ssrc, RTP timestamp and duration as longs; the NTP time as a
+ * double; a flags byte; and the file name, participant name, participant
+ * description and endpoint id as optional UTF strings. The record of a
+ * <tt>DataChannelEvent</tt> goes on with the colibri class as a UTF string,
+ * the last-N endpoints and the endpoints entering last-N as optional lists
+ * (their size as a short, -1 if not set, followed by UTF strings), and
+ * whether the endpoint is active as a byte (-1 if not set). Readers skip what
+ * they don't know thanks to the length.
+ */
+public class BinaryMetadataSink
+    implements MetadataSink
+{
+    /**
+     * The first bytes of the file.
+     */
+    public static final int MAGIC = 0x4A524D44; // "JRMD"
+
+    /**
+     * The version of the format.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Flag telling that the other videos shouldn't be shown on top.
+     */
+    private static final int FLAG_DISABLE_OTHER_VIDEOS_ON_TOP = 0x01;
+
+    /**
+     * The stream of the file, used to force it to the disk.
+     */
+    private final FileOutputStream fileOut;
+
+    /**
+     * The output of the file.
+     */
+    private final DataOutputStream out;
+
+    /**
+     * The buffer in which a record is built, to know its length.
+     */
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(128);
+
+    /**
+     * The output of {@link #record}.
+     */
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+
+    /**
+     * Create a sink.
+     * 
+     * @param file is the file, it must not exist.
+     * @throws IOException if the file exists or can't be created.
+     */
+    public BinaryMetadataSink(File file)
+        throws IOException
+    {
+        if (!file.createNewFile())
+            throw new IOException("File exists or cannot be created: " + file);
+
+        fileOut = new FileOutputStream(file);
+        out =
+            new DataOutputStream(new BufferedOutputStream(fileOut));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(RecorderEvent event)
+        throws IOException
+    {
+        record.reset();
+        encode(event, recordOut);
+        recordOut.flush();
+
+        if (record.size() > 0xFFFF)
+            throw new IOException("Recorder event too large: " + event);
+        out.writeShort(record.size());
+        record.writeTo(out);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush(boolean sync)
+        throws IOException
+    {
+        out.flush();
+        if (sync)
+            fileOut.getFD().sync();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        try
+        {
+            flush(true);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Check the header of a binary metadata file.
+     * 
+     * @param in is the input of the file, at its beginning.
+     * @throws IOException if it isn't a binary metadata file of a known
+     *             version.
+     */
+    public static void readHeader(DataInputStream in)
+        throws IOException
+    {
+        if (MAGIC != in.readInt())
+            throw new IOException("Not a binary metadata file.");
+        final int version = in.readUnsignedByte();
+        if (version > VERSION)
+            throw new IOException("Unknown metadata version " + version);
+    }
+
+    /**
+     * Read the next event of a binary metadata file.
+     * 
+     * @param in is the input of the file, after its header.
+     * @return the event, or null at the end of the file.
+     * @throws IOException if the file is truncated or corrupted.
+     */
+    public static RecorderEvent readEvent(DataInputStream in)
+        throws IOException
+    {
+        final int length;
+        try
+        {
+            length = in.readUnsignedShort();
+        }
+        catch (EOFException e)
+        {
+            return null;
+        }
+
+        final byte[] buf = new byte[length];
+        in.readFully(buf);
+        return decode(new DataInputStream(new ByteArrayInputStream(buf)));
+    }
+
+    /**
+     * Write the fields of an event, without the length of the record.
+     * 
+     * @param event is the event.
+     * @param out is where the fields are written.
+     * @throws IOException if failed to write them.
+     */
+    static void encode(RecorderEvent event, DataOutput out)
+        throws IOException
+    {
+        out.writeByte(ordinal(event.getType()));
+        out.writeByte(ordinal(event.getMediaType()));
+        out.writeByte(ordinal(event.getAspectRatio()));
+        out.writeLong(event.getInstant());
+        out.writeLong(event.getSsrc());
+        out.writeLong(event.getAudioSsrc());
+        out.writeLong(event.getRtpTimestamp());
+        out.writeLong(event.getDuration());
+        out.writeDouble(event.getNtpTime());
+        out.writeByte(event.getDisableOtherVideosOnTop()
+            ? FLAG_DISABLE_OTHER_VIDEOS_ON_TOP : 0);
+        writeString(event.getFilename(), out);
+        writeString(event.getParticipantName(), out);
+        writeString(event.getParticipantDescription(), out);
+        writeString(event.getEndpointId(), out);
+
+        if (event instanceof DataChannelEvent)
+        {
+            final DataChannelEvent dataChannelEvent = (DataChannelEvent) event;
+            out.writeUTF(dataChannelEvent.getColibriClass());
+            writeList(dataChannelEvent.getLastNEndpoints(), out);
+            writeList(dataChannelEvent.getEndpointsEnteringLastN(), out);
+            final Boolean active = dataChannelEvent.getActive();
+            out.writeByte(null == active ? -1 : (active ? 1 : 0));
+        }
+    }
+
+    /**
+     * Read the fields of an event written by
+     * {@link #encode(RecorderEvent, DataOutput)}.
+     * 
+     * @param rec is the input of the fields. It must end with the record,
+     *            which tells whether it is a <tt>DataChannelEvent</tt>.
+     * @return the event.
+     * @throws IOException if the fields are truncated.
+     */
+    static RecorderEvent decode(DataInputStream rec)
+        throws IOException
+    {
+        RecorderEvent event = new RecorderEvent();
+        final int type = rec.readByte();
+        if (type >= 0 && type < RecorderEvent.Type.values().length)
+            event.setType(RecorderEvent.Type.values()[type]);
+        final int mediaType = rec.readByte();
+        if (mediaType >= 0 && mediaType < MediaType.values().length)
+            event.setMediaType(MediaType.values()[mediaType]);
+        final int aspectRatio = rec.readByte();
+        if (aspectRatio >= 0
+            && aspectRatio < RecorderEvent.AspectRatio.values().length)
+            event.setAspectRatio(RecorderEvent.AspectRatio.values()[aspectRatio]);
+        event.setInstant(rec.readLong());
+        event.setSsrc(rec.readLong());
+        event.setAudioSsrc(rec.readLong());
+        event.setRtpTimestamp(rec.readLong());
+        event.setDuration(rec.readLong());
+        event.setNtpTime(rec.readDouble());
+        event.setDisableOtherVideosOnTop(0 != (rec.readByte()
+            & FLAG_DISABLE_OTHER_VIDEOS_ON_TOP));
+        event.setFilename(readString(rec));
+        event.setParticipantName(readString(rec));
+        event.setParticipantDescription(readString(rec));
+        event.setEndpointId(readString(rec));
+
+        // The fields of a DataChannelEvent end the record.
+        if (rec.available() > 0)
+            event = decodeDataChannelEvent(event, rec);
+        return event;
+    }
+
+    /**
+     * Read the fields of a <tt>DataChannelEvent</tt> which follow those of a
+     * <tt>RecorderEvent</tt>.
+     * 
+     * @param base is the event holding the fields read so far.
+     * @param rec is the input of the fields.
+     * @return the <tt>DataChannelEvent</tt>.
+     * @throws IOException if the fields are truncated.
+     */
+    private static DataChannelEvent decodeDataChannelEvent(
+        RecorderEvent base, DataInput rec)
+        throws IOException
+    {
+        DataChannelEvent event = new DataChannelEvent(rec.readUTF());
+        event.setType(base.getType());
+        event.setMediaType(base.getMediaType());
+        event.setAspectRatio(base.getAspectRatio());
+        event.setInstant(base.getInstant());
+        event.setSsrc(base.getSsrc());
+        event.setAudioSsrc(base.getAudioSsrc());
+        event.setRtpTimestamp(base.getRtpTimestamp());
+        event.setDuration(base.getDuration());
+        event.setNtpTime(base.getNtpTime());
+        event.setDisableOtherVideosOnTop(base.getDisableOtherVideosOnTop());
+        event.setFilename(base.getFilename());
+        event.setParticipantName(base.getParticipantName());
+        event.setParticipantDescription(base.getParticipantDescription());
+        event.setEndpointId(base.getEndpointId());
+
+        event.setLastNEndpoints(readList(rec));
+        event.setEndpointsEnteringLastN(readList(rec));
+        final int active = rec.readByte();
+        if (-1 != active)
+            event.setActive(0 != active);
+        return event;
+    }
+
+    /**
+     * Write an optional list of strings.
+     * 
+     * @param list is the list, it may be null.
+     * @param out is where the list is written.
+     * @throws IOException if failed to write it.
+     */
+    private static void writeList(List<String> list, DataOutput out)
+        throws IOException
+    {
+        if (null == list)
+        {
+            out.writeShort(-1);
+            return;
+        }
+        out.writeShort(list.size());
+        for (String s : list)
+            out.writeUTF(s);
+    }
+
+    /**
+     * Read an optional list of strings of a record.
+     * 
+     * @param in is the input of the fields.
+     * @return the list, it may be null.
+     * @throws IOException if the record is truncated.
+     */
+    private static List<String> readList(DataInput in)
+        throws IOException
+    {
+        final int size = in.readShort();
+        if (size < 0)
+            return null;
+        List<String> list = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++)
+            list.add(in.readUTF());
+        return list;
+    }
+
+    /**
+     * Write an optional string.
+     * 
+     * @param s is the string, it may be null.
+     * @param out is where the string is written.
+     * @throws IOException if failed to write it.
+     */
+    private static void writeString(String s, DataOutput out)
+        throws IOException
+    {
+        out.writeBoolean(null != s);
+        if (null != s)
+            out.writeUTF(s);
+    }
+
+    /**
+     * Read an optional string of a record.
+     * 
+     * @param in is the input of the fields.
+     * @return the string, it may be null.
+     * @throws IOException if the record is truncated.
+     */
+    private static String readString(DataInput in)
+        throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Get the ordinal of an enum constant.
+     * 
+     * @param e is the constant, it may be null.
+     * @return the ordinal, or -1 if the constant is null.
+     */
+    private static int ordinal(Enum<?> e)
+    {
+        return null == e ? -1 : e.ordinal();
+    }
+}
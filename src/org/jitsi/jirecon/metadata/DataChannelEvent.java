@@ -0,0 +1,123 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.metadata;
+
+import java.util.*;
+
+import org.jitsi.service.neomedia.recording.*;
+
+/**
+ * A <tt>RecorderEvent</tt> of type <tt>OTHER</tt> carrying a colibri message
+ * received over the data channel, such as a last-N or an endpoint
+ * connectivity change. The fields of the message have no counterpart in
+ * <tt>RecorderEvent</tt>, every <tt>MetadataSink</tt> records them in its own
+ * way.
+ */
+public class DataChannelEvent
+    extends RecorderEvent
+{
+    /**
+     * The class of the colibri message.
+     */
+    private String colibriClass;
+
+    /**
+     * The ids of the forwarded endpoints, or null.
+     */
+    private List<String> lastNEndpoints;
+
+    /**
+     * The ids of the endpoints which are forwarded from now on, or null.
+     */
+    private List<String> endpointsEnteringLastN;
+
+    /**
+     * Whether the endpoint is connected to the bridge, or null.
+     */
+    private Boolean active;
+
+    /**
+     * Create an event.
+     * 
+     * @param colibriClass is the class of the colibri message.
+     */
+    public DataChannelEvent(String colibriClass)
+    {
+        setType(RecorderEvent.Type.OTHER);
+        this.colibriClass = colibriClass;
+    }
+
+    /**
+     * Get the class of the colibri message.
+     * 
+     * @return the class.
+     */
+    public String getColibriClass()
+    {
+        return colibriClass;
+    }
+
+    /**
+     * Get the ids of the forwarded endpoints.
+     * 
+     * @return the ids, or null if the message isn't a last-N one.
+     */
+    public List<String> getLastNEndpoints()
+    {
+        return lastNEndpoints;
+    }
+
+    /**
+     * Set the ids of the forwarded endpoints.
+     * 
+     * @param lastNEndpoints are the ids.
+     */
+    public void setLastNEndpoints(List<String> lastNEndpoints)
+    {
+        this.lastNEndpoints = lastNEndpoints;
+    }
+
+    /**
+     * Get the ids of the endpoints which are forwarded from now on.
+     * 
+     * @return the ids, or null if the message isn't a last-N one.
+     */
+    public List<String> getEndpointsEnteringLastN()
+    {
+        return endpointsEnteringLastN;
+    }
+
+    /**
+     * Set the ids of the endpoints which are forwarded from now on.
+     * 
+     * @param endpointsEnteringLastN are the ids.
+     */
+    public void setEndpointsEnteringLastN(List<String> endpointsEnteringLastN)
+    {
+        this.endpointsEnteringLastN = endpointsEnteringLastN;
+    }
+
+    /**
+     * Get whether the endpoint is connected to the bridge.
+     * 
+     * @return whether it is connected, or null if the message isn't a
+     *         connectivity one.
+     */
+    public Boolean getActive()
+    {
+        return active;
+    }
+
+    /**
+     * Set whether the endpoint is connected to the bridge.
+     * 
+     * @param active whether it is connected.
+     */
+    public void setActive(Boolean active)
+    {
+        this.active = active;
+    }
+}
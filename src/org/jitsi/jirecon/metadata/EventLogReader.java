@@ -0,0 +1,225 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.metadata;
+
+import java.io.*;
+import java.util.zip.*;
+
+import org.jitsi.service.neomedia.recording.*;
+
+/**
+ * Reads the event log written by <tt>EventLogSink</tt>.
+ * <p>
+ * The log may be read while it is written: {@link #next()} returns null when
+ * the next record isn't complete yet, and can be called again later to pick
+ * up the new records.
+ */
+public class EventLogReader
+    implements Closeable
+{
+    /**
+     * The log file.
+     */
+    private final File logFile;
+
+    /**
+     * The access to the log.
+     */
+    private final RandomAccessFile file;
+
+    /**
+     * Computes the CRCs of the payloads.
+     */
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * The offset of the next record.
+     */
+    private long position = EventLogSink.HEADER_LENGTH;
+
+    /**
+     * The number of records read, or skipped.
+     */
+    private long count = 0;
+
+    /**
+     * Open a log.
+     * 
+     * @param logFile is the log file.
+     * @throws IOException if it can't be opened or isn't an event log.
+     */
+    public EventLogReader(File logFile)
+        throws IOException
+    {
+        this(logFile, "r");
+    }
+
+    /**
+     * Open a log.
+     * 
+     * @param logFile is the log file.
+     * @param mode is the <tt>RandomAccessFile</tt> mode.
+     * @throws IOException if it can't be opened or isn't an event log.
+     */
+    private EventLogReader(File logFile, String mode)
+        throws IOException
+    {
+        this.logFile = logFile;
+        this.file = new RandomAccessFile(logFile, mode);
+
+        try
+        {
+            if (file.length() >= EventLogSink.HEADER_LENGTH)
+            {
+                if (EventLogSink.MAGIC != file.readInt())
+                    throw new IOException("Not an event log: " + logFile);
+                final int version = file.readUnsignedByte();
+                if (version > EventLogSink.VERSION)
+                    throw new IOException("Unknown event log version "
+                        + version);
+            }
+        }
+        catch (IOException e)
+        {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Skip the records up to the last checkpoint, which are known to be
+     * valid.
+     * 
+     * @return true if there was a usable checkpoint, otherwise false.
+     * @throws IOException if failed to read the log.
+     */
+    public boolean seekToCheckpoint()
+        throws IOException
+    {
+        final long[] checkpoint =
+            EventLogSink.readCheckpoint(EventLogSink
+                .getCheckpointFile(logFile));
+        if (null == checkpoint || checkpoint[0] < EventLogSink.HEADER_LENGTH
+            || checkpoint[0] > file.length())
+            return false;
+
+        position = checkpoint[0];
+        count = checkpoint[1];
+        return true;
+    }
+
+    /**
+     * Read the next event.
+     * 
+     * @return the event, or null if there is no complete record left.
+     * @throws IOException if the record is corrupted.
+     */
+    public RecorderEvent next()
+        throws IOException
+    {
+        final long available = file.length() - position;
+        if (available < EventLogSink.RECORD_HEADER_LENGTH)
+            return null;
+
+        file.seek(position);
+        final int length = file.readInt();
+        final int expected = file.readInt();
+        if (length < 0 || length > EventLogSink.MAX_PAYLOAD_LENGTH)
+        {
+            throw new IOException("Corrupted record at offset " + position
+                + " of " + logFile);
+        }
+        if (available < EventLogSink.RECORD_HEADER_LENGTH + length)
+            return null;
+
+        final byte[] payload = new byte[length];
+        file.readFully(payload);
+        crc.reset();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != expected)
+        {
+            throw new IOException("Corrupted record at offset " + position
+                + " of " + logFile);
+        }
+
+        final RecorderEvent event =
+            BinaryMetadataSink.decode(new DataInputStream(
+                new ByteArrayInputStream(payload)));
+        position += EventLogSink.RECORD_HEADER_LENGTH + length;
+        count++;
+        return event;
+    }
+
+    /**
+     * Get the offset of the next record.
+     * 
+     * @return the offset.
+     */
+    public long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * Get the number of records read, or skipped.
+     * 
+     * @return the number of records.
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        file.close();
+    }
+
+    /**
+     * Recover a log after a crash: the records after the last checkpoint are
+     * checked and the log is cut after the last valid one, so that a torn or
+     * corrupted tail is dropped. The records before the checkpoint aren't
+     * read again.
+     * 
+     * @param logFile is the log file.
+     * @return the number of valid records in the log.
+     * @throws IOException if failed to read or cut the log.
+     */
+    public static long recover(File logFile)
+        throws IOException
+    {
+        final EventLogReader reader = new EventLogReader(logFile, "rw");
+        try
+        {
+            reader.seekToCheckpoint();
+            try
+            {
+                while (null != reader.next())
+                    ;
+            }
+            catch (IOException e)
+            {
+                // Corrupted, the log ends before this record.
+            }
+
+            if (reader.file.length() > reader.position)
+                reader.file.setLength(reader.position);
+            EventLogSink.writeCheckpoint(
+                EventLogSink.getCheckpointFile(logFile), reader.position,
+                reader.count);
+            return reader.count;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.metadata;
+
+import java.io.*;
+import java.util.zip.*;
+
+import org.jitsi.service.neomedia.recording.*;
+
+/**
+ * A <tt>MetadataSink</tt> writing an append-only event log, which can be read
+ * while the recording goes on and recovered after a crash.
+ * <p>
+ * The log starts with {@link #MAGIC} and {@link #VERSION}. Each event is a
+ * record made of the length of its payload and the CRC32 of the payload, as
+ * ints, followed by the payload, which holds the fields of the event as in
+ * <tt>BinaryMetadataSink</tt>. A record is never changed once written.
+ * <p>
+ * Each time the log is forced to the disk, the offset of its end and the
+ * number of records are saved into a checkpoint file next to it, see
+ * {@link #getCheckpointFile(File)}. After a crash, only the records after the
+ * checkpoint have to be checked, see {@link EventLogReader#recover(File)}.
+ */
+public class EventLogSink
+    implements MetadataSink
+{
+    /**
+     * The first bytes of the log.
+     */
+    public static final int MAGIC = 0x4A52454C; // "JREL"
+
+    /**
+     * The version of the format.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The length of the header of the log.
+     */
+    public static final int HEADER_LENGTH = 5;
+
+    /**
+     * The length of the header of a record.
+     */
+    public static final int RECORD_HEADER_LENGTH = 8;
+
+    /**
+     * The largest payload of a record.
+     */
+    public static final int MAX_PAYLOAD_LENGTH = 0xFFFF;
+
+    /**
+     * The first bytes of the checkpoint file.
+     */
+    static final int CHECKPOINT_MAGIC = 0x4A52434B; // "JRCK"
+
+    /**
+     * The stream of the log, used to force it to the disk.
+     */
+    private final FileOutputStream fileOut;
+
+    /**
+     * The output of the log.
+     */
+    private final DataOutputStream out;
+
+    /**
+     * The checkpoint file.
+     */
+    private final File checkpointFile;
+
+    /**
+     * The buffer in which a payload is built, to know its length and CRC.
+     */
+    private final ByteArrayOutputStream payload =
+        new ByteArrayOutputStream(128);
+
+    /**
+     * The output of {@link #payload}.
+     */
+    private final DataOutputStream payloadOut = new DataOutputStream(payload);
+
+    /**
+     * Computes the CRCs of the payloads.
+     */
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * The offset of the end of the log.
+     */
+    private long offset;
+
+    /**
+     * The number of records in the log.
+     */
+    private long count = 0;
+
+    /**
+     * Create a sink.
+     * 
+     * @param file is the log file, it must not exist.
+     * @throws IOException if the file exists or can't be created.
+     */
+    public EventLogSink(File file)
+        throws IOException
+    {
+        if (!file.createNewFile())
+            throw new IOException("File exists or cannot be created: " + file);
+
+        checkpointFile = getCheckpointFile(file);
+        fileOut = new FileOutputStream(file);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        offset = HEADER_LENGTH;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(RecorderEvent event)
+        throws IOException
+    {
+        payload.reset();
+        BinaryMetadataSink.encode(event, payloadOut);
+        payloadOut.flush();
+
+        final int length = payload.size();
+        if (length > MAX_PAYLOAD_LENGTH)
+            throw new IOException("Recorder event too large: " + event);
+        final byte[] bytes = payload.toByteArray();
+        crc.reset();
+        crc.update(bytes, 0, length);
+
+        out.writeInt(length);
+        out.writeInt((int) crc.getValue());
+        out.write(bytes, 0, length);
+        offset += RECORD_HEADER_LENGTH + length;
+        count++;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Once the log is on the disk, a checkpoint is saved.
+     */
+    @Override
+    public void flush(boolean sync)
+        throws IOException
+    {
+        out.flush();
+        if (sync)
+        {
+            fileOut.getFD().sync();
+            writeCheckpoint(checkpointFile, offset, count);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        try
+        {
+            flush(true);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Get the checkpoint file of a log.
+     * 
+     * @param logFile is the log file.
+     * @return the checkpoint file.
+     */
+    public static File getCheckpointFile(File logFile)
+    {
+        return new File(logFile.getPath() + ".ckpt");
+    }
+
+    /**
+     * Save a checkpoint. It is written into a temporary file first, which
+     * then replaces the previous checkpoint, so a crash leaves either of them.
+     * 
+     * @param file is the checkpoint file.
+     * @param offset is the offset of the end of the last record on the disk.
+     * @param count is the number of records on the disk.
+     * @throws IOException if failed to save it.
+     */
+    static void writeCheckpoint(File file, long offset, long count)
+        throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(28);
+        final DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(CHECKPOINT_MAGIC);
+        data.writeLong(offset);
+        data.writeLong(count);
+        final CRC32 checksum = new CRC32();
+        checksum.update(bytes.toByteArray());
+        data.writeLong(checksum.getValue());
+
+        final File tmp = new File(file.getPath() + ".tmp");
+        final FileOutputStream tmpOut = new FileOutputStream(tmp);
+        try
+        {
+            bytes.writeTo(tmpOut);
+            tmpOut.getFD().sync();
+        }
+        finally
+        {
+            tmpOut.close();
+        }
+
+        if (!tmp.renameTo(file))
+        {
+            // Some platforms don't replace existing files.
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException("Could not save checkpoint " + file);
+        }
+    }
+
+    /**
+     * Load a checkpoint.
+     * 
+     * @param file is the checkpoint file.
+     * @return the offset and the number of records, or null if there is no
+     *         valid checkpoint.
+     */
+    static long[] readCheckpoint(File file)
+    {
+        if (!file.isFile())
+            return null;
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new FileInputStream(file));
+            final byte[] bytes = new byte[20];
+            in.readFully(bytes);
+            final long expected = in.readLong();
+            final CRC32 checksum = new CRC32();
+            checksum.update(bytes);
+            if (checksum.getValue() != expected)
+                return null;
+
+            final DataInputStream data =
+                new DataInputStream(new ByteArrayInputStream(bytes));
+            if (CHECKPOINT_MAGIC != data.readInt())
+                return null;
+            return new long[] { data.readLong(), data.readLong() };
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        finally
+        {
+            if (null != in)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        }
+    }
+}
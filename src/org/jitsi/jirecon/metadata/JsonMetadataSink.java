@@ -0,0 +1,139 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.metadata;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.impl.neomedia.recording.*;
+import org.jitsi.service.neomedia.recording.*;
+
+/**
+ * A <tt>MetadataSink</tt> writing the JSON document of
+ * <tt>RecorderEventHandlerJSONImpl</tt>. That handler rewrites the whole file
+ * on every event, which is why it has to be kept off the media threads.
+ * <p>
+ * The handler only knows the audio and video events, so the
+ * <tt>DataChannelEvent</tt>s are written into a document of their own, with
+ * a "data_channel" array, next to the metadata file. See
+ * {@link #getDataChannelFile(File)}.
+ */
+public class JsonMetadataSink
+    implements MetadataSink
+{
+    /**
+     * The handler writing the file.
+     */
+    private final RecorderEventHandler handler;
+
+    /**
+     * The file of the <tt>DataChannelEvent</tt>s. It is created with the first
+     * of them.
+     */
+    private final File dataChannelFile;
+
+    /**
+     * The <tt>DataChannelEvent</tt>s written so far, as JSON.
+     */
+    private final List<String> dataChannelEvents = new ArrayList<String>();
+
+    /**
+     * Create a sink.
+     * 
+     * @param file is the file, it must not exist.
+     * @throws IOException if the file exists or can't be created.
+     */
+    public JsonMetadataSink(File file)
+        throws IOException
+    {
+        handler = new RecorderEventHandlerJSONImpl(file.getPath());
+        dataChannelFile = getDataChannelFile(file);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(RecorderEvent event)
+        throws IOException
+    {
+        if (event instanceof DataChannelEvent)
+            writeDataChannelEvent((DataChannelEvent) event);
+        else
+            handler.handleEvent(event);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The files are complete after every event, so there is nothing to do.
+     */
+    @Override
+    public void flush(boolean sync)
+    {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        handler.close();
+    }
+
+    /**
+     * Get the file in which the <tt>DataChannelEvent</tt>s of a metadata file
+     * are written, "metadata-datachannel.json" for "metadata.json".
+     * 
+     * @param file is the metadata file.
+     * @return the file of the <tt>DataChannelEvent</tt>s.
+     */
+    public static File getDataChannelFile(File file)
+    {
+        String name = file.getName();
+        if (name.endsWith(".json"))
+            name = name.substring(0, name.length() - ".json".length());
+        return new File(file.getParentFile(), name + "-datachannel.json");
+    }
+
+    /**
+     * Add a <tt>DataChannelEvent</tt> and rewrite its file, the same way the
+     * handler does with the metadata file. These events are rare.
+     * 
+     * @param event is the event.
+     * @throws IOException if failed to write the file.
+     */
+    private void writeDataChannelEvent(DataChannelEvent event)
+        throws IOException
+    {
+        if (dataChannelEvents.isEmpty() && !dataChannelFile.createNewFile())
+        {
+            throw new IOException("File exists or cannot be created: "
+                + dataChannelFile);
+        }
+        dataChannelEvents.add(NdjsonMetadataSink.toJson(event).toJSONString());
+
+        Writer writer =
+            new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                dataChannelFile), "UTF-8"));
+        try
+        {
+            writer.write("{\n  \"data_channel\" : [\n");
+            for (int i = 0; i < dataChannelEvents.size(); i++)
+            {
+                writer.write("    ");
+                writer.write(dataChannelEvents.get(i));
+                writer.write(i + 1 < dataChannelEvents.size() ? ",\n" : "\n");
+            }
+            writer.write("  ]\n}\n");
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+}
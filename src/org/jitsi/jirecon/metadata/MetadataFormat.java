@@ -0,0 +1,102 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.metadata;
+
+import java.io.*;
+
+/**
+ * The formats of the metadata file.
+ */
+public enum MetadataFormat
+{
+    /**
+     * A single JSON document, with the audio and video events in separate
+     * arrays. It is the format the post-processing tools have always read.
+     * The <tt>DataChannelEvent</tt>s go to a second document, see
+     * <tt>JsonMetadataSink</tt>.
+     */
+    JSON("metadata.json"),
+
+    /**
+     * One JSON object per line, with the same fields as <tt>JSON</tt>. It is
+     * appended to, so it can be read while the recording goes on.
+     */
+    NDJSON("metadata.ndjson"),
+
+    /**
+     * Compact binary records, see <tt>BinaryMetadataSink</tt>.
+     */
+    BINARY("metadata.bin"),
+
+    /**
+     * An append-only log of checksummed records with checkpoints, see
+     * <tt>EventLogSink</tt>. It can be read while the recording goes on and
+     * recovered after a crash.
+     */
+    LOG("metadata.log");
+
+    /**
+     * The name of the metadata file.
+     */
+    private final String fileName;
+
+    private MetadataFormat(String fileName)
+    {
+        this.fileName = fileName;
+    }
+
+    /**
+     * Get the name of the metadata file.
+     * 
+     * @return the file name.
+     */
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    /**
+     * Create a sink writing into a new file.
+     * 
+     * @param file is the file, it must not exist.
+     * @return the <tt>MetadataSink</tt>.
+     * @throws IOException if the file exists or can't be created.
+     */
+    public MetadataSink createSink(File file)
+        throws IOException
+    {
+        switch (this)
+        {
+        case NDJSON:
+            return new NdjsonMetadataSink(file);
+        case BINARY:
+            return new BinaryMetadataSink(file);
+        case LOG:
+            return new EventLogSink(file);
+        default:
+            return new JsonMetadataSink(file);
+        }
+    }
+
+    /**
+     * Parse the name of a format.
+     * 
+     * @param name is the name, in any case.
+     * @return the format, or <tt>JSON</tt> if the name is unknown.
+     */
+    public static MetadataFormat parse(String name)
+    {
+        if (null != name)
+        {
+            for (MetadataFormat format : values())
+            {
+                if (format.name().equalsIgnoreCase(name.trim()))
+                    return format;
+            }
+        }
+        return JSON;
+    }
+}
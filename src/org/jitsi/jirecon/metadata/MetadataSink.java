@@ -0,0 +1,48 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.metadata;
+
+import java.io.*;
+
+import org.jitsi.service.neomedia.recording.*;
+
+/**
+ * A <tt>MetadataSink</tt> writes the recorder events of a recording into its
+ * metadata file.
+ * <p>
+ * Sinks are used by a single writer thread at a time, see
+ * <tt>AsyncRecorderEventHandler</tt>, so they don't need to be thread-safe.
+ * 
+ * @see MetadataFormat
+ */
+public interface MetadataSink
+{
+    /**
+     * Write an event.
+     * 
+     * @param event is the event.
+     * @throws IOException if failed to write it.
+     */
+    public void write(RecorderEvent event)
+        throws IOException;
+
+    /**
+     * Flush the events written so far.
+     * 
+     * @param sync whether the events should also be forced to the disk.
+     * @throws IOException if failed to flush them.
+     */
+    public void flush(boolean sync)
+        throws IOException;
+
+    /**
+     * Flush the events to the disk and close the sink.
+     * 
+     * @throws IOException if failed to close it.
+     */
+    public void close()
+        throws IOException;
+}
@@ -0,0 +1,157 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.metadata;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.service.neomedia.recording.*;
+import org.json.simple.*;
+
+/**
+ * A <tt>MetadataSink</tt> appending one JSON object per event and per line.
+ * The objects have the fields read by <tt>RecorderEvent(JSONObject)</tt>.
+ */
+public class NdjsonMetadataSink
+    implements MetadataSink
+{
+    /**
+     * The stream of the file, used to force it to the disk.
+     */
+    private final FileOutputStream out;
+
+    /**
+     * The writer of the file.
+     */
+    private final Writer writer;
+
+    /**
+     * Create a sink.
+     * 
+     * @param file is the file, it must not exist.
+     * @throws IOException if the file exists or can't be created.
+     */
+    public NdjsonMetadataSink(File file)
+        throws IOException
+    {
+        if (!file.createNewFile())
+            throw new IOException("File exists or cannot be created: " + file);
+
+        out = new FileOutputStream(file);
+        writer =
+            new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(RecorderEvent event)
+        throws IOException
+    {
+        writer.write(toJson(event).toJSONString());
+        writer.write('\n');
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush(boolean sync)
+        throws IOException
+    {
+        writer.flush();
+        if (sync)
+            out.getFD().sync();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        try
+        {
+            flush(true);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Convert an event to JSON. The fields which aren't set are left out.
+     * 
+     * @param event is the event.
+     * @return the JSON object.
+     */
+    @SuppressWarnings("unchecked")
+    public static JSONObject toJson(RecorderEvent event)
+    {
+        JSONObject json = new JSONObject();
+
+        json.put("type", String.valueOf(event.getType()));
+        json.put("instant", event.getInstant());
+        if (null != event.getMediaType())
+            json.put("mediaType", event.getMediaType().toString());
+        json.put("ssrc", event.getSsrc());
+        if (-1 != event.getAudioSsrc())
+            json.put("audioSsrc", event.getAudioSsrc());
+        if (-1 != event.getRtpTimestamp())
+            json.put("rtpTimestamp", event.getRtpTimestamp());
+        if (-1 != event.getNtpTime())
+            json.put("ntpTime", event.getNtpTime());
+        if (-1 != event.getDuration())
+            json.put("duration", event.getDuration());
+        if (null != event.getAspectRatio())
+            json.put("aspectRatio", event.getAspectRatio().toString());
+        if (null != event.getFilename())
+            json.put("filename", event.getFilename());
+        if (null != event.getParticipantName())
+            json.put("participantName", event.getParticipantName());
+        if (null != event.getParticipantDescription())
+            json.put("participantDescription",
+                event.getParticipantDescription());
+        if (null != event.getEndpointId())
+            json.put("endpointId", event.getEndpointId());
+        if (event.getDisableOtherVideosOnTop())
+            json.put("disableOtherVideosOnTop", true);
+
+        if (event instanceof DataChannelEvent)
+        {
+            // The fields keep their names in the colibri message.
+            final DataChannelEvent dataChannelEvent = (DataChannelEvent) event;
+            json.put("colibriClass", dataChannelEvent.getColibriClass());
+            if (null != dataChannelEvent.getLastNEndpoints())
+                json.put("lastNEndpoints",
+                    toJsonArray(dataChannelEvent.getLastNEndpoints()));
+            if (null != dataChannelEvent.getEndpointsEnteringLastN())
+                json.put("endpointsEnteringLastN",
+                    toJsonArray(dataChannelEvent.getEndpointsEnteringLastN()));
+            if (null != dataChannelEvent.getActive())
+                json.put("active", dataChannelEvent.getActive());
+        }
+
+        return json;
+    }
+
+    /**
+     * Convert a list of strings to JSON.
+     * 
+     * @param list is the list.
+     * @return the JSON array.
+     */
+    @SuppressWarnings("unchecked")
+    private static JSONArray toJsonArray(List<String> list)
+    {
+        JSONArray array = new JSONArray();
+        array.addAll(list);
+        return array;
+    }
+}
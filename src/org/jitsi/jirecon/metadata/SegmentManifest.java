@@ -0,0 +1,250 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.metadata;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.util.*;
+import org.json.simple.*;
+
+/**
+ * <tt>SegmentManifest</tt> lists the segments of a segmented recording and the
+ * files of each endpoint in them. It is saved into <tt>manifest.json</tt> in
+ * the output directory whenever it changes, so the segments can be picked up
+ * while the meeting goes on.
+ * <p>
+ * The file names in the manifest are relative to the output directory.
+ */
+public class SegmentManifest
+{
+    /**
+     * The <tt>Logger</tt>, used to log messages to standard output.
+     */
+    private static final Logger logger = Logger
+        .getLogger(SegmentManifest.class.getName());
+
+    /**
+     * The name of the manifest file.
+     */
+    public static final String FILE_NAME = "manifest.json";
+
+    /**
+     * The output directory.
+     */
+    private final File dir;
+
+    /**
+     * The segments, in order.
+     */
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    /**
+     * Map between endpoint id and the files of the endpoint, in order.
+     */
+    private final Map<String, List<String>> endpointFiles =
+        new LinkedHashMap<String, List<String>>();
+
+    /**
+     * Create a manifest.
+     * 
+     * @param dir is the output directory.
+     */
+    public SegmentManifest(File dir)
+    {
+        this.dir = dir;
+    }
+
+    /**
+     * Record that a segment has started, and end the previous one.
+     * 
+     * @param index is the index of the segment.
+     * @param segmentDir is the directory of the segment.
+     * @param time is when the segment started, in milliseconds.
+     */
+    public synchronized void startSegment(int index, File segmentDir,
+        long time)
+    {
+        endSegment(time);
+        segments.add(new Segment(index, relativize(segmentDir.getPath()),
+            time));
+        save();
+    }
+
+    /**
+     * Record that the last segment has ended.
+     * 
+     * @param time is when the segment ended, in milliseconds.
+     */
+    public synchronized void endSegment(long time)
+    {
+        if (segments.isEmpty())
+            return;
+        final Segment last = segments.get(segments.size() - 1);
+        if (-1 == last.end)
+        {
+            last.end = time;
+            save();
+        }
+    }
+
+    /**
+     * Record a file written by a recorder.
+     * 
+     * @param endpointId is the endpoint, or null if it is unknown.
+     * @param mediaType is the media type of the file.
+     * @param ssrc is the ssrc of the stream.
+     * @param filename is the path of the file.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void addFile(String endpointId, String mediaType,
+        long ssrc, String filename)
+    {
+        final String file = relativize(filename);
+
+        // Find the segment the file is in, most likely the last one.
+        Segment segment = null;
+        for (int i = segments.size() - 1; i >= 0 && null == segment; i--)
+        {
+            if (file.startsWith(segments.get(i).directory + "/"))
+                segment = segments.get(i);
+        }
+        if (null == segment)
+            return;
+
+        JSONObject stream = new JSONObject();
+        if (null != endpointId)
+            stream.put("endpointId", endpointId);
+        if (null != mediaType)
+            stream.put("mediaType", mediaType);
+        stream.put("ssrc", ssrc);
+        stream.put("filename", file);
+        segment.streams.add(stream);
+
+        if (null != endpointId)
+        {
+            List<String> files = endpointFiles.get(endpointId);
+            if (null == files)
+            {
+                files = new ArrayList<String>();
+                endpointFiles.put(endpointId, files);
+            }
+            files.add(file);
+        }
+        save();
+    }
+
+    /**
+     * Save the manifest. It is written into a temporary file first, which
+     * then replaces the previous manifest, so readers never see half of it.
+     */
+    @SuppressWarnings("unchecked")
+    private void save()
+    {
+        JSONArray segmentsJson = new JSONArray();
+        for (Segment segment : segments)
+        {
+            JSONObject json = new JSONObject();
+            json.put("index", segment.index);
+            json.put("directory", segment.directory);
+            json.put("start", segment.start);
+            if (-1 != segment.end)
+                json.put("end", segment.end);
+            JSONArray streams = new JSONArray();
+            streams.addAll(segment.streams);
+            json.put("streams", streams);
+            segmentsJson.add(json);
+        }
+        JSONObject endpointsJson = new JSONObject();
+        for (Map.Entry<String, List<String>> e : endpointFiles.entrySet())
+        {
+            JSONArray files = new JSONArray();
+            files.addAll(e.getValue());
+            endpointsJson.put(e.getKey(), files);
+        }
+        JSONObject manifest = new JSONObject();
+        manifest.put("segments", segmentsJson);
+        manifest.put("endpoints", endpointsJson);
+
+        final File file = new File(dir, FILE_NAME);
+        final File tmp = new File(dir, FILE_NAME + ".tmp");
+        try
+        {
+            final Writer writer =
+                new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            try
+            {
+                writer.write(manifest.toJSONString());
+            }
+            finally
+            {
+                writer.close();
+            }
+            if (!tmp.renameTo(file))
+            {
+                // Some platforms don't replace existing files.
+                file.delete();
+                tmp.renameTo(file);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to save the manifest " + file + ", " + e);
+        }
+    }
+
+    /**
+     * Make a path relative to the output directory, if it is in it.
+     * 
+     * @param path is the path.
+     * @return the relative path.
+     */
+    private String relativize(String path)
+    {
+        final String prefix = dir.getPath() + File.separator;
+        String relative =
+            path.startsWith(prefix) ? path.substring(prefix.length()) : path;
+        return relative.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * A segment of the recording.
+     */
+    private static class Segment
+    {
+        /**
+         * The index of the segment.
+         */
+        private final int index;
+
+        /**
+         * The directory of the segment, relative to the output directory.
+         */
+        private final String directory;
+
+        /**
+         * When the segment started, in milliseconds.
+         */
+        private final long start;
+
+        /**
+         * When the segment ended, in milliseconds, or -1 if it goes on.
+         */
+        private long end = -1;
+
+        /**
+         * The files of the segment.
+         */
+        private final List<JSONObject> streams = new ArrayList<JSONObject>();
+
+        private Segment(int index, String directory, long start)
+        {
+            this.index = index;
+            this.directory = directory;
+            this.start = start;
+        }
+    }
+}
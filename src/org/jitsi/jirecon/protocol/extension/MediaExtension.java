@@ -5,12 +5,14 @@
  */
 package org.jitsi.jirecon.protocol.extension;
 
-import java.util.*;
-import java.util.Map.*;
+import org.jitsi.service.neomedia.*;
 import org.jivesoftware.smack.packet.*;
 
 /**
  * Media extension in presence packet.
+ * <p>
+ * Only the audio and video sources are kept. They are stored typed, with
+ * primitive ssrcs, so reading them doesn't need any parsing or allocation.
  * 
  * @author lishunyang
  */
@@ -28,14 +30,21 @@ public class MediaExtension
     public static final String NAMESPACE = "http://estos.de/ns/mjs";
 
     /**
-     * The map between attribute "type" and "ssrc".
+     * The known directions.
      */
-    private Map<String, String> ssrcs = new HashMap<String, String>();
+    private static final MediaDirection[] DIRECTIONS = MediaDirection.values();
 
     /**
-     * The map between attribute "type" and "direction".
+     * The ssrcs of the audio and video sources, indexed by
+     * {@link #indexOf(MediaType)}. -1 means no source.
      */
-    private Map<String, String> directions = new HashMap<String, String>();
+    private final long[] ssrcs = new long[] { -1, -1 };
+
+    /**
+     * The directions of the audio and video sources, indexed by
+     * {@link #indexOf(MediaType)}.
+     */
+    private final MediaDirection[] directions = new MediaDirection[2];
 
     /**
      * {@inheritDoc}
@@ -65,13 +74,15 @@ public class MediaExtension
 
         builder.append("<").append(getElementName()).append(" xmlns='")
             .append(getNamespace()).append("'>");
-        for (Entry<String, String> e : ssrcs.entrySet())
+        for (MediaType mediaType : new MediaType[]
+        { MediaType.AUDIO, MediaType.VIDEO })
         {
-            String type = e.getKey();
-            String ssrc = e.getValue();
-            String direction = directions.get(type);
-            builder.append("<source type='").append(type).append("' ssrc='")
-                .append(ssrc).append("' direction='").append(direction)
+            final int i = indexOf(mediaType);
+            if (-1 == ssrcs[i])
+                continue;
+            builder.append("<source type='").append(mediaType)
+                .append("' ssrc='").append(ssrcs[i])
+                .append("' direction='").append(directions[i])
                 .append("' />");
         }
         builder.append("</").append(getElementName()).append(">");
@@ -79,6 +90,83 @@ public class MediaExtension
         return builder.toString();
     }
 
+    /**
+     * Tell whether another extension has exactly the same sources as this
+     * one, so that it's cheap to find out whether the media of a participant
+     * has changed.
+     * 
+     * @param other is the other extension, may be null.
+     * @return true if both have the same ssrcs and directions.
+     */
+    public boolean hasSameSources(MediaExtension other)
+    {
+        if (null == other)
+            return false;
+        for (int i = 0; i < ssrcs.length; i++)
+        {
+            if (ssrcs[i] != other.ssrcs[i]
+                || directions[i] != other.directions[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copy the sources of this extension, so that they can be kept while
+     * this extension may still be modified.
+     * 
+     * @return a new extension with the same sources.
+     */
+    public MediaExtension copySources()
+    {
+        MediaExtension copy = new MediaExtension();
+        System.arraycopy(ssrcs, 0, copy.ssrcs, 0, ssrcs.length);
+        System.arraycopy(directions, 0, copy.directions, 0,
+            directions.length);
+        return copy;
+    }
+
+    /**
+     * Set the source of a <tt>MediaType</tt>.
+     * 
+     * @param mediaType is audio or video, other types are ignored.
+     * @param ssrc is the ssrc of the source.
+     * @param direction is the direction of the source, or null if unknown.
+     */
+    public void setSource(MediaType mediaType, long ssrc,
+        MediaDirection direction)
+    {
+        final int i = indexOf(mediaType);
+        if (-1 == i)
+            return;
+        ssrcs[i] = ssrc;
+        directions[i] = direction;
+    }
+
+    /**
+     * Get the ssrc of the source of a <tt>MediaType</tt>.
+     * 
+     * @param mediaType is the <tt>MediaType</tt>.
+     * @return the ssrc, or -1 if there is no such source.
+     */
+    public long getSsrc(MediaType mediaType)
+    {
+        final int i = indexOf(mediaType);
+        return -1 == i ? -1 : ssrcs[i];
+    }
+
+    /**
+     * Get the direction of the source of a <tt>MediaType</tt>.
+     * 
+     * @param mediaType is the <tt>MediaType</tt>.
+     * @return the direction, or null if it is unknown.
+     */
+    public MediaDirection getDirection(MediaType mediaType)
+    {
+        final int i = indexOf(mediaType);
+        return -1 == i ? null : directions[i];
+    }
+
     /**
      * Set attribute "ssrc" of specified "type".
      * 
@@ -87,7 +175,9 @@ public class MediaExtension
      */
     public void setSsrc(String type, String ssrc)
     {
-        ssrcs.put(type, ssrc);
+        final int i = indexOf(type);
+        if (-1 != i)
+            ssrcs[i] = parseSsrc(ssrc);
     }
 
     /**
@@ -98,7 +188,8 @@ public class MediaExtension
      */
     public String getSsrc(String type)
     {
-        return ssrcs.get(type);
+        final int i = indexOf(type);
+        return -1 == i || -1 == ssrcs[i] ? null : Long.toString(ssrcs[i]);
     }
 
     /**
@@ -109,7 +200,9 @@ public class MediaExtension
      */
     public void setDirection(String type, String direction)
     {
-        directions.put(type, direction);
+        final int i = indexOf(type);
+        if (-1 != i)
+            directions[i] = parseDirection(direction);
     }
 
     /**
@@ -120,6 +213,81 @@ public class MediaExtension
      */
     public String getDirection(String type)
     {
-        return directions.get(type);
+        final int i = indexOf(type);
+        return -1 == i || null == directions[i] ? null : directions[i]
+            .toString();
+    }
+
+    /**
+     * Parse an ssrc attribute.
+     * 
+     * @param ssrc is the attribute value.
+     * @return the ssrc, or -1 if it isn't a valid one.
+     */
+    static long parseSsrc(String ssrc)
+    {
+        if (null == ssrc || ssrc.isEmpty() || ssrc.length() > 10)
+            return -1;
+
+        long value = 0;
+        for (int i = 0; i < ssrc.length(); i++)
+        {
+            final char c = ssrc.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value > 0xFFFFFFFFL ? -1 : value;
+    }
+
+    /**
+     * Parse a direction attribute.
+     * 
+     * @param direction is the attribute value.
+     * @return the direction, or null if it isn't a valid one.
+     */
+    static MediaDirection parseDirection(String direction)
+    {
+        if (null == direction)
+            return null;
+        // Compare without allocating, the values are few and short.
+        for (MediaDirection d : DIRECTIONS)
+        {
+            if (d.toString().equalsIgnoreCase(direction))
+                return d;
+        }
+        return null;
+    }
+
+    /**
+     * Get the index of the source of a "type" attribute.
+     * 
+     * @param type is the attribute value.
+     * @return 0 for audio, 1 for video, otherwise -1.
+     */
+    static int indexOf(String type)
+    {
+        if (null == type)
+            return -1;
+        if (type.equalsIgnoreCase("audio"))
+            return 0;
+        if (type.equalsIgnoreCase("video"))
+            return 1;
+        return -1;
+    }
+
+    /**
+     * Get the index of the source of a <tt>MediaType</tt>.
+     * 
+     * @param mediaType is the <tt>MediaType</tt>.
+     * @return 0 for audio, 1 for video, otherwise -1.
+     */
+    private static int indexOf(MediaType mediaType)
+    {
+        if (MediaType.AUDIO == mediaType)
+            return 0;
+        if (MediaType.VIDEO == mediaType)
+            return 1;
+        return -1;
     }
-}
\ No newline at end of file
+}
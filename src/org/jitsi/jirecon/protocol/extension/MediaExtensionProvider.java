@@ -5,6 +5,7 @@
  */
 package org.jitsi.jirecon.protocol.extension;
 
+import org.jitsi.service.neomedia.*;
 import org.jivesoftware.smack.packet.*;
 import org.jivesoftware.smack.provider.*;
 import org.xmlpull.v1.XmlPullParser;
@@ -50,14 +51,16 @@ public class MediaExtensionProvider
 
                 if (count > 0)
                 {
-                    String type = parser.getAttributeValue("", "type");
-                    String ssrc = parser.getAttributeValue("", "ssrc");
-                    String direction = parser.getAttributeValue("", "direction");
-                    if (type.equalsIgnoreCase("audio")
-                        || type.equalsIgnoreCase("video"))
+                    // Parse straight into the typed sources, no intermediate
+                    // strings are kept.
+                    final MediaType mediaType =
+                        parseMediaType(parser.getAttributeValue("", "type"));
+                    if (null != mediaType)
                     {
-                        result.setSsrc(type, ssrc);
-                        result.setDirection(type, direction);
+                        result.setSource(mediaType, MediaExtension
+                            .parseSsrc(parser.getAttributeValue("", "ssrc")),
+                            MediaExtension.parseDirection(parser
+                                .getAttributeValue("", "direction")));
                     }
                 }
                 break;
@@ -69,4 +72,23 @@ public class MediaExtensionProvider
         }
         return result;
     }
+
+    /**
+     * Parse the "type" attribute of a source.
+     * 
+     * @param type is the attribute value.
+     * @return audio or video, otherwise null.
+     */
+    private static MediaType parseMediaType(String type)
+    {
+        switch (MediaExtension.indexOf(type))
+        {
+        case 0:
+            return MediaType.AUDIO;
+        case 1:
+            return MediaType.VIDEO;
+        default:
+            return null;
+        }
+    }
 }
@@ -46,6 +46,12 @@ public class SsrcPacketExtension implements PacketExtension
      */
     private String ssrc;
 
+    /**
+     * The ssrc of this <tt>SsrcPacketExtension</tt> as a number, -1 if it
+     * isn't set or isn't valid.
+     */
+    private long ssrcValue = -1;
+
     
     
     /**
@@ -113,6 +119,16 @@ public class SsrcPacketExtension implements PacketExtension
     
     
     
+    /**
+     * Get the ssrc of the <tt>SsrcPacketExtension</tt> as a number, parsed
+     * once when it is set.
+     * @return the ssrc, or -1 if it isn't set or isn't valid.
+     */
+    public long getSsrcValue()
+    {
+        return ssrcValue;
+    }
+    
     /**
      * Set the namespace of the <tt>SsrcPacketExtension</tt>.
      * @param ns the namespace to be set of the <tt>SsrcPacketExtension</tt>.
@@ -165,6 +181,7 @@ public class SsrcPacketExtension implements PacketExtension
     public void setSsrc(String ssrc)
     {
         this.ssrc = ssrc;
+        this.ssrcValue = MediaExtension.parseSsrc(ssrc);
     }
     
     /**
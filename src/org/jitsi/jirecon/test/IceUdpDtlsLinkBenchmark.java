@@ -0,0 +1,234 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.lang.management.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.impl.neomedia.*;
+import org.jitsi.impl.neomedia.transform.dtls.*;
+import org.jitsi.jirecon.datachannel.*;
+import org.jitsi.service.libjitsi.*;
+
+/**
+ * Measures the DTLS side of the hand-off between the network and the SCTP
+ * stack of <tt>IceUdpDtlsLink</tt>: the time and the bytes allocated per
+ * datagram received from a loopback socket, and per SCTP packet sent. It
+ * compares them with the former path, which allocated a <tt>RawPacket</tt>
+ * per packet. The DTLS transformer is replaced by a counting one, so neither
+ * a DTLS handshake nor the native SCTP stack is needed. Run it with
+ * <tt>main</tt>, the arguments being the number of packets and rounds.
+ */
+public class IceUdpDtlsLinkBenchmark
+{
+    private static final int PACKET_SIZE = 1200;
+
+    /**
+     * Number of datagrams in flight, so that the socket buffers don't
+     * overflow.
+     */
+    private static final int WINDOW = 32;
+
+    private static final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * A transformer which counts the packets instead of running DTLS.
+     */
+    private static class CountingTransformer
+        extends DtlsPacketTransformer
+    {
+        private final AtomicLong packets = new AtomicLong();
+
+        private CountingTransformer()
+        {
+            super(null, 1);
+        }
+
+        @Override
+        public RawPacket reverseTransform(RawPacket pkt)
+        {
+            packets.incrementAndGet();
+            // Not application data, it doesn't go to the SCTP stack.
+            return null;
+        }
+
+        @Override
+        public RawPacket transform(RawPacket pkt)
+        {
+            packets.incrementAndGet();
+            return null;
+        }
+
+        @Override
+        public void sendApplicationData(byte[] buf, int off, int len)
+        {
+            packets.incrementAndGet();
+        }
+    }
+
+    /**
+     * A single thread executor which remembers its thread.
+     */
+    private static class ReceivingExecutor
+    {
+        private volatile Thread thread;
+
+        private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    thread = new Thread(r, "benchmark receiver");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        final int packets =
+            args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        // The DTLS transformer reads its configuration.
+        LibJitsi.start();
+
+        for (int r = 0; r < rounds; r++)
+        {
+            System.out.println("round " + r + ": receive "
+                + runReceive(packets, false) + ", legacy "
+                + runReceive(packets, true) + "; send "
+                + runSend(packets, false) + ", legacy "
+                + runSend(packets, true));
+        }
+        LibJitsi.stop();
+    }
+
+    private static String runReceive(int packets, final boolean legacy)
+        throws Exception
+    {
+        final DatagramSocket receiver =
+            new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        receiver.setReceiveBufferSize(1024 * 1024);
+        final DatagramSocket sender =
+            new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        final CountingTransformer transformer = new CountingTransformer();
+        final ReceivingExecutor executor = new ReceivingExecutor();
+        try
+        {
+            if (legacy)
+            {
+                executor.executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        byte[] receiveBuffer = new byte[2048 - 13];
+                        DatagramPacket rcvPacket =
+                            new DatagramPacket(receiveBuffer, 0,
+                                receiveBuffer.length);
+                        try
+                        {
+                            while (true)
+                            {
+                                receiver.receive(rcvPacket);
+                                RawPacket raw =
+                                    new RawPacket(rcvPacket.getData(),
+                                        rcvPacket.getOffset(), rcvPacket
+                                            .getLength());
+                                transformer.reverseTransform(raw);
+                            }
+                        }
+                        catch (Exception e)
+                        {
+                            // The socket is closed.
+                        }
+                    }
+                });
+            }
+            else
+            {
+                new IceUdpDtlsLink(null, receiver, transformer,
+                    executor.executor);
+            }
+
+            final DatagramPacket packet =
+                new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE,
+                    receiver.getLocalSocketAddress());
+            // Warm up, and let the receiving thread start.
+            send(sender, packet, transformer, WINDOW);
+            transformer.packets.set(0);
+
+            final long allocated =
+                threads.getThreadAllocatedBytes(executor.thread.getId());
+            final long start = System.nanoTime();
+            send(sender, packet, transformer, packets);
+            final long time = System.nanoTime() - start;
+            final long bytes =
+                threads.getThreadAllocatedBytes(executor.thread.getId())
+                    - allocated;
+            return time / packets + " ns/op " + bytes / packets + " B/op";
+        }
+        finally
+        {
+            receiver.close();
+            sender.close();
+            executor.executor.shutdown();
+        }
+    }
+
+    private static void send(DatagramSocket sender, DatagramPacket packet,
+        CountingTransformer transformer, int packets) throws Exception
+    {
+        final long base = transformer.packets.get();
+        for (int i = 0; i < packets; i++)
+        {
+            while (i - (transformer.packets.get() - base) >= WINDOW)
+                Thread.yield();
+            sender.send(packet);
+        }
+        while (transformer.packets.get() - base < packets)
+            Thread.yield();
+    }
+
+    private static String runSend(int packets, boolean legacy)
+        throws Exception
+    {
+        final CountingTransformer transformer = new CountingTransformer();
+        final DatagramSocket socket =
+            new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        // Nothing is received on the socket.
+        final IceUdpDtlsLink link =
+            new IceUdpDtlsLink(null, socket, transformer, executor);
+
+        final byte[] data = new byte[PACKET_SIZE];
+        final long thread = Thread.currentThread().getId();
+        final long allocated = threads.getThreadAllocatedBytes(thread);
+        final long start = System.nanoTime();
+        for (int i = 0; i < packets; i++)
+        {
+            if (legacy)
+            {
+                RawPacket rawPacket = new RawPacket();
+                rawPacket.setBuffer(data);
+                rawPacket.setLength(data.length);
+                transformer.transform(rawPacket);
+            }
+            else
+                link.onConnOut(null, data);
+        }
+        final long time = System.nanoTime() - start;
+        final long bytes = threads.getThreadAllocatedBytes(thread) - allocated;
+        socket.close();
+        executor.shutdown();
+        return time / packets + " ns/op " + bytes / packets + " B/op";
+    }
+}
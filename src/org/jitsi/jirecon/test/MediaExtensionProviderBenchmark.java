@@ -0,0 +1,118 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.jirecon.protocol.extension.*;
+import org.jitsi.service.neomedia.*;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * Compares the typed <tt>MediaExtensionProvider</tt> with the map based
+ * parsing it replaced, including the ssrc extraction done by the presence
+ * handling. Run it with <tt>main</tt>, the arguments being the number of
+ * iterations and rounds.
+ */
+public class MediaExtensionProviderBenchmark
+{
+    private static volatile long sink;
+
+    /**
+     * The parser is reused, so that only the parsing itself is measured.
+     */
+    private static final XmlPullParser parser = new MXParser();
+
+    private static XmlPullParser reset() throws Exception
+    {
+        parser.setInput(new StringReader(TestMediaExtensionProvider.MEDIA_XML));
+        parser.next();
+        return parser;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        final int iterations =
+            args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+
+        for (int r = 0; r < rounds; r++)
+        {
+            long legacy = runLegacy(iterations);
+            long typed = runTyped(iterations);
+            System.out.println("round " + r + ": map based "
+                + legacy / iterations + " ns/op, typed " + typed / iterations
+                + " ns/op");
+        }
+    }
+
+    private static long runTyped(int iterations) throws Exception
+    {
+        final MediaExtensionProvider provider = new MediaExtensionProvider();
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            MediaExtension ext =
+                (MediaExtension) provider.parseExtension(reset());
+            for (MediaType mediaType : new MediaType[]
+            { MediaType.AUDIO, MediaType.VIDEO })
+            {
+                MediaDirection direction = ext.getDirection(mediaType);
+                if (null != direction && direction.allowsSending())
+                    sink += ext.getSsrc(mediaType);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long runLegacy(int iterations) throws Exception
+    {
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            reset();
+            Map<String, String> ssrcs = new HashMap<String, String>();
+            Map<String, String> directions = new HashMap<String, String>();
+            boolean done = false;
+            while (!done)
+            {
+                switch (parser.next())
+                {
+                case XmlPullParser.END_TAG:
+                    done = MediaExtension.ELEMENT_NAME.equals(parser.getName());
+                    break;
+                case XmlPullParser.START_TAG:
+                    if (parser.getAttributeCount() > 0)
+                    {
+                        String type = parser.getAttributeValue("", "type");
+                        if (type.equalsIgnoreCase("audio")
+                            || type.equalsIgnoreCase("video"))
+                        {
+                            ssrcs.put(type,
+                                parser.getAttributeValue("", "ssrc"));
+                            directions.put(type,
+                                parser.getAttributeValue("", "direction"));
+                        }
+                    }
+                    break;
+                }
+            }
+            for (MediaType mediaType : new MediaType[]
+            { MediaType.AUDIO, MediaType.VIDEO })
+            {
+                MediaDirection direction =
+                    MediaDirection.parseString(directions.get(mediaType
+                        .toString()));
+                if (direction.allowsSending())
+                    sink += Long.valueOf(ssrcs.get(mediaType.toString()));
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
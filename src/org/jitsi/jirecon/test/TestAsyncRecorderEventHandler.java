@@ -0,0 +1,278 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.jirecon.metadata.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.recording.*;
+import org.json.simple.*;
+
+import junit.framework.TestCase;
+
+public class TestAsyncRecorderEventHandler
+    extends TestCase
+{
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        dir = File.createTempFile("jirecon", "metadata");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    private static RecorderEvent event(long instant)
+    {
+        RecorderEvent event = new RecorderEvent();
+        event.setType(RecorderEvent.Type.SPEAKER_CHANGED);
+        event.setMediaType(MediaType.VIDEO);
+        event.setInstant(instant);
+        event.setSsrc(instant + 1);
+        event.setEndpointId("endpoint" + instant);
+        return event;
+    }
+
+    private static JSONObject parse(File file) throws IOException
+    {
+        Reader reader = new FileReader(file);
+        try
+        {
+            return (JSONObject) JSONValue.parse(reader);
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    public void testBinaryRoundTrip() throws Exception
+    {
+        File file = new File(dir, MetadataFormat.BINARY.getFileName());
+        AsyncRecorderEventHandler handler =
+            new AsyncRecorderEventHandler(
+                MetadataFormat.BINARY.createSink(file), 16, 4, 0);
+        for (int i = 0; i < 10; i++)
+            assertTrue(handler.handleEvent(event(i)));
+        handler.close();
+
+        assertEquals(10, handler.getWrittenCount());
+        assertEquals(0, handler.getDroppedCount());
+        assertFalse(handler.handleEvent(event(10)));
+        assertEquals(1, handler.getDroppedCount());
+
+        DataInputStream in =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(
+                file)));
+        try
+        {
+            BinaryMetadataSink.readHeader(in);
+            for (int i = 0; i < 10; i++)
+            {
+                RecorderEvent event = BinaryMetadataSink.readEvent(in);
+                assertEquals(RecorderEvent.Type.SPEAKER_CHANGED,
+                    event.getType());
+                assertEquals(MediaType.VIDEO, event.getMediaType());
+                assertEquals(i, event.getInstant());
+                assertEquals(i + 1, event.getSsrc());
+                assertEquals("endpoint" + i, event.getEndpointId());
+                assertNull(event.getFilename());
+            }
+            assertNull(BinaryMetadataSink.readEvent(in));
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    public void testNdjson() throws Exception
+    {
+        File file = new File(dir, MetadataFormat.NDJSON.getFileName());
+        AsyncRecorderEventHandler handler =
+            new AsyncRecorderEventHandler(
+                MetadataFormat.NDJSON.createSink(file), 16, 0, 0);
+        handler.handleEvent(event(1));
+        handler.handleEvent(event(2));
+        handler.close();
+
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try
+        {
+            assertTrue(reader.readLine().contains("\"endpointId\":\"endpoint1\""));
+            assertTrue(reader.readLine().contains("\"instant\":2"));
+            assertNull(reader.readLine());
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    public void testDataChannelEvents() throws Exception
+    {
+        DataChannelEvent lastN =
+            new DataChannelEvent("LastNEndpointsChangeEvent");
+        lastN.setMediaType(MediaType.VIDEO);
+        lastN.setInstant(1);
+        lastN.setLastNEndpoints(Arrays.asList("a", "b"));
+        lastN.setEndpointsEnteringLastN(Arrays.asList("b"));
+        DataChannelEvent connectivity =
+            new DataChannelEvent("EndpointConnectivityStatusChangeEvent");
+        connectivity.setInstant(2);
+        connectivity.setEndpointId("c");
+        connectivity.setActive(false);
+
+        File binary = new File(dir, MetadataFormat.BINARY.getFileName());
+        MetadataSink sink = MetadataFormat.BINARY.createSink(binary);
+        sink.write(lastN);
+        sink.write(event(3));
+        sink.write(connectivity);
+        sink.close();
+
+        DataInputStream in =
+            new DataInputStream(new BufferedInputStream(new FileInputStream(
+                binary)));
+        try
+        {
+            BinaryMetadataSink.readHeader(in);
+            DataChannelEvent event =
+                (DataChannelEvent) BinaryMetadataSink.readEvent(in);
+            assertEquals(RecorderEvent.Type.OTHER, event.getType());
+            assertEquals("LastNEndpointsChangeEvent", event.getColibriClass());
+            assertEquals(MediaType.VIDEO, event.getMediaType());
+            assertEquals(1, event.getInstant());
+            assertEquals(Arrays.asList("a", "b"), event.getLastNEndpoints());
+            assertEquals(Arrays.asList("b"),
+                event.getEndpointsEnteringLastN());
+            assertNull(event.getActive());
+
+            // Plain events are left as they are.
+            assertFalse(BinaryMetadataSink.readEvent(in)
+                instanceof DataChannelEvent);
+
+            event = (DataChannelEvent) BinaryMetadataSink.readEvent(in);
+            assertEquals("c", event.getEndpointId());
+            assertNull(event.getMediaType());
+            assertNull(event.getLastNEndpoints());
+            assertEquals(Boolean.FALSE, event.getActive());
+            assertNull(BinaryMetadataSink.readEvent(in));
+        }
+        finally
+        {
+            in.close();
+        }
+
+        String json = NdjsonMetadataSink.toJson(lastN).toJSONString();
+        assertTrue(json.contains("\"lastNEndpoints\":[\"a\",\"b\"]"));
+        assertTrue(json.contains("\"endpointsEnteringLastN\":[\"b\"]"));
+        assertTrue(json.contains("\"colibriClass\":\"LastNEndpointsChangeEvent\""));
+        json = NdjsonMetadataSink.toJson(connectivity).toJSONString();
+        assertTrue(json.contains("\"active\":false"));
+        assertFalse(json.contains("participantDescription"));
+    }
+
+    public void testJsonDataChannelEvents() throws Exception
+    {
+        DataChannelEvent lastN =
+            new DataChannelEvent("LastNEndpointsChangeEvent");
+        lastN.setMediaType(MediaType.VIDEO);
+        lastN.setInstant(1);
+        lastN.setLastNEndpoints(Arrays.asList("a", "b"));
+        DataChannelEvent connectivity =
+            new DataChannelEvent("EndpointConnectivityStatusChangeEvent");
+        connectivity.setInstant(3);
+        connectivity.setEndpointId("c");
+        connectivity.setActive(true);
+
+        File file = new File(dir, MetadataFormat.JSON.getFileName());
+        MetadataSink sink = MetadataFormat.JSON.createSink(file);
+        sink.write(lastN);
+        sink.write(event(2));
+        sink.write(connectivity);
+        sink.close();
+
+        // They don't end up among the video events.
+        JSONObject metadata = parse(file);
+        assertEquals(1, ((JSONArray) metadata.get("video")).size());
+
+        File dataChannelFile = JsonMetadataSink.getDataChannelFile(file);
+        assertEquals("metadata-datachannel.json", dataChannelFile.getName());
+        JSONArray events =
+            (JSONArray) parse(dataChannelFile).get("data_channel");
+        assertEquals(2, events.size());
+        assertEquals(Arrays.asList("a", "b"),
+            ((JSONObject) events.get(0)).get("lastNEndpoints"));
+        assertEquals(Boolean.TRUE, ((JSONObject) events.get(1)).get("active"));
+    }
+
+    public void testDropsWhenFull() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<RecorderEvent> written = new ArrayList<RecorderEvent>();
+        MetadataSink slowSink = new MetadataSink()
+        {
+            public void write(RecorderEvent event)
+            {
+                written.add(event);
+            }
+
+            public void flush(boolean sync)
+            {
+            }
+
+            public void close()
+            {
+            }
+        };
+        // The writer can't run until we let it, so the queue fills up.
+        Executor blocked = new Executor()
+        {
+            public void execute(final Runnable r)
+            {
+                new Thread()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            release.await();
+                        }
+                        catch (InterruptedException e)
+                        {
+                        }
+                        r.run();
+                    }
+                }.start();
+            }
+        };
+        AsyncRecorderEventHandler handler =
+            new AsyncRecorderEventHandler(slowSink, 2, 0, 0, blocked);
+
+        assertTrue(handler.handleEvent(event(1)));
+        assertTrue(handler.handleEvent(event(2)));
+        assertFalse(handler.handleEvent(event(3)));
+        assertEquals(2, handler.getQueueDepth());
+        assertEquals(1, handler.getDroppedCount());
+
+        release.countDown();
+        handler.close();
+        assertEquals(2, written.size());
+        assertEquals(2, handler.getMaxQueueDepth());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.*;
+
+import org.jitsi.jirecon.datachannel.*;
+import org.json.simple.parser.*;
+
+import junit.framework.TestCase;
+
+public class TestColibriMessageDecoder
+    extends TestCase
+{
+    private final List<String> messages = new ArrayList<String>();
+
+    private final ColibriMessageDecoder decoder = new ColibriMessageDecoder(
+        new ColibriMessageDecoder.MessageHandler()
+        {
+            @Override
+            public void onDominantSpeakerChanged(String endpointId)
+            {
+                messages.add("speaker " + endpointId);
+            }
+
+            @Override
+            public void onLastNChanged(List<String> lastN,
+                List<String> entering)
+            {
+                messages.add("lastN " + lastN + " " + entering);
+            }
+
+            @Override
+            public void onEndpointConnectivityChanged(String endpointId,
+                boolean active)
+            {
+                messages.add("connectivity " + endpointId + " " + active);
+            }
+
+            @Override
+            public void onOtherMessage(String colibriClass)
+            {
+                messages.add("other " + colibriClass);
+            }
+        });
+
+    public void testDispatch() throws Exception
+    {
+        assertTrue(decoder.decode("{\"colibriClass\":"
+            + "\"DominantSpeakerEndpointChangeEvent\","
+            + "\"dominantSpeakerEndpoint\":\"a\"}"));
+        assertTrue(decoder.decode("{\"colibriClass\":"
+            + "\"LastNEndpointsChangeEvent\","
+            + "\"lastNEndpoints\":[\"a\",\"b\"],"
+            + "\"endpointsEnteringLastN\":[\"b\"]}"));
+        assertTrue(decoder.decode("{\"colibriClass\":"
+            + "\"EndpointConnectivityStatusChangeEvent\","
+            + "\"endpoint\":\"c\",\"active\":\"false\"}"));
+        assertTrue(decoder.decode("{\"colibriClass\":\"EndpointMessage\","
+            + "\"from\":\"a\",\"msgPayload\":{\"dominantSpeakerEndpoint\":"
+            + "\"b\",\"list\":[1,2]}}"));
+
+        assertEquals(Arrays.asList("speaker a", "lastN [a, b] [b]",
+            "connectivity c false", "other EndpointMessage"), messages);
+    }
+
+    public void testNestedFieldsIgnored() throws Exception
+    {
+        // Nested objects and arrays don't override the message fields.
+        assertTrue(decoder.decode("{\"colibriClass\":"
+            + "\"LastNEndpointsChangeEvent\","
+            + "\"extra\":{\"lastNEndpoints\":[\"x\"]},"
+            + "\"lastNEndpoints\":[\"a\",{\"id\":\"y\"},[\"z\"]]}"));
+        assertEquals(Arrays.asList("lastN [a] []"), messages);
+    }
+
+    public void testWithoutClass() throws Exception
+    {
+        assertTrue(decoder.decode("{\"dominantSpeakerEndpoint\":\"a\"}"));
+        assertTrue(decoder.decode("{\"foo\":1}"));
+        assertEquals(Arrays.asList("speaker a", "other null"), messages);
+    }
+
+    public void testIncomplete() throws Exception
+    {
+        assertFalse(decoder.decode("{\"colibriClass\":"
+            + "\"EndpointConnectivityStatusChangeEvent\",\"active\":true}"));
+        // The fields of a message don't leak into the next one.
+        decoder.decode("{\"colibriClass\":\"LastNEndpointsChangeEvent\","
+            + "\"lastNEndpoints\":[]}");
+        assertFalse(decoder.decode("{\"colibriClass\":"
+            + "\"LastNEndpointsChangeEvent\"}"));
+        assertEquals(Arrays.asList("lastN [] []"), messages);
+    }
+
+    public void testMalformed()
+    {
+        try
+        {
+            decoder.decode("{\"colibriClass\":");
+            fail("Malformed message decoded");
+        }
+        catch (ParseException e)
+        {
+        }
+        assertTrue(messages.isEmpty());
+    }
+}
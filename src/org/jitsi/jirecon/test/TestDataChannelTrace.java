@@ -0,0 +1,83 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.io.*;
+
+import org.jitsi.jirecon.datachannel.*;
+
+import junit.framework.TestCase;
+
+public class TestDataChannelTrace
+    extends TestCase
+{
+    private static DataInputStream dump(DataChannelTrace trace, int expected)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        assertEquals(expected, trace.dump(new DataOutputStream(bytes)));
+        DataInputStream in =
+            new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(0xA1B2C3D4, in.readInt());
+        in.skipBytes(16);
+        // Raw IP
+        assertEquals(101, in.readInt());
+        return in;
+    }
+
+    public void testRing() throws Exception
+    {
+        DataChannelTrace trace = new DataChannelTrace(3);
+        assertTrue(trace.isEnabled());
+        for (int i = 0; i < 5; i++)
+        {
+            byte[] packet = new byte[12 + i];
+            packet[0] = (byte) i;
+            // The packet is copied, it may be reused by the caller.
+            byte[] buf = new byte[packet.length + 4];
+            System.arraycopy(packet, 0, buf, 2, packet.length);
+            trace.record(3, 0 == i % 2, buf, 2, packet.length);
+        }
+
+        DataInputStream in = dump(trace, 3);
+        // The oldest packets have been overwritten.
+        for (int i = 2; i < 5; i++)
+        {
+            in.skipBytes(8);
+            assertEquals(20 + 12 + i, in.readInt());
+            assertEquals(20 + 12 + i, in.readInt());
+            assertEquals(0x45, in.readUnsignedByte());
+            in.skipBytes(8);
+            // SCTP
+            assertEquals(132, in.readUnsignedByte());
+            in.skipBytes(2);
+            int source = in.readInt();
+            int destination = in.readInt();
+            int jirecon = 0x7F000301;
+            if (0 == i % 2)
+            {
+                assertEquals(jirecon, source);
+                assertEquals(jirecon + 1, destination);
+            }
+            else
+            {
+                assertEquals(jirecon + 1, source);
+                assertEquals(jirecon, destination);
+            }
+            assertEquals(i, in.readUnsignedByte());
+            in.skipBytes(12 + i - 1);
+        }
+        assertEquals(-1, in.read());
+    }
+
+    public void testDisabled() throws Exception
+    {
+        DataChannelTrace trace = new DataChannelTrace(0);
+        assertFalse(trace.isEnabled());
+        trace.record(1, true, new byte[12], 0, 12);
+        assertEquals(-1, dump(trace, 0).read());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.*;
+
+import org.jitsi.jirecon.EndpointIndex;
+import org.jitsi.jirecon.EndpointInfo;
+import org.jitsi.service.neomedia.MediaType;
+
+import junit.framework.TestCase;
+
+public class TestEndpointIndex
+    extends TestCase
+{
+    private static EndpointInfo endpoint(String id, long audio, long video)
+    {
+        EndpointInfo endpoint = new EndpointInfo();
+        endpoint.setId(id);
+        if (audio != -1)
+            endpoint.setSsrc(MediaType.AUDIO, audio);
+        if (video != -1)
+            endpoint.setSsrc(MediaType.VIDEO, video);
+        return endpoint;
+    }
+
+    public void testLookups()
+    {
+        List<EndpointInfo> endpoints = new ArrayList<EndpointInfo>();
+        endpoints.add(endpoint("alice@example.com/a", 1L, 2L));
+        endpoints.add(endpoint("bob@example.com/b", 0xFFFFFFFFL, -1));
+        EndpointIndex index = new EndpointIndex(endpoints);
+
+        assertFalse(index.isEmpty());
+        assertEquals(2L, index.getAssociatedSsrc(1L, MediaType.VIDEO));
+        assertEquals(1L, index.getAssociatedSsrc(2L, MediaType.AUDIO));
+        // Endpoints with a single ssrc have no associated ssrc.
+        assertEquals(-1L,
+            index.getAssociatedSsrc(0xFFFFFFFFL, MediaType.AUDIO));
+
+        assertEquals(2L,
+            index.getEndpointSsrc("alice@example.com/a", MediaType.VIDEO));
+        assertEquals(2L, index.getEndpointSsrc("alice", MediaType.VIDEO));
+        assertEquals(-1L, index.getEndpointSsrc("bob", MediaType.VIDEO));
+        assertEquals(-1L, index.getEndpointSsrc("carol", MediaType.AUDIO));
+
+        assertEquals("bob@example.com/b",
+            index.getEndpointId(0xFFFFFFFFL, MediaType.AUDIO));
+        // The ssrc has to be of the given media type.
+        assertNull(index.getEndpointId(1L, MediaType.VIDEO));
+        assertNull(index.getEndpointId(3L, MediaType.AUDIO));
+    }
+
+    public void testSnapshot()
+    {
+        EndpointInfo alice = endpoint("alice@example.com/a", 1L, 2L);
+        EndpointIndex index =
+            new EndpointIndex(Collections.singletonList(alice));
+
+        alice.setSsrc(MediaType.AUDIO, 5L);
+        assertEquals(1L, index.getEndpointSsrc("alice", MediaType.AUDIO));
+        assertTrue(EndpointIndex.EMPTY.isEmpty());
+    }
+
+    public void testManyEndpoints()
+    {
+        List<EndpointInfo> endpoints = new ArrayList<EndpointInfo>();
+        for (int i = 0; i < 1000; i++)
+            endpoints.add(endpoint("user" + i + "@example.com/r",
+                (long) i << 8, ((long) i << 8) + 1));
+        EndpointIndex index = new EndpointIndex(endpoints);
+
+        for (int i = 0; i < 1000; i++)
+        {
+            assertEquals("user" + i + "@example.com/r",
+                index.getEndpointId(((long) i << 8) + 1, MediaType.VIDEO));
+            assertEquals((long) i << 8,
+                index.getAssociatedSsrc(((long) i << 8) + 1,
+                    MediaType.AUDIO));
+        }
+    }
+}
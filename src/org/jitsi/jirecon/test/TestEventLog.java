@@ -0,0 +1,127 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.io.*;
+
+import org.jitsi.jirecon.metadata.*;
+import org.jitsi.service.neomedia.recording.*;
+
+import junit.framework.TestCase;
+
+public class TestEventLog
+    extends TestCase
+{
+    private File log;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        log = File.createTempFile("jirecon", ".log");
+        log.delete();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        log.delete();
+        EventLogSink.getCheckpointFile(log).delete();
+    }
+
+    private static RecorderEvent event(long instant)
+    {
+        RecorderEvent event = new RecorderEvent();
+        event.setType(RecorderEvent.Type.STREAM_ADDED);
+        event.setInstant(instant);
+        event.setFilename(instant + ".webm");
+        return event;
+    }
+
+    public void testTail() throws Exception
+    {
+        EventLogSink sink = new EventLogSink(log);
+        EventLogReader reader = new EventLogReader(log);
+        try
+        {
+            sink.write(event(1));
+            sink.flush(false);
+            assertEquals(1, reader.next().getInstant());
+            assertNull(reader.next());
+
+            sink.write(event(2));
+            sink.write(event(3));
+            sink.flush(false);
+            assertEquals(2, reader.next().getInstant());
+            assertEquals("3.webm", reader.next().getFilename());
+            assertNull(reader.next());
+            assertEquals(3, reader.getCount());
+        }
+        finally
+        {
+            sink.close();
+            reader.close();
+        }
+    }
+
+    public void testRecoverTornTail() throws Exception
+    {
+        EventLogSink sink = new EventLogSink(log);
+        for (int i = 0; i < 5; i++)
+            sink.write(event(i));
+        sink.flush(true);
+        sink.write(event(5));
+        sink.flush(false);
+        final long validLength = log.length();
+        sink.close();
+
+        // Simulate a crash in the middle of a write.
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        raf.setLength(validLength);
+        raf.seek(validLength);
+        raf.writeInt(100);
+        raf.writeInt(0);
+        raf.write(new byte[10]);
+        raf.close();
+
+        assertEquals(6, EventLogReader.recover(log));
+        assertEquals(validLength, log.length());
+
+        // The checkpoint now points at the end of the log.
+        EventLogReader reader = new EventLogReader(log);
+        try
+        {
+            assertTrue(reader.seekToCheckpoint());
+            assertEquals(6, reader.getCount());
+            assertNull(reader.next());
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    public void testRecoverCorruptedRecord() throws Exception
+    {
+        EventLogSink sink = new EventLogSink(log);
+        sink.write(event(1));
+        sink.flush(true);
+        final long checkpoint = log.length();
+        sink.write(event(2));
+        sink.close();
+
+        // Flip a byte of the payload of the second record.
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        raf.seek(checkpoint + 12);
+        final int b = raf.readByte();
+        raf.seek(checkpoint + 12);
+        raf.writeByte(b ^ 0xFF);
+        raf.close();
+        EventLogSink.getCheckpointFile(log).delete();
+
+        assertEquals(1, EventLogReader.recover(log));
+        assertEquals(checkpoint, log.length());
+    }
+}
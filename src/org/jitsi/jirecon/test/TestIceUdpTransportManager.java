@@ -5,9 +5,15 @@
  */
 package org.jitsi.jirecon.test;
 
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
 import net.java.sip.communicator.impl.protocol.jabber.extensions.jingle.*;
 
 import org.jitsi.jirecon.IceUdpTransportManager;
+import org.jitsi.jirecon.IceUdpTransportManager.*;
+import org.jitsi.jirecon.utils.ConfigurationKey;
 import org.jitsi.service.neomedia.*;
 
 import junit.framework.TestCase;
@@ -36,4 +42,184 @@ public class TestIceUdpTransportManager
         assertNotNull(pe);
         System.out.println(pe.toXML());
     }
+
+    public void testHarvestAfterFree()
+    {
+        IceUdpTransportManager mgr = new IceUdpTransportManager();
+        final int usedPorts = IceUdpTransportManager.getUsedPortCount();
+        mgr.free();
+
+        try
+        {
+            mgr.harvestLocalCandidates(MediaType.AUDIO);
+            fail("Harvested on a freed transport manager");
+        }
+        catch (Exception e)
+        {
+        }
+        // No port may be held by a freed transport manager.
+        assertEquals(usedPorts, IceUdpTransportManager.getUsedPortCount());
+    }
+
+    public void testRemoveUnusedStreams()
+        throws Exception
+    {
+        System.setProperty(ConfigurationKey.MIN_STREAM_PORT_KEY, "40000");
+        System.setProperty(ConfigurationKey.MAX_STREAM_PORT_KEY, "40099");
+
+        IceUdpTransportManager mgr = new IceUdpTransportManager();
+        final int usedPorts = IceUdpTransportManager.getUsedPortCount();
+        assertTrue("No port range", usedPorts >= 0);
+
+        mgr.harvestLocalCandidates(MediaType.AUDIO);
+        final int audioPorts =
+            IceUdpTransportManager.getUsedPortCount() - usedPorts;
+        mgr.harvestLocalCandidates(MediaType.VIDEO);
+        assertTrue(IceUdpTransportManager.getUsedPortCount()
+            > usedPorts + audioPorts);
+
+        // The ports of the video stream are given back at once.
+        mgr.removeUnusedStreams(new MediaType[] { MediaType.AUDIO });
+        assertEquals(usedPorts + audioPorts,
+            IceUdpTransportManager.getUsedPortCount());
+        assertEquals(audioPorts, mgr.getAllocatedPortCount());
+
+        mgr.free();
+        assertEquals(usedPorts, IceUdpTransportManager.getUsedPortCount());
+    }
+
+    public void testConnectivityFailed()
+        throws Exception
+    {
+        // Without any remote candidate there is nothing to check.
+        IceUdpTransportManager mgr = new IceUdpTransportManager();
+        ResultQueue results = new ResultQueue();
+        mgr.startConnectivityEstablishment(results);
+
+        assertEquals(ConnectivityResult.FAILED, results.take());
+        assertFalse(mgr.wrapupConnectivityEstablishment());
+        mgr.free();
+        assertTrue(results.isEmpty());
+    }
+
+    public void testConnectivityTimeout()
+        throws Exception
+    {
+        System.setProperty(ConfigurationKey.ICE_TIMEOUT_KEY, "300");
+        System.setProperty(ConfigurationKey.MIN_STREAM_PORT_KEY, "40000");
+        System.setProperty(ConfigurationKey.MAX_STREAM_PORT_KEY, "40099");
+
+        IceUdpTransportManager mgr = new IceUdpTransportManager();
+        DatagramSocket peer = addSilentPeer(mgr);
+        try
+        {
+            ResultQueue results = new ResultQueue();
+            mgr.startConnectivityEstablishment(results);
+
+            assertEquals(ConnectivityResult.TIMEOUT, results.take());
+            assertFalse(mgr.wrapupConnectivityEstablishment());
+        }
+        finally
+        {
+            mgr.free();
+            peer.close();
+        }
+    }
+
+    public void testFreeDuringConnectivity()
+        throws Exception
+    {
+        System.setProperty(ConfigurationKey.ICE_TIMEOUT_KEY, "60000");
+        System.setProperty(ConfigurationKey.MIN_STREAM_PORT_KEY, "40000");
+        System.setProperty(ConfigurationKey.MAX_STREAM_PORT_KEY, "40099");
+
+        IceUdpTransportManager mgr = new IceUdpTransportManager();
+        DatagramSocket peer = addSilentPeer(mgr);
+        try
+        {
+            ResultQueue results = new ResultQueue();
+            mgr.startConnectivityEstablishment(results);
+            mgr.free();
+
+            // Nobody waits for the timeout.
+            assertEquals(ConnectivityResult.FAILED, results.take());
+            assertFalse(mgr.wrapupConnectivityEstablishment());
+        }
+        finally
+        {
+            peer.close();
+        }
+    }
+
+    /**
+     * Give the audio stream of a transport manager a remote peer which never
+     * answers the connectivity checks.
+     * 
+     * @param mgr is the transport manager.
+     * @return the socket of the remote peer.
+     */
+    private static DatagramSocket addSilentPeer(IceUdpTransportManager mgr)
+        throws Exception
+    {
+        mgr.harvestLocalCandidates(MediaType.AUDIO);
+        final CandidatePacketExtension local =
+            mgr.createTransportPacketExt(MediaType.AUDIO).getCandidateList()
+                .get(0);
+        final DatagramSocket peer =
+            new DatagramSocket(0, InetAddress.getByName(local.getIP()));
+
+        IceUdpTransportPacketExtension remote =
+            new IceUdpTransportPacketExtension();
+        remote.setUfrag("silentufrag");
+        remote.setPassword("silentpasswordsilentpassword");
+        for (int component = 1; component <= 2; component++)
+        {
+            CandidatePacketExtension candidate =
+                new CandidatePacketExtension();
+            candidate.setComponent(component);
+            candidate.setGeneration(0);
+            candidate.setProtocol("udp");
+            candidate.setIP(local.getIP());
+            candidate.setPort(peer.getLocalPort());
+            candidate.setType(CandidateType.host);
+            candidate.setPriority(local.getPriority());
+            candidate.setFoundation("1");
+            candidate.setID(Integer.toString(component));
+            remote.addCandidate(candidate);
+        }
+
+        Map<MediaType, IceUdpTransportPacketExtension> remotes =
+            new HashMap<MediaType, IceUdpTransportPacketExtension>();
+        remotes.put(MediaType.AUDIO, remote);
+        mgr.addRemoteCandidates(remotes);
+        return peer;
+    }
+
+    /**
+     * Collects the results of the connectivity establishment.
+     */
+    private static class ResultQueue
+        implements ConnectivityListener
+    {
+        private final BlockingQueue<ConnectivityResult> results =
+            new LinkedBlockingQueue<ConnectivityResult>();
+
+        @Override
+        public void connectivityEstablishmentFinished(
+            ConnectivityResult result)
+        {
+            results.add(result);
+        }
+
+        public ConnectivityResult take()
+            throws InterruptedException
+        {
+            return results.poll(10, TimeUnit.SECONDS);
+        }
+
+        public boolean isEmpty()
+        {
+            return results.isEmpty();
+        }
+    }
 }
@@ -0,0 +1,150 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.jirecon.*;
+import org.jivesoftware.smack.*;
+import org.jivesoftware.smack.packet.*;
+
+import junit.framework.TestCase;
+
+public class TestIqRequestTracker
+    extends TestCase
+{
+    /**
+     * The packets "sent" by the tracker under test.
+     */
+    private final List<Packet> sent = new ArrayList<Packet>();
+
+    private IqRequestTracker tracker;
+
+    @Override
+    protected void setUp()
+    {
+        tracker = new IqRequestTracker(new XMPPConnection("localhost")
+        {
+            @Override
+            public void sendPacket(Packet packet)
+            {
+                sent.add(packet);
+            }
+        });
+    }
+
+    public void testResult() throws Exception
+    {
+        IQ request = createRequest();
+        PacketFuture<IQ> response = tracker.sendRequest(request, 10000);
+        assertSame(request, sent.get(0));
+        assertEquals(1, tracker.getPendingCount());
+
+        IQ result = createResponse(request, IQ.Type.RESULT);
+        assertTrue(tracker.handleResponse(result));
+        assertSame(result, response.get(0));
+        assertEquals(0, tracker.getPendingCount());
+
+        // A second response of the same request is not ours any more.
+        assertFalse(tracker.handleResponse(result));
+    }
+
+    public void testError() throws Exception
+    {
+        IQ request = createRequest();
+        PacketFuture<IQ> response = tracker.sendRequest(request, 10000);
+
+        IQ error = createResponse(request, IQ.Type.ERROR);
+        error.setError(new XMPPError(XMPPError.Condition.item_not_found));
+        assertTrue(tracker.handleResponse(error));
+        try
+        {
+            response.get(0);
+            fail("An error response completed the request");
+        }
+        catch (XMPPException e)
+        {
+        }
+        assertEquals(0, tracker.getPendingCount());
+    }
+
+    public void testUnknownId() throws Exception
+    {
+        IQ request = createRequest();
+        PacketFuture<IQ> response = tracker.sendRequest(request, 10000);
+
+        IQ other = createResponse(createRequest(), IQ.Type.RESULT);
+        assertFalse(tracker.handleResponse(other));
+        // Requests aren't responses either.
+        assertFalse(tracker.handleResponse(createRequest()));
+        assertFalse(response.isDone());
+        assertEquals(1, tracker.getPendingCount());
+    }
+
+    public void testTimeout() throws Exception
+    {
+        PacketFuture<IQ> response = tracker.sendRequest(createRequest(), 50);
+        // Notified after the tracker, which has registered first.
+        final CountDownLatch failed = new CountDownLatch(1);
+        response.addListener(new PacketFuture.Listener<IQ>()
+        {
+            @Override
+            public void packetReceived(IQ packet)
+            {
+            }
+
+            @Override
+            public void packetFailed(Exception cause)
+            {
+                if (cause instanceof TimeoutException)
+                    failed.countDown();
+            }
+        });
+
+        assertTrue("The request didn't time out",
+            failed.await(5, TimeUnit.SECONDS));
+        assertEquals(0, tracker.getPendingCount());
+    }
+
+    public void testCancelAll() throws Exception
+    {
+        PacketFuture<IQ> response =
+            tracker.sendRequest(createRequest(), 10000);
+        tracker.cancelAll();
+        try
+        {
+            response.get(0);
+            fail("A cancelled request completed");
+        }
+        catch (CancellationException e)
+        {
+        }
+        assertEquals(0, tracker.getPendingCount());
+    }
+
+    private static IQ createRequest()
+    {
+        IQ request = new IQ()
+        {
+            @Override
+            public String getChildElementXML()
+            {
+                return null;
+            }
+        };
+        request.setType(IQ.Type.SET);
+        return request;
+    }
+
+    private static IQ createResponse(IQ request, IQ.Type type)
+    {
+        IQ response = createRequest();
+        response.setType(type);
+        response.setPacketID(request.getPacketID());
+        return response;
+    }
+}
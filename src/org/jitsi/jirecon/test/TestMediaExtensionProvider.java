@@ -0,0 +1,97 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.io.*;
+
+import org.jitsi.jirecon.protocol.extension.*;
+import org.jitsi.service.neomedia.*;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import junit.framework.TestCase;
+
+public class TestMediaExtensionProvider
+    extends TestCase
+{
+    static final String MEDIA_XML =
+        "<media xmlns='http://estos.de/ns/mjs'>"
+            + "<source type='audio' ssrc='4294967295' direction='sendrecv'/>"
+            + "<source type='video' ssrc='12345' direction='recvonly'/>"
+            + "<source type='data' ssrc='1' direction='sendrecv'/>"
+            + "</media>";
+
+    static XmlPullParser parser(String xml) throws Exception
+    {
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new StringReader(xml));
+        parser.next();
+        return parser;
+    }
+
+    public void testParse() throws Exception
+    {
+        MediaExtension ext =
+            (MediaExtension) new MediaExtensionProvider()
+                .parseExtension(parser(MEDIA_XML));
+
+        assertEquals(0xFFFFFFFFL, ext.getSsrc(MediaType.AUDIO));
+        assertEquals(MediaDirection.SENDRECV,
+            ext.getDirection(MediaType.AUDIO));
+        assertEquals(12345L, ext.getSsrc(MediaType.VIDEO));
+        assertEquals(MediaDirection.RECVONLY,
+            ext.getDirection(MediaType.VIDEO));
+        assertEquals(-1L, ext.getSsrc(MediaType.DATA));
+
+        // The string accessors still work.
+        assertEquals("12345", ext.getSsrc("video"));
+        assertEquals("recvonly", ext.getDirection("video"));
+    }
+
+    public void testInvalidSource() throws Exception
+    {
+        MediaExtension ext =
+            (MediaExtension) new MediaExtensionProvider()
+                .parseExtension(parser("<media xmlns='http://estos.de/ns/mjs'>"
+                    + "<source type='audio' ssrc='-3' direction='bogus'/>"
+                    + "</media>"));
+
+        assertEquals(-1L, ext.getSsrc(MediaType.AUDIO));
+        assertNull(ext.getDirection(MediaType.AUDIO));
+    }
+
+    public void testSameSources() throws Exception
+    {
+        MediaExtension a =
+            (MediaExtension) new MediaExtensionProvider()
+                .parseExtension(parser(MEDIA_XML));
+        MediaExtension b = new MediaExtension();
+        b.setSource(MediaType.AUDIO, 0xFFFFFFFFL, MediaDirection.SENDRECV);
+        b.setSource(MediaType.VIDEO, 12345L, MediaDirection.RECVONLY);
+
+        assertTrue(a.hasSameSources(b));
+        MediaExtension copy = b.copySources();
+        b.setSource(MediaType.VIDEO, 12345L, MediaDirection.SENDRECV);
+        assertFalse(a.hasSameSources(b));
+        assertTrue(a.hasSameSources(copy));
+        assertFalse(a.hasSameSources(null));
+    }
+
+    public void testSameSourcesWithSameHash()
+    {
+        MediaExtension a = new MediaExtension();
+        a.setSource(MediaType.AUDIO, 5000L, MediaDirection.SENDRECV);
+        a.setSource(MediaType.VIDEO, 12345L, MediaDirection.SENDRECV);
+        // A 31-based hash of the sources wouldn't tell these apart.
+        MediaExtension b = new MediaExtension();
+        b.setSource(MediaType.AUDIO, 5001L, MediaDirection.SENDRECV);
+        b.setSource(MediaType.VIDEO, 12345L - 31 * 31,
+            MediaDirection.SENDRECV);
+
+        assertFalse(a.hasSameSources(b));
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import org.jitsi.jirecon.PortAllocator;
+
+import junit.framework.TestCase;
+
+public class TestPortAllocator
+    extends TestCase
+{
+    public void testAllocateAndRelease()
+    {
+        PortAllocator allocator = new PortAllocator(10000, 10002);
+
+        assertEquals(3, allocator.getFreeCount());
+        assertEquals(10000, allocator.allocate());
+        assertEquals(10001, allocator.allocate());
+        assertEquals(10002, allocator.allocate());
+        assertEquals(-1, allocator.allocate());
+        assertEquals(3, allocator.getUsedCount());
+
+        allocator.release(10001);
+        assertEquals(1, allocator.getFreeCount());
+        assertEquals(10001, allocator.allocate());
+
+        // Releasing unknown ports doesn't change anything.
+        allocator.release(9999);
+        allocator.release(10003);
+        assertEquals(0, allocator.getFreeCount());
+    }
+
+    public void testAllocationGoesRound()
+    {
+        PortAllocator allocator = new PortAllocator(10000, 10002);
+
+        int port = allocator.allocate();
+        allocator.release(port);
+
+        // The released port isn't reused while others are free.
+        assertEquals(10001, allocator.allocate());
+        assertEquals(10002, allocator.allocate());
+        assertEquals(10000, allocator.allocate());
+    }
+}
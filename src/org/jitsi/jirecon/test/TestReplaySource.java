@@ -0,0 +1,186 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import org.jitsi.impl.neomedia.format.*;
+import org.jitsi.jirecon.capture.*;
+import org.jitsi.jirecon.capture.RtpCaptureReader.CapturedPacket;
+import org.jitsi.service.libjitsi.*;
+import org.jitsi.service.neomedia.*;
+import org.jitsi.service.neomedia.format.*;
+
+import junit.framework.TestCase;
+
+public class TestReplaySource
+    extends TestCase
+{
+    private static byte[] rtp(int pt, long ssrc, int seq)
+    {
+        ByteBuffer packet = ByteBuffer.allocate(20);
+        packet.put((byte) 0x80).put((byte) pt).putShort((short) seq)
+            .putInt(seq * 960).putInt((int) ssrc);
+        return packet.array();
+    }
+
+    private static byte[] rtcp(long ssrc)
+    {
+        ByteBuffer packet = ByteBuffer.allocate(8);
+        packet.put((byte) 0x80).put((byte) 200).putShort((short) 1)
+            .putInt((int) ssrc);
+        return packet.array();
+    }
+
+    /**
+     * Wrap a packet in Ethernet, IPv4 and UDP headers.
+     */
+    private static byte[] frame(byte[] payload, int protocol, int fragment)
+    {
+        ByteBuffer frame = ByteBuffer.allocate(14 + 20 + 8 + payload.length);
+        frame.position(12);
+        frame.putShort((short) 0x0800);
+        frame.put((byte) 0x45).put((byte) 0)
+            .putShort((short) (20 + 8 + payload.length)).putShort((short) 0)
+            .putShort((short) fragment).put((byte) 64).put((byte) protocol)
+            .putShort((short) 0).putInt(0x7F000001).putInt(0x7F000001);
+        frame.putShort((short) 5000).putShort((short) 6000)
+            .putShort((short) (8 + payload.length)).putShort((short) 0);
+        frame.put(payload);
+        return frame.array();
+    }
+
+    private static void record(DataOutputStream out, long micros, byte[] frame)
+        throws IOException
+    {
+        // Little endian records, as written by tcpdump on x86.
+        ByteBuffer header = ByteBuffer.allocate(16);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt((int) (micros / 1000000)).putInt((int) (micros % 1000000))
+            .putInt(frame.length).putInt(frame.length);
+        out.write(header.array());
+        out.write(frame);
+    }
+
+    public void testPcap() throws Exception
+    {
+        LibJitsi.start();
+        File file = File.createTempFile("jirecon", ".pcap");
+        try
+        {
+            DataOutputStream out =
+                new DataOutputStream(new FileOutputStream(file));
+            ByteBuffer header = ByteBuffer.allocate(24);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(0xA1B2C3D4).putShort((short) 2).putShort((short) 4)
+                .putInt(0).putInt(0).putInt(65535).putInt(1);
+            out.write(header.array());
+            // RTCP of a sender whose media type isn't known yet is skipped.
+            record(out, 1000000, frame(rtcp(1), 17, 0));
+            record(out, 1000020, frame(rtp(111, 1, 1), 17, 0));
+            record(out, 1000040, frame(rtp(100, 2, 7), 17, 0));
+            record(out, 1000060, frame(rtcp(1), 17, 0));
+            // Unknown payload type, TCP and a fragment are skipped.
+            record(out, 1000080, frame(rtp(99, 3, 1), 17, 0));
+            record(out, 1000100, frame(rtp(111, 1, 2), 6, 0));
+            record(out, 1000120, frame(rtp(111, 1, 3), 17, 0x2000));
+            record(out, 1000140, frame(rtp(111, 1, 4), 17, 0));
+            out.close();
+
+            Map<MediaType, Map<MediaFormat, Byte>> formatAndPTs =
+                new HashMap<MediaType, Map<MediaFormat, Byte>>();
+            MediaFormatFactoryImpl factory = new MediaFormatFactoryImpl();
+            formatAndPTs.put(MediaType.AUDIO, Collections.singletonMap(
+                factory.createMediaFormat("opus", 48000, 2), (byte) 111));
+            formatAndPTs.put(MediaType.VIDEO, Collections.singletonMap(
+                factory.createMediaFormat("VP8", 90000), (byte) 100));
+
+            PcapSource source = new PcapSource(file, formatAndPTs);
+            try
+            {
+                CapturedPacket packet = source.next();
+                assertEquals(MediaType.AUDIO, packet.mediaType);
+                assertFalse(packet.rtcp);
+                assertEquals(1000020, packet.arrivalTime);
+                assertTrue(Arrays.equals(rtp(111, 1, 1), packet.data));
+
+                packet = source.next();
+                assertEquals(MediaType.VIDEO, packet.mediaType);
+
+                packet = source.next();
+                assertEquals(MediaType.AUDIO, packet.mediaType);
+                assertTrue(packet.rtcp);
+                assertTrue(Arrays.equals(rtcp(1), packet.data));
+
+                packet = source.next();
+                assertEquals(1000140, packet.arrivalTime);
+                assertNull(source.next());
+                assertEquals(4, source.getSkipped());
+            }
+            finally
+            {
+                source.close();
+            }
+        }
+        finally
+        {
+            file.delete();
+            LibJitsi.stop();
+        }
+    }
+
+    public void testCaptureDirectoryOrder() throws Exception
+    {
+        File dir = File.createTempFile("jirecon", "capture");
+        dir.delete();
+        dir.mkdir();
+        try
+        {
+            RtpCaptureWriter audio =
+                new RtpCaptureWriter(dir, MediaType.AUDIO, 0);
+            RtpCaptureWriter video =
+                new RtpCaptureWriter(dir, MediaType.VIDEO, 0);
+            for (int seq = 0; seq < 100; seq++)
+            {
+                byte[] packet = rtp(111, 1, seq);
+                audio.accept(null, packet, 0, packet.length, null, true);
+                packet = rtp(100, 2, seq);
+                video.accept(null, packet, 0, packet.length, null, true);
+                packet = rtp(111, 3, seq);
+                audio.accept(null, packet, 0, packet.length, null, true);
+            }
+            audio.close();
+            video.close();
+
+            CaptureDirectorySource source = new CaptureDirectorySource(dir);
+            try
+            {
+                int count = 0;
+                long lastArrival = 0;
+                CapturedPacket packet;
+                while (null != (packet = source.next()))
+                {
+                    assertTrue(packet.arrivalTime >= lastArrival);
+                    lastArrival = packet.arrivalTime;
+                    count++;
+                }
+                assertEquals(300, count);
+            }
+            finally
+            {
+                source.close();
+            }
+        }
+        finally
+        {
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+}
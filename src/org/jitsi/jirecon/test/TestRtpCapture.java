@@ -0,0 +1,139 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.jirecon.capture.*;
+import org.jitsi.jirecon.capture.RtpCaptureReader.CapturedPacket;
+import org.jitsi.service.neomedia.*;
+
+import junit.framework.TestCase;
+
+public class TestRtpCapture
+    extends TestCase
+{
+    private static byte[] rtp(long ssrc, int seq, int payloadLength)
+    {
+        byte[] packet = new byte[12 + payloadLength];
+        packet[0] = (byte) 0x80;
+        packet[1] = 100;
+        packet[2] = (byte) (seq >> 8);
+        packet[3] = (byte) seq;
+        for (int i = 0; i < 4; i++)
+            packet[8 + i] = (byte) (ssrc >> (24 - 8 * i));
+        for (int i = 12; i < packet.length; i++)
+            packet[i] = (byte) i;
+        return packet;
+    }
+
+    private static byte[] rtcp(long ssrc)
+    {
+        byte[] packet = new byte[8];
+        packet[0] = (byte) 0x80;
+        packet[1] = (byte) 200;
+        packet[3] = 1;
+        for (int i = 0; i < 4; i++)
+            packet[4 + i] = (byte) (ssrc >> (24 - 8 * i));
+        return packet;
+    }
+
+    public void testCaptureRoundTrip() throws Exception
+    {
+        File dir = File.createTempFile("jirecon", "capture");
+        dir.delete();
+        dir.mkdir();
+        // The smallest chunk, so that the packets span several chunks.
+        RtpCaptureWriter writer = new RtpCaptureWriter(dir, MediaType.VIDEO, 0);
+        try
+        {
+            List<byte[]> sent = new ArrayList<byte[]>();
+            long ssrc = 0xCAFEBABEL;
+            for (int seq = 0; seq < 2000; seq++)
+            {
+                byte[] packet = rtp(ssrc, seq, 1200);
+                sent.add(packet);
+                // Packets at an offset in a larger buffer are captured too.
+                byte[] buf = new byte[packet.length + 10];
+                System.arraycopy(packet, 0, buf, 5, packet.length);
+                assertFalse(writer.accept(null, buf, 5, packet.length, null,
+                    true));
+            }
+            byte[] report = rtcp(ssrc);
+            writer.accept(null, report, 0, report.length, null, false);
+            writer.accept(null, rtp(7, 0, 10), 0, 22, null, true);
+            // Too short to hold a ssrc, dropped.
+            writer.accept(null, new byte[4], 0, 4, null, true);
+            writer.close();
+
+            File file =
+                new File(dir, "video-" + ssrc + RtpCaptureWriter.FILE_EXTENSION);
+            assertTrue(new File(dir, "video-7"
+                + RtpCaptureWriter.FILE_EXTENSION).isFile());
+            assertEquals(RtpCaptureFile.HEADER_LENGTH + 2000
+                * (RtpCaptureFile.RECORD_HEADER_LENGTH + 1212)
+                + RtpCaptureFile.RECORD_HEADER_LENGTH + 8, file.length());
+
+            RtpCaptureReader reader = new RtpCaptureReader(file);
+            try
+            {
+                assertEquals(MediaType.VIDEO, reader.getMediaType());
+                assertEquals(ssrc, reader.getSsrc());
+                long lastArrival = 0;
+                for (byte[] expected : sent)
+                {
+                    CapturedPacket packet = reader.next();
+                    assertFalse(packet.rtcp);
+                    assertTrue(Arrays.equals(expected, packet.data));
+                    assertTrue(packet.arrivalTime >= lastArrival);
+                    lastArrival = packet.arrivalTime;
+                }
+                CapturedPacket packet = reader.next();
+                assertTrue(packet.rtcp);
+                assertTrue(Arrays.equals(report, packet.data));
+                assertNull(reader.next());
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        finally
+        {
+            writer.close();
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+
+    public void testAppendAfterClose() throws Exception
+    {
+        File path = File.createTempFile("jirecon", ".rtpcap");
+        path.delete();
+        RtpCaptureFile file =
+            new RtpCaptureFile(path, MediaType.AUDIO, 1, 0);
+        try
+        {
+            byte[] packet = rtp(1, 0, 100);
+            file.append(packet, 0, packet.length, 0, false);
+            file.close();
+
+            // A packet which was in flight when the file got closed.
+            file.append(packet, 0, packet.length, 1, false);
+            file.close();
+            assertEquals(1, file.getPacketCount());
+            assertEquals(RtpCaptureFile.HEADER_LENGTH
+                + RtpCaptureFile.RECORD_HEADER_LENGTH + packet.length,
+                path.length());
+        }
+        finally
+        {
+            path.delete();
+        }
+    }
+}
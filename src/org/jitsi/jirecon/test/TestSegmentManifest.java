@@ -0,0 +1,62 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.io.*;
+import java.util.*;
+
+import org.jitsi.jirecon.metadata.SegmentManifest;
+import org.json.simple.*;
+import org.json.simple.parser.*;
+
+import junit.framework.TestCase;
+
+public class TestSegmentManifest
+    extends TestCase
+{
+    public void testSegments() throws Exception
+    {
+        File dir = File.createTempFile("jirecon", "segments");
+        dir.delete();
+        dir.mkdir();
+        File manifestFile = new File(dir, SegmentManifest.FILE_NAME);
+        try
+        {
+            SegmentManifest manifest = new SegmentManifest(dir);
+            File first = new File(dir, "segment-0001");
+            File second = new File(dir, "segment-0002");
+
+            manifest.startSegment(1, first, 1000);
+            manifest.addFile("alice", "audio", 1,
+                new File(first, "1.webm").getPath());
+            manifest.startSegment(2, second, 2000);
+            manifest.addFile("alice", "audio", 1,
+                new File(second, "1.webm").getPath());
+            // Files outside of any segment are ignored.
+            manifest.addFile("bob", "video", 2, "/elsewhere/2.webm");
+
+            JSONObject json =
+                (JSONObject) new JSONParser().parse(new FileReader(
+                    manifestFile));
+            JSONArray segments = (JSONArray) json.get("segments");
+            assertEquals(2, segments.size());
+            JSONObject segment = (JSONObject) segments.get(0);
+            assertEquals("segment-0001", segment.get("directory"));
+            assertEquals(2000L, segment.get("end"));
+            assertNull(((JSONObject) segments.get(1)).get("end"));
+
+            JSONObject endpoints = (JSONObject) json.get("endpoints");
+            assertEquals(Arrays.asList("segment-0001/1.webm",
+                "segment-0002/1.webm"), endpoints.get("alice"));
+            assertNull(endpoints.get("bob"));
+        }
+        finally
+        {
+            manifestFile.delete();
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import org.jitsi.jirecon.SegmentRotator;
+import org.jitsi.jirecon.metadata.SegmentManifest;
+import org.json.simple.*;
+import org.json.simple.parser.*;
+
+import junit.framework.TestCase;
+
+public class TestSegmentRotator
+    extends TestCase
+{
+    private File dir;
+
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        dir = File.createTempFile("jirecon", "segments");
+        dir.delete();
+        dir.mkdir();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        scheduler.shutdownNow();
+        for (File f : dir.listFiles())
+        {
+            if (f.isDirectory())
+            {
+                for (File g : f.listFiles())
+                    g.delete();
+            }
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    public void testStopDuringRotation() throws Exception
+    {
+        final CountDownLatch rotating = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final SegmentManifest manifest = new SegmentManifest(dir);
+        final SegmentRotator rotator =
+            new SegmentRotator(manifest, dir, 50, scheduler,
+                new SegmentRotator.Listener()
+                {
+                    @Override
+                    public void rotate(String segmentDir)
+                        throws Exception
+                    {
+                        rotating.countDown();
+                        release.await();
+                    }
+                });
+
+        assertTrue(rotator.start().endsWith("segment-0001"));
+        assertTrue(rotating.await(5, TimeUnit.SECONDS));
+
+        // The recording is stopped while the rotation is running.
+        final CountDownLatch stopped = new CountDownLatch(1);
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                rotator.stop();
+                manifest.endSegment(3000);
+                stopped.countDown();
+            }
+        }.start();
+        assertFalse(stopped.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+
+        // No segment is started once the rotator has been stopped.
+        Thread.sleep(200);
+        assertEquals(2, rotator.getSegmentIndex());
+        assertFalse(new File(dir, "segment-0003").exists());
+
+        JSONObject json =
+            (JSONObject) new JSONParser().parse(new FileReader(new File(dir,
+                SegmentManifest.FILE_NAME)));
+        JSONArray segments = (JSONArray) json.get("segments");
+        assertEquals(2, segments.size());
+        assertEquals(3000L, ((JSONObject) segments.get(1)).get("end"));
+    }
+
+    public void testFailedRotationGoesOn() throws Exception
+    {
+        final CountDownLatch rotations = new CountDownLatch(2);
+        final SegmentRotator rotator =
+            new SegmentRotator(new SegmentManifest(dir), dir, 20, scheduler,
+                new SegmentRotator.Listener()
+                {
+                    @Override
+                    public void rotate(String segmentDir)
+                        throws Exception
+                    {
+                        rotations.countDown();
+                        throw new Exception("Recorders failed");
+                    }
+                });
+        rotator.start();
+        assertTrue(rotations.await(5, TimeUnit.SECONDS));
+        rotator.stop();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.jirecon.datachannel.*;
+
+import junit.framework.TestCase;
+
+public class TestSidTable
+    extends TestCase
+{
+    public void testSetAndGet()
+    {
+        SidTable<String> table = new SidTable<String>();
+        assertNull(table.get(0));
+        assertNull(table.set(0, "a"));
+        assertNull(table.set(SidTable.SID_COUNT - 1, "b"));
+        assertNull(table.set(256, "c"));
+        assertEquals("a", table.get(0));
+        assertEquals("b", table.get(SidTable.SID_COUNT - 1));
+        assertEquals("c", table.get(256));
+        assertNull(table.get(1));
+        assertNull(table.get(255));
+
+        assertEquals("a", table.set(0, "d"));
+        assertEquals("d", table.set(0, null));
+        assertNull(table.get(0));
+        // Removing from a page which doesn't exist.
+        assertNull(table.set(1000, null));
+
+        table.clear();
+        assertNull(table.get(256));
+    }
+
+    public void testOutOfRange()
+    {
+        SidTable<String> table = new SidTable<String>();
+        assertNull(table.get(-1));
+        assertNull(table.get(SidTable.SID_COUNT));
+        try
+        {
+            table.set(SidTable.SID_COUNT, "a");
+            fail("Out of range sid set");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+    }
+
+    public void testConcurrentPages() throws Exception
+    {
+        final SidTable<Integer> table = new SidTable<Integer>();
+        final int threads = 4;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++)
+        {
+            final int first = t;
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    // The threads share every page, none of them may be lost.
+                    for (int sid = first; sid < SidTable.SID_COUNT; sid +=
+                        threads)
+                    {
+                        table.set(sid, sid);
+                        if (!Integer.valueOf(sid).equals(table.get(sid)))
+                            failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(0, failures.get());
+        for (int sid = 0; sid < SidTable.SID_COUNT; sid++)
+            assertEquals(Integer.valueOf(sid), table.get(sid));
+    }
+}
@@ -65,4 +65,135 @@ public class ConfigurationKey
      */
     public final static String MAX_STREAM_PORT_KEY = PREFIX
         + ".MAX_STREAM_PORT";
+
+    /**
+     * The number of threads shared by all recording tasks for their setup and
+     * event handling work. If it is not set, a value derived from the number
+     * of available processors is used.
+     */
+    public final static String TASK_EXECUTOR_THREADS_KEY = PREFIX
+        + ".TASK_EXECUTOR_THREADS";
+
+    /**
+     * The maximum number of recording tasks which may exist at the same time.
+     * New tasks are rejected once it is reached. Not limited if it is not set.
+     */
+    public final static String MAX_TASKS_KEY = PREFIX + ".MAX_TASKS";
+
+    /**
+     * The maximum number of recording tasks which may be setting up their
+     * sessions at the same time. Further tasks are queued until one of them
+     * has started or failed. Not limited if it is not set.
+     */
+    public final static String MAX_PENDING_SETUPS_KEY = PREFIX
+        + ".MAX_PENDING_SETUPS";
+
+    /**
+     * The minimum free space, in megabytes, which must be left in the output
+     * directory in order to accept a new recording task. Not checked if it is
+     * not set.
+     */
+    public final static String MIN_FREE_DISK_MB_KEY = PREFIX
+        + ".MIN_FREE_DISK_MB";
+
+    /**
+     * The number of recording slots (ICE agent, DTLS controls and media
+     * streams) which are prepared in advance for new recording tasks. No slot
+     * is prepared in advance if it is not set.
+     */
+    public final static String SLOT_POOL_SIZE_KEY = PREFIX
+        + ".SLOT_POOL_SIZE";
+
+    /**
+     * The maximum time, in milliseconds, to wait for ICE connectivity
+     * establishment of a recording task. Defaults to 10 seconds.
+     */
+    public final static String ICE_TIMEOUT_KEY = PREFIX + ".ICE_TIMEOUT";
+
+    /**
+     * Whether RTCP should be multiplexed with RTP (rtcp-mux), so that audio
+     * and video need a single port each. It is only used with remote peers
+     * which support it. Disabled if it is not set.
+     */
+    public final static String RTCP_MUX_KEY = PREFIX + ".RTCP_MUX";
+
+    /**
+     * Whether the stanzas of the XMPP connection are logged, for debugging.
+     * Disabled if it is not set.
+     */
+    public final static String STANZA_TRACE_KEY = PREFIX + ".STANZA_TRACE";
+
+    /**
+     * When the stanza trace is enabled, only one stanza out of this number is
+     * logged. Every stanza is logged if it is not set.
+     */
+    public final static String STANZA_TRACE_SAMPLING_KEY = PREFIX
+        + ".STANZA_TRACE_SAMPLING";
+
+    /**
+     * The number of XMPP connections the tasks are spread over. A single
+     * connection is used if it is not set.
+     */
+    public final static String XMPP_CONNECTIONS_KEY = PREFIX
+        + ".XMPP_CONNECTIONS";
+
+    /**
+     * The format of the metadata file: JSON, NDJSON, BINARY or LOG. JSON if it
+     * is not set.
+     */
+    public final static String METADATA_FORMAT_KEY = PREFIX
+        + ".METADATA_FORMAT";
+
+    /**
+     * The maximum number of recorder events waiting to be written into the
+     * metadata file. Events are dropped beyond it.
+     */
+    public final static String METADATA_QUEUE_SIZE_KEY = PREFIX
+        + ".METADATA_QUEUE_SIZE";
+
+    /**
+     * The number of written recorder events after which the metadata file is
+     * forced to the disk.
+     */
+    public final static String METADATA_SYNC_EVENTS_KEY = PREFIX
+        + ".METADATA_SYNC_EVENTS";
+
+    /**
+     * The time in milliseconds after which the written recorder events are
+     * forced to the disk.
+     */
+    public final static String METADATA_SYNC_INTERVAL_KEY = PREFIX
+        + ".METADATA_SYNC_INTERVAL";
+
+    /**
+     * The duration of a recording segment in seconds. The recording isn't
+     * segmented if it is not set.
+     */
+    public final static String SEGMENT_DURATION_KEY = PREFIX
+        + ".SEGMENT_DURATION";
+
+    /**
+     * Whether the decrypted RTP and RTCP packets are captured into raw capture
+     * files instead of being recorded. False if it is not set.
+     */
+    public final static String RAW_CAPTURE_KEY = PREFIX + ".RAW_CAPTURE";
+
+    /**
+     * The number of bytes allocated at once in the raw capture files.
+     */
+    public final static String RAW_CAPTURE_CHUNK_SIZE_KEY = PREFIX
+        + ".RAW_CAPTURE_CHUNK_SIZE";
+
+    /**
+     * Whether the last SCTP packets of the data channels are kept, so that
+     * they can be dumped into a pcap file. False if it is not set.
+     */
+    public final static String DATA_CHANNEL_TRACE_KEY = PREFIX
+        + ".DATA_CHANNEL_TRACE";
+
+    /**
+     * The number of SCTP packets kept by the data channel trace.
+     */
+    public final static String DATA_CHANNEL_TRACE_SIZE_KEY = PREFIX
+        + ".DATA_CHANNEL_TRACE_SIZE";
 }
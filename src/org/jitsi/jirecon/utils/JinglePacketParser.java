@@ -150,6 +150,31 @@ public class JinglePacketParser
             .getFirstChildOfType(DtlsFingerprintPacketExtension.class);
     }
 
+    /**
+     * Whether the remote peer supports multiplexing RTCP with RTP for the
+     * specified <tt>MediaType</tt>. The rtcp-mux element is looked up in both
+     * the description and the transport.
+     * 
+     * @param jiq
+     * @param mediaType
+     * @return true if rtcp-mux is supported, otherwise false.
+     */
+    public static boolean isRtcpMux(JingleIQ jiq, MediaType mediaType)
+    {
+        final RtpDescriptionPacketExtension description =
+            getDescriptionPacketExt(jiq, mediaType);
+        if (null != description
+            && null != description
+                .getFirstChildOfType(RtcpmuxPacketExtension.class))
+            return true;
+
+        final IceUdpTransportPacketExtension transport =
+            getTransportPacketExt(jiq, mediaType);
+        return null != transport
+            && null != transport
+                .getFirstChildOfType(RtcpmuxPacketExtension.class);
+    }
+
     /**
      * Get <tt>MediaType</tt>s that appeared in <tt>JingleIQ</tt>, we think
      * those appeared <tt>MediaType</tt>s are supported by remote peer.
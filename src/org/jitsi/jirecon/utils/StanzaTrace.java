@@ -0,0 +1,128 @@
+/*
+ * Jirecon, the Jitsi recorder container.
+ * 
+ * Distributable under LGPL license. See terms of license at gnu.org.
+ */
+package org.jitsi.jirecon.utils;
+
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.util.*;
+import org.jivesoftware.smack.*;
+import org.jivesoftware.smack.filter.*;
+import org.jivesoftware.smack.packet.*;
+
+/**
+ * <tt>StanzaTrace</tt> logs the XML of the stanzas which go through an
+ * <tt>XMPPConnection</tt>, for debugging. It has its own logger and is
+ * switched off unless it is enabled in the configuration, in which case a
+ * stanza out of every <tt>STANZA_TRACE_SAMPLING</tt> is logged.
+ * <p>
+ * When it is switched off, it doesn't register any listener at all, so the
+ * stanzas are never serialized for it.
+ */
+public class StanzaTrace
+{
+    /**
+     * The <tt>Logger</tt> of the trace, separated from the others so that it
+     * can be redirected or filtered on its own.
+     */
+    private static final Logger logger = Logger
+        .getLogger("org.jitsi.jirecon.StanzaTrace");
+
+    /**
+     * Whether the trace is enabled.
+     */
+    private final boolean enabled;
+
+    /**
+     * One stanza out of <tt>sampling</tt> is logged.
+     */
+    private final int sampling;
+
+    /**
+     * The number of stanzas seen, used for sampling.
+     */
+    private final AtomicLong stanzaCount = new AtomicLong();
+
+    /**
+     * Create a trace according to the configuration.
+     * 
+     * @param configuration is the <tt>ConfigurationService</tt> to read the
+     *            settings from.
+     */
+    public StanzaTrace(ConfigurationService configuration)
+    {
+        enabled =
+            configuration.getBoolean(ConfigurationKey.STANZA_TRACE_KEY, false);
+        sampling =
+            Math.max(1, configuration.getInt(
+                ConfigurationKey.STANZA_TRACE_SAMPLING_KEY, 1));
+    }
+
+    /**
+     * Whether the trace is enabled.
+     * 
+     * @return true if it is enabled, otherwise false.
+     */
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Start tracing the stanzas sent and received through a connection. It
+     * does nothing if the trace is disabled.
+     * 
+     * @param connection is the <tt>XMPPConnection</tt> to be traced.
+     */
+    public void attach(XMPPConnection connection)
+    {
+        if (!enabled)
+            return;
+
+        logger.info("Tracing stanzas, 1 out of " + sampling + ".");
+
+        final PacketFilter acceptAll = new PacketFilter()
+        {
+            @Override
+            public boolean accept(Packet packet)
+            {
+                return true;
+            }
+        };
+
+        connection.addPacketSendingListener(new PacketListener()
+        {
+            @Override
+            public void processPacket(Packet packet)
+            {
+                trace("--->: ", packet);
+            }
+        }, acceptAll);
+
+        connection.addPacketListener(new PacketListener()
+        {
+            @Override
+            public void processPacket(Packet packet)
+            {
+                trace("<---: ", packet);
+            }
+        }, acceptAll);
+    }
+
+    /**
+     * Log a stanza, if it is picked by the sampling.
+     * 
+     * @param direction tells whether the stanza is sent or received.
+     * @param packet is the stanza.
+     */
+    private void trace(String direction, Packet packet)
+    {
+        if (sampling > 1 && 0 != stanzaCount.getAndIncrement() % sampling)
+            return;
+
+        logger.info(direction + packet.toXML());
+    }
+}
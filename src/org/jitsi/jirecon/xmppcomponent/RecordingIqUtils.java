@@ -94,6 +94,11 @@ public class RecordingIqUtils
      * Attribute name of "rid".
      */
     public static final String RID_NAME = "rid";
+
+    /**
+     * Attribute name of "reason".
+     */
+    public static final String REASON_NAME = "reason";
     
     /**
      * Document factory, it's used for creating xmpp.packet.IQ.
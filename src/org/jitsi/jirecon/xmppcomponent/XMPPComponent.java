@@ -330,6 +330,14 @@ public class XMPPComponent
                         RecordingIqUtils.Status.STOPPED.toString(),
                         session.getRid());
             }
+            else if (TaskManagerEvent.Type.TASK_REJECTED == evt.getType())
+            {
+                /*
+                 * The task hasn't been started at all, so the client will be
+                 * told in the result IQ of its "start" command.
+                 */
+                session.setReason(evt.getReason());
+            }
             else if (TaskManagerEvent.Type.TASK_STARTED == evt.getType())
             {
                 notification =
@@ -377,7 +385,17 @@ public class XMPPComponent
             recordingSessions.add(newSession);
         }
 
-        jirecon.startJireconTask(mucJid);
+        if (!jirecon.startJireconTask(mucJid))
+        {
+            synchronized (recordingSessions)
+            {
+                recordingSessions.remove(newSession);
+            }
+
+            return createIqResult(iq,
+                RecordingIqUtils.Status.ABORTED.toString(), null,
+                newSession.getReason());
+        }
 
         return createIqResult(iq,
             RecordingIqUtils.Status.INITIATING.toString(), newSession.getRid());
@@ -437,6 +455,21 @@ public class XMPPComponent
      * @return Result IQ.
      */
     private IQ createIqResult(IQ iq, String status, String rid)
+    {
+        return createIqResult(iq, status, rid, null);
+    }
+
+    /**
+     * Create result IQ with attribute "reason", which tells client why the
+     * command has been refused.
+     * 
+     * @param iq Associated IQ.
+     * @param status Value of attribute "status".
+     * @param rid Value of attribute "rid".
+     * @param reason Value of attribute "reason".
+     * @return Result IQ.
+     */
+    private IQ createIqResult(IQ iq, String status, String rid, String reason)
     {
         IQ result = RecordingIqUtils.createIqResult(iq);
 
@@ -446,6 +479,10 @@ public class XMPPComponent
         if (rid != null)
             RecordingIqUtils.addAttribute(result, RecordingIqUtils.RID_NAME, rid);
 
+        if (reason != null)
+            RecordingIqUtils.addAttribute(result, RecordingIqUtils.REASON_NAME,
+                reason);
+
         return result;
     }
 
@@ -531,6 +568,11 @@ public class XMPPComponent
          */
         private String outputPath;
 
+        /**
+         * Why the recording task of this session has been rejected, if it has.
+         */
+        private String reason;
+
         /**
          * Construction method.
          * 
@@ -566,6 +608,16 @@ public class XMPPComponent
             return outputPath;
         }
 
+        public String getReason()
+        {
+            return reason;
+        }
+
+        public void setReason(String reason)
+        {
+            this.reason = reason;
+        }
+
         /**
          * Generate a random rid string(32 chars length) for this recording
          * session.